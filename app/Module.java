@@ -1,5 +1,11 @@
+import actors.GameEntity;
+import actors.WatchHub;
 import com.google.inject.AbstractModule;
+import common.ActorFlow;
+import common.MongoUtils;
 import common.RedisUtils;
+import models.GameArchive;
+import models.GameCache;
 
 /**
  * This class is a Guice module that tells Guice how to bind several
@@ -16,6 +22,12 @@ public class Module extends AbstractModule {
     @Override
     public void configure() {
         requestStaticInjection(RedisUtils.class);
+        requestStaticInjection(GameCache.class);
+        requestStaticInjection(GameArchive.class);
+        requestStaticInjection(MongoUtils.class);
+        requestStaticInjection(ActorFlow.class);
+        requestStaticInjection(GameEntity.class);
+        requestStaticInjection(WatchHub.class);
     }
 
 }
@@ -2,122 +2,301 @@ package actors;
 
 
 import akka.actor.ActorRef;
+import akka.actor.Cancellable;
 import akka.actor.Props;
+import akka.actor.Status;
 import akka.actor.UntypedActor;
+import common.ActorFlow;
+import common.BlockingIo;
 import common.Constants;
+import common.Frame;
+import common.Metrics;
 import common.RedisUtils;
 import models.MessageType;
+import models.Rules;
 import models.entities.GameMessage;
 import org.apache.commons.lang3.StringUtils;
-import redis.clients.jedis.JedisPubSub;
+import play.Logger;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * Akka actor class for all inbound and outbound messages.
  * Checks for locks and decides when to use the GameListener interface.
+ * Text clients exchange JSON messages, binary clients exchange the binary frames of {@link GameMessage}.
+ * The actor runs inside an {@link ActorFlow}, which bounds the messages waiting for the client, and it acknowledges
+ * every message of the client so the next one is only read once it has been handled.
+ * In clustered mode the actor plays through the game's {@link GameEntity} instead of the Redis board and channel.
+ * The listener's blocking Redis and Mongo calls run on the game's {@link BlockingIo} lane and their results come back
+ * as messages, so the actor never blocks its dispatcher thread. The client's next message is read once they are done.
  */
 public class GameActor extends UntypedActor {
 
+    // Sent by a client to get a snapshot of the game, a binary client sends a single byte of -1
+    private static final String MESSAGE_SYNC = "sync";
+    private static final byte BINARY_SYNC = -1;
+    // Longer runs of digits cannot be a column of any board and may not even fit a short
+    private static final int MAX_COLUMN_DIGITS = String.valueOf(Rules.MAX_SIZE - 1).length();
+    // Sent by the actor to itself to renew the lease of its seat
+    private static final Object HEARTBEAT = "heartbeat";
+    static final Function<String, byte[]> BINARY_ENCODER = text -> GameMessage.fromJsonString(text).toBytes();
+    private static final AtomicInteger activeCount = new AtomicInteger();
+
     private ActorRef out;
     private String gameId;
     private short disc;
+    private final boolean binary;
     private final GameListener gameListener;
-    private final JedisPubSub jedisPubSub;
+    // The shard region of game entities in clustered mode, otherwise null
+    private final ActorRef region;
     private boolean started = false;
-
-    public interface GameListener {
-        void onReady();
-
-        GameMessage onMove(short column);
+    private final Cancellable heartbeat;
+
+    // Results of the listener's calls on the blocking I/O lane, with the stream to acknowledge once they are handled
+    private static final class Moved {
+        final GameMessage gameMessage;
+        final ActorRef ack;
+        final long start;
+
+        Moved(GameMessage gameMessage, ActorRef ack, long start) {
+            this.gameMessage = gameMessage;
+            this.ack = ack;
+            this.start = start;
+        }
     }
 
+    private static final class Synced {
+        final List<GameMessage> gameMessages;
+        // Null for the messages on connecting, which do not answer a message of the client
+        final ActorRef ack;
+        final long start;
 
-    public GameActor(ActorRef out, String gameId, short disc, GameListener gameListener) {
-        this.out = out;
-        this.gameId = gameId;
-        this.disc = disc;
-        this.gameListener = gameListener;
+        Synced(List<GameMessage> gameMessages, ActorRef ack, long start) {
+            this.gameMessages = gameMessages;
+            this.ack = ack;
+            this.start = start;
+        }
+    }
 
-        jedisPubSub = new JedisPubSub() {
-            @Override
-            public void onMessage(String channel, String message) {
-                GameMessage gameMessage = GameMessage.fromJsonString(message);
+    private static final class Renewed {
+        final boolean renewed;
 
-                if (gameMessage.getType().equals(MessageType.START))
-                    started = true; // Starting the game
+        Renewed(boolean renewed) {
+            this.renewed = renewed;
+        }
+    }
 
-                out.tell(message, self());
-            }
+    // The listener's calls block on Redis and Mongo, they are made on the game's blocking I/O lane
+    public interface GameListener {
+        void onReady();
 
-            @Override
-            public void onPMessage(String pattern, String channel, String message) {
+        // The CONNECT snapshot, or RESUME and the moves missed since the given sequence number if it is not negative
+        List<GameMessage> onConnect(int seq);
 
-            }
+        // Renews the lease of the player's seat, false if the seat has been lost
+        boolean onHeartbeat();
 
-            @Override
-            public void onSubscribe(String channel, int subscribedChannels) {
+        GameMessage onMove(short column);
 
-            }
+        // Called once a move has been published to the game
+        void afterMove(GameMessage gameMessage);
 
-            @Override
-            public void onUnsubscribe(String channel, int subscribedChannels) {
+        GameMessage onSync(MessageType type);
 
-            }
-
-            @Override
-            public void onPUnsubscribe(String pattern, int subscribedChannels) {
+        void onStop();
+    }
 
-            }
 
-            @Override
-            public void onPSubscribe(String pattern, int subscribedChannels) {
+    public GameActor(ActorRef out, String gameId, short disc, int seq, boolean binary, GameListener gameListener,
+                     ActorRef region) {
+        this.out = out;
+        this.gameId = gameId;
+        this.disc = disc;
+        this.binary = binary;
+        this.gameListener = gameListener;
+        this.region = region;
+        activeCount.incrementAndGet();
+
+        // The seat is held as long as the actor keeps renewing it, so the seat of a crashed node frees itself
+        FiniteDuration interval = Duration.create(RedisUtils.getSeatRenewIntervalMs(), TimeUnit.MILLISECONDS);
+        heartbeat = context().system().scheduler().schedule(interval, interval, self(), HEARTBEAT,
+                context().dispatcher(), self());
+
+        if (region != null) {
+            // The entity replies with the CONNECT snapshot or the missed moves,
+            // and starts the game once both players are attached
+            region.tell(new GameEntity.Attach(gameId, disc, seq), self());
+            return;
+        }
 
-            }
-        };
+        // Messages published to the game are routed to this actor by the node's shared subscriber
+        RedisUtils.subscribe(gameId, self());
 
-        RedisUtils.subscribe(jedisPubSub, gameId);
+        // This lets the client know that the player has connected and gives it the full state of the game, or only
+        // the moves it missed if it is resuming. They are sent back before onReady runs on the same lane,
+        // so they always come before START.
+        long start = System.nanoTime();
+        BlockingIo.pipe(gameId, () -> new Synced(gameListener.onConnect(seq), null, start), self());
+        BlockingIo.run(gameId, gameListener::onReady);
+    }
 
-        // This lets the client know that the player has connected
-        out.tell(new GameMessage(MessageType.CONNECT, disc, gameId).toString(), self());
+    /**
+     * Get the number of game actors running on this node
+     */
+    public static int getActiveCount() {
+        return activeCount.get();
+    }
 
-        gameListener.onReady();
+    /**
+     * Props of an actor for the socket of a player
+     *
+     * @param seq sequence number of the last move the player has seen when resuming, otherwise negative.
+     */
+    public static Props props(ActorRef out, String gameId, short disc, int seq, boolean binary,
+                              GameListener gameListener) {
+        return Props.create(GameActor.class, out, gameId, disc, seq, binary, gameListener, null);
     }
 
-    public static Props props(ActorRef out, String gameId, short disc, GameListener gameListener) {
-        return Props.create(GameActor.class, out, gameId, disc, gameListener);
+    /**
+     * Props of an actor playing through the entities of the given shard region
+     */
+    public static Props props(ActorRef out, String gameId, short disc, int seq, boolean binary,
+                              GameListener gameListener, ActorRef region) {
+        return Props.create(GameActor.class, out, gameId, disc, seq, binary, gameListener, region);
     }
 
 
     @Override
     public void onReceive(Object message) throws Exception {
-        if (message instanceof String) {
-            // A player cannot make a move until the game has started
-            if (started) {
-                String messageString = (String) message;
-
-                // Validation
-                if (StringUtils.isNumeric(messageString)) {
-
-                    short column = Short.valueOf(messageString);
-                    GameMessage gameMessage = gameListener.onMove(column);
-
-                    if (!gameMessage.getType().equals(MessageType.LOCKED))
-                        RedisUtils.publish(gameId, gameMessage.toString());
-                    else // If the game is locked then tell the client directly instead of publishing the message to the channel
-                        out.tell(gameMessage.toString(), self());
-                } else
-                    out.tell(new GameMessage(MessageType.INVALID, disc, null).toString(), self());
-            } else
-                out.tell(new GameMessage(MessageType.LOCKED, disc, Constants.MESSAGE_GAME_WAITING).toString(), self());
+        long start = System.nanoTime();
+        if (message instanceof Frame) {
+            // The frame is shared with the other local actors of the game, only its type header is read here
+            Frame frame = (Frame) message;
+
+            if (frame.getType() == MessageType.START.ordinal())
+                started = true; // Starting the game
+
+            if (binary)
+                out.tell(frame.getBytes(BINARY_ENCODER), self());
+            else
+                out.tell(frame.getText(), self());
+            Metrics.time(Metrics.Stage.DELIVER, start);
+        } else if (message instanceof Moved) {
+            Moved moved = (Moved) message;
+            Metrics.countMove(moved.gameMessage.getType());
+            // A published move reaches this client through the channel like everyone else's
+            if (moved.gameMessage.getType().equals(MessageType.LOCKED)
+                    || moved.gameMessage.getType().equals(MessageType.INVALID))
+                tell(moved.gameMessage);
+            Metrics.time(Metrics.Stage.MOVE, moved.start);
+            moved.ack.tell(ActorFlow.ACK, self());
+        } else if (message instanceof Synced) {
+            Synced synced = (Synced) message;
+            for (GameMessage gameMessage : synced.gameMessages)
+                tell(gameMessage);
+            if (synced.ack != null) {
+                Metrics.time(Metrics.Stage.SYNC, synced.start);
+                synced.ack.tell(ActorFlow.ACK, self());
+            }
+        } else if (message == HEARTBEAT) {
+            BlockingIo.pipe(gameId, () -> new Renewed(gameListener.onHeartbeat()), self());
+        } else if (message instanceof Renewed) {
+            if (!((Renewed) message).renewed) {
+                // Another player has the seat now, this socket is closed
+                Logger.info("Lost the seat of disc {} in game {}", disc, gameId);
+                context().stop(self());
+            }
+        } else if (message instanceof Status.Failure) {
+            // A failed call closes the socket, as if it had been made here
+            throw new IllegalStateException("Call for game " + gameId + " failed", ((Status.Failure) message).cause());
+        } else if (message instanceof String) {
+            String messageString = (String) message;
+
+            if (messageString.equals(MESSAGE_SYNC))
+                onSync(sender(), start);
+            // Validation
+            else if (StringUtils.isNumeric(messageString) && messageString.length() <= MAX_COLUMN_DIGITS)
+                onMove(Short.valueOf(messageString), sender(), start);
+            else {
+                tell(new GameMessage(MessageType.INVALID, disc, null));
+                // Lets the socket read the client's next message
+                sender().tell(ActorFlow.ACK, self());
+            }
+        } else if (message instanceof byte[]) {
+            byte[] bytes = (byte[]) message;
+
+            if (bytes.length == 1 && bytes[0] == BINARY_SYNC)
+                onSync(sender(), start);
+            else if (bytes.length == 1 && bytes[0] >= 0)
+                onMove(bytes[0], sender(), start);
+            else {
+                tell(new GameMessage(MessageType.INVALID, disc, null));
+                sender().tell(ActorFlow.ACK, self());
+            }
         }
     }
 
     @Override
     public void postStop() throws Exception {
         super.postStop();
+        heartbeat.cancel();
+
+        if (region != null)
+            region.tell(new GameEntity.Detach(gameId, disc), self());
+        else
+            RedisUtils.unsubscribe(gameId, self());
 
-        jedisPubSub.unsubscribe();
+        BlockingIo.run(gameId, gameListener::onStop);
+        activeCount.decrementAndGet();
+    }
+
+    // Acknowledges the client's message once the snapshot has been sent
+    private void onSync(ActorRef ack, long start) {
+        if (region != null) {
+            region.tell(new GameEntity.Sync(gameId, disc), self());
+            Metrics.time(Metrics.Stage.SYNC, start);
+            ack.tell(ActorFlow.ACK, self());
+        } else
+            BlockingIo.pipe(gameId, () -> new Synced(
+                    Collections.singletonList(gameListener.onSync(MessageType.SNAPSHOT)), ack, start), self());
+    }
+
+    // Acknowledges the client's message once the move has been handled
+    private void onMove(short column, ActorRef ack, long start) {
+        // A player cannot make a move until the game has started
+        if (started && region != null) {
+            // The entity checks and applies the move, then sends the outcome to both players or back to this one
+            region.tell(new GameEntity.Move(gameId, disc, column), self());
+            Metrics.time(Metrics.Stage.MOVE, start);
+            ack.tell(ActorFlow.ACK, self());
+        } else if (started) {
+            // Published on the lane right after it is committed, so the moves of a game are published in order
+            BlockingIo.pipe(gameId, () -> {
+                GameMessage gameMessage = gameListener.onMove(column);
+                if (!gameMessage.getType().equals(MessageType.LOCKED) && !gameMessage.getType().equals(MessageType.INVALID)) {
+                    RedisUtils.publish(gameId, gameMessage.toFrame());
+                    gameListener.afterMove(gameMessage);
+                } // If the game is locked or the move is invalid then the client is told directly instead of publishing the message to the channel
+                return new Moved(gameMessage, ack, start);
+            }, self());
+        } else {
+            Metrics.countMove(MessageType.LOCKED);
+            tell(new GameMessage(MessageType.LOCKED, disc, Constants.MESSAGE_GAME_WAITING));
+            ack.tell(ActorFlow.ACK, self());
+        }
+    }
 
-        // Detach the disc so it can be used by another player if the game hasn't already started
-        RedisUtils.detachDisc(gameId, disc);
+    // Sends a message to the client in its encoding
+    private void tell(GameMessage gameMessage) {
+        if (binary)
+            out.tell(gameMessage.toBytes(), self());
+        else
+            out.tell(gameMessage.toString(), self());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,456 @@
+package actors;
+
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.actor.Terminated;
+import akka.actor.Status;
+import akka.actor.UntypedActorWithStash;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ClusterShardingSettings;
+import akka.cluster.sharding.ShardCoordinator;
+import akka.cluster.sharding.ShardRegion;
+import com.google.inject.Inject;
+import com.typesafe.config.ConfigFactory;
+import common.BlockingIo;
+import common.Constants;
+import common.Metrics;
+import models.Board;
+import models.GameCache;
+import models.MessageType;
+import models.Rules;
+import models.TurnClock;
+import models.entities.Game;
+import models.entities.GameMessage;
+import play.Logger;
+import scala.concurrent.duration.Duration;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owner of a game in clustered mode, one per game across the whole cluster with Akka Cluster Sharding.
+ * <p>
+ * The players' {@link GameActor}s send their moves to the entity wherever they are connected, and the entity holds
+ * the authoritative {@link Board} in memory, so a move is checked, applied and broadcast with local message passing
+ * instead of Redis round trips. The board is set up once from the game loaded from Mongo when the entity starts, and a
+ * move only sets its bit and checks the lines through it. The game is written back by the game cache, which keeps
+ * it for as long as the entity holds it.
+ * Spectators are served through one {@link WatchHub} per node, which the entity sends every frame to.
+ * <p>
+ * Entities are passivated once idle without players, and written to Mongo before they are stopped for passivation
+ * or moved to another node when shards are rebalanced, so they resume on any node from the stored game.
+ * The game is loaded and written on the {@link BlockingIo} lane of the game, never on the dispatcher, and commands
+ * wait in the stash while it is being loaded.
+ */
+public class GameEntity extends UntypedActorWithStash {
+
+    private static final String KEY_ENABLED = "game.cluster.enabled";
+    private static final String KEY_SHARDS = "game.cluster.shards";
+    private static final String KEY_IDLE_TIMEOUT = "game.cluster.idleTimeout";
+    private static final String TYPE_NAME = "game";
+    private static final short DISC_1 = 1;
+    private static final short DISC_2 = 2;
+    private static final short DISC_COUNT = 2;
+    private static final short DISC_NONE = 0;
+
+    private static final boolean enabled = ConfigFactory.load().getBoolean(KEY_ENABLED);
+    private static volatile ActorRef region;
+
+    private final String gameId;
+    private final Map<Short, ActorRef> players = new HashMap<>();
+    // The watch hubs of the nodes with spectators of the game
+    private final Set<ActorRef> watchers = new HashSet<>();
+    private Game game;
+    private Rules rules;
+    // The bitboards and column heights of the game, a move is applied to them without replaying the earlier ones
+    private Board board;
+    private String moves;
+    private short lastDisc;
+    private boolean ended;
+    // Disc that ran out of time, 0 if the game was not forfeited
+    private short forfeit;
+    // Set once the entity has been told to stop and is writing its game
+    private boolean stopping;
+
+
+    /**
+     * Message of a player to the entity of its game
+     */
+    public static abstract class Command implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final String gameId;
+        final short disc;
+
+        Command(String gameId, short disc) {
+            this.gameId = gameId;
+            this.disc = disc;
+        }
+    }
+
+    /**
+     * Takes a seat of the game for the sending player, who gets the CONNECT snapshot,
+     * or RESUME and the moves it missed if it has seen the moves up to a sequence number
+     */
+    public static class Attach extends Command {
+        private static final long serialVersionUID = 1L;
+        final int seq;
+
+        public Attach(String gameId, short disc, int seq) {
+            super(gameId, disc);
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Gives up the seat of the sending player
+     */
+    public static class Detach extends Command {
+        private static final long serialVersionUID = 1L;
+
+        public Detach(String gameId, short disc) {
+            super(gameId, disc);
+        }
+    }
+
+    /**
+     * A move of the sending player. The outcome is broadcast to the players, or sent back if it was refused.
+     */
+    public static class Move extends Command {
+        private static final long serialVersionUID = 1L;
+        final short column;
+
+        public Move(String gameId, short disc, short column) {
+            super(gameId, disc);
+            this.column = column;
+        }
+    }
+
+    /**
+     * Registers the sending {@link WatchHub} for every frame of the game, answered with {@link Watching}
+     */
+    public static class Watch extends Command {
+        private static final long serialVersionUID = 1L;
+
+        public Watch(String gameId) {
+            super(gameId, DISC_NONE);
+        }
+    }
+
+    /**
+     * Answer of the entity to {@link Watch}, which the hub follows the entity by
+     */
+    public static final class Watching implements Serializable {
+        private static final long serialVersionUID = 1L;
+        static final Watching INSTANCE = new Watching();
+
+        private Object readResolve() {
+            return INSTANCE;
+        }
+    }
+
+    /**
+     * Unregisters the sending {@link WatchHub}
+     */
+    public static class Unwatch extends Command {
+        private static final long serialVersionUID = 1L;
+
+        public Unwatch(String gameId) {
+            super(gameId, DISC_NONE);
+        }
+    }
+
+    /**
+     * Request of the sending player or spectator for a snapshot
+     */
+    public static class Sync extends Command {
+        private static final long serialVersionUID = 1L;
+
+        public Sync(String gameId, short disc) {
+            super(gameId, disc);
+        }
+    }
+
+    // Sent by the shard on rebalancing and by the entity itself on passivation
+    private static final class Stop implements Serializable {
+        private static final long serialVersionUID = 1L;
+        static final Stop INSTANCE = new Stop();
+
+        private Object readResolve() {
+            return INSTANCE;
+        }
+    }
+
+    // Result of loading the game on its lane, without a game if it does not exist
+    private static final class Loaded {
+        final Game game;
+
+        Loaded(Game game) {
+            this.game = game;
+        }
+    }
+
+    // Sent back by the lane of the game once it has been written for the entity to stop
+    private static final class Written {
+        static final Written INSTANCE = new Written();
+    }
+
+    private static class MessageExtractor extends ShardRegion.HashCodeMessageExtractor {
+
+        MessageExtractor(int shards) {
+            super(shards);
+        }
+
+        @Override
+        public String entityId(Object message) {
+            return message instanceof Command ? ((Command) message).gameId : null;
+        }
+    }
+
+
+    public GameEntity() {
+        gameId = getSelf().path().name();
+        getContext().setReceiveTimeout(Duration.create(
+                ConfigFactory.load().getDuration(KEY_IDLE_TIMEOUT, TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Start the shard region of the node if clustered mode is enabled
+     */
+    @Inject
+    private static void startRegion(ActorSystem actorSystem) {
+        if (!enabled)
+            return;
+        ClusterSharding sharding = ClusterSharding.get(actorSystem);
+        ClusterShardingSettings settings = ClusterShardingSettings.create(actorSystem);
+        // Stop is also the hand-off message, so an entity moved away by a rebalance writes its game first
+        region = sharding.start(TYPE_NAME, Props.create(GameEntity.class), settings,
+                new MessageExtractor(ConfigFactory.load().getInt(KEY_SHARDS)),
+                new ShardCoordinator.LeastShardAllocationStrategy(
+                        settings.tuningParameters().leastShardAllocationRebalanceThreshold(),
+                        settings.tuningParameters().leastShardAllocationMaxSimultaneousRebalance()),
+                Stop.INSTANCE);
+    }
+
+    /**
+     * Check whether games are owned by sharded entities instead of coordinating through Redis
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Get the shard region routing commands to the entities of games, null if clustered mode is not enabled
+     */
+    public static ActorRef getRegion() {
+        return region;
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        super.preStart();
+        // Always the stored game, a copy cached on this node may be older than the moves of an earlier owner
+        BlockingIo.pipe(gameId, () -> new Loaded(GameCache.hold(gameId)), getSelf());
+    }
+
+    @Override
+    public void postStop() {
+        TurnClock.stopTurn(gameId);
+        if (game != null)
+            GameCache.release(game);
+        super.postStop();
+    }
+
+    @Override
+    public void onReceive(Object message) throws Exception {
+        if (game == null)
+            receiveWhileLoading(message);
+        else if (stopping)
+            receiveWhileStopping(message);
+        else
+            receivePlaying(message);
+    }
+
+    private void receiveWhileLoading(Object message) {
+        if (message instanceof Loaded) {
+            game = ((Loaded) message).game;
+            if (game == null) {
+                Logger.warn("No game {} for its entity", gameId);
+                getContext().stop(getSelf());
+                return;
+            }
+            rules = game.getRules();
+            moves = game.getMoves();
+            board = rules.newBoard(moves);
+            lastDisc = moves.isEmpty() ? DISC_2 : game.getLastDisc();
+            ended = game.isEnded();
+            forfeit = game.getForfeit();
+            unstashAll();
+        } else if (message instanceof Status.Failure) {
+            // The entity is restarted and loads the game again, with the stashed commands put back in its mailbox
+            throw new IllegalStateException("Loading game " + gameId + " failed", ((Status.Failure) message).cause());
+        } else
+            // A stop waits too, so the game is written and the commands after it are handed back to the shard
+            stash();
+    }
+
+    private void receiveWhileStopping(Object message) {
+        if (message == Written.INSTANCE)
+            getContext().stop(getSelf());
+        else if (message instanceof Command)
+            // The shard buffers the commands of a stopping entity and delivers them to the next one
+            region.forward(message, getContext());
+    }
+
+    private void receivePlaying(Object message) {
+        if (message instanceof Move) {
+            Move move = (Move) message;
+            move(move.disc, move.column);
+        } else if (message instanceof Sync) {
+            getSender().tell(snapshot(MessageType.SNAPSHOT, ((Sync) message).disc).toFrame(), getSelf());
+        } else if (message instanceof Attach) {
+            Attach attach = (Attach) message;
+            attach(attach.disc, attach.seq);
+        } else if (message instanceof Detach) {
+            detach(((Detach) message).disc, getSender());
+        } else if (message instanceof Watch) {
+            if (watchers.add(getSender()))
+                getContext().watch(getSender());
+            getSender().tell(Watching.INSTANCE, getSelf());
+        } else if (message instanceof Unwatch) {
+            if (watchers.remove(getSender()))
+                getContext().unwatch(getSender());
+        } else if (message instanceof Terminated) {
+            // A player's or a hub's node went away without detaching
+            ActorRef actor = ((Terminated) message).getActor();
+            watchers.remove(actor);
+            for (Map.Entry<Short, ActorRef> entry : new HashMap<>(players).entrySet())
+                if (entry.getValue().equals(actor))
+                    detach(entry.getKey(), actor);
+        } else if (message instanceof TurnClock.Expired) {
+            forfeit(((TurnClock.Expired) message).getMoveCount());
+        } else if (message instanceof ReceiveTimeout) {
+            // A watched game is kept for its spectators, even once it has ended
+            if (players.isEmpty() && watchers.isEmpty())
+                getContext().parent().tell(new ShardRegion.Passivate(Stop.INSTANCE), getSelf());
+        } else if (message == Stop.INSTANCE) {
+            stopping = true;
+            Game stored = game;
+            BlockingIo.pipe(gameId, () -> {
+                write(stored);
+                return Written.INSTANCE;
+            }, getSelf());
+        } else
+            unhandled(message);
+    }
+
+    private void attach(short disc, int seq) {
+        ActorRef player = getSender();
+        ActorRef previous = players.put(disc, player);
+        if (previous != null && !previous.equals(player))
+            getContext().unwatch(previous);
+        getContext().watch(player);
+
+        // This lets the client know that the player has connected and gives it the full state of the game,
+        // or only the moves it missed
+        for (GameMessage gameMessage : GameMessage.connect(disc, gameId, rules, moves, forfeit, seq))
+            player.tell(gameMessage.toFrame(), getSelf());
+        if (players.size() == DISC_COUNT) {
+            // This lets all clients know that the game has started
+            broadcast(new GameMessage(MessageType.START, disc, null));
+            if (!ended)
+                TurnClock.startTurn(gameId, moves.length(), getSelf());
+        }
+    }
+
+    private void detach(short disc, ActorRef player) {
+        if (players.remove(disc, player))
+            getContext().unwatch(player);
+    }
+
+    private void move(short disc, short column) {
+        GameMessage outcome = play(disc, column);
+        Metrics.countMove(outcome.getType());
+        if (outcome.getType() == MessageType.MOVE || outcome.getType() == MessageType.END)
+            broadcast(outcome);
+        else
+            getSender().tell(outcome.toFrame(), getSelf());
+    }
+
+    // Checks the move against the board and applies it, the same way the Redis commit script does
+    private GameMessage play(short disc, short column) {
+        if (ended)
+            return new GameMessage(MessageType.LOCKED, disc, Constants.MESSAGE_GAME_ENDED);
+        if (disc == lastDisc)
+            return new GameMessage(MessageType.LOCKED, disc, Constants.MESSAGE_WRONG_TURN);
+        if (!board.canPlay(column))
+            return new GameMessage(MessageType.INVALID, disc, null);
+
+        short row = (short) board.play(column);
+        // The packed moves are what the game cache writes behind
+        moves += (char) ('0' + column);
+        lastDisc = disc;
+        synchronized (game) {
+            game.update(moves, disc);
+        }
+
+        boolean win = board.isWin();
+        ended = board.isEnded();
+        if (!ended) {
+            TurnClock.startTurn(gameId, moves.length(), getSelf());
+            GameCache.markDirty(gameId);
+            return GameMessage.move(MessageType.MOVE, disc, column, row, moves.length(), null);
+        }
+        TurnClock.stopTurn(gameId);
+        GameCache.flush(gameId);
+        return GameMessage.move(MessageType.END, disc, column, row, moves.length(), win ? board.winCells() : null);
+    }
+
+    // The player to move loses the game if no move has been made since its clock was started
+    private void forfeit(int moveCount) {
+        if (ended || board.getMoveCount() != moveCount)
+            return;
+
+        forfeit = lastDisc == DISC_1 ? DISC_2 : DISC_1;
+        ended = true;
+        synchronized (game) {
+            game.forfeit(forfeit);
+        }
+        broadcast(GameMessage.forfeit(forfeit, moveCount));
+        Game stored = game;
+        BlockingIo.run(gameId, () -> {
+            Game.updateForfeits(Collections.singletonList(stored));
+            GameCache.flush(gameId);
+        });
+    }
+
+    private GameMessage snapshot(MessageType type, short disc) {
+        return GameMessage.snapshot(type, disc, gameId, gameId, rules, moves, forfeit, rules.replay(moves));
+    }
+
+    // The frame is encoded once and shared by the players and the nodes of spectators,
+    // serialized only for those on other nodes
+    private void broadcast(GameMessage gameMessage) {
+        Object frame = gameMessage.toFrame();
+        for (ActorRef player : players.values())
+            player.tell(frame, getSelf());
+        for (ActorRef watcher : watchers)
+            watcher.tell(frame, getSelf());
+    }
+
+    // Writes the game before the entity stops, so an entity started on another node finds the latest moves
+    private static void write(Game game) {
+        try {
+            Game.updateMoves(Collections.singletonList(game));
+        } catch (RuntimeException e) {
+            Logger.error("Could not write game " + game.getId(), e);
+        }
+    }
+}
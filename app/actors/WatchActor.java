@@ -0,0 +1,134 @@
+package actors;
+
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.Status;
+import akka.actor.UntypedActor;
+import common.ActorFlow;
+import common.BlockingIo;
+import common.Frame;
+import common.Metrics;
+import common.RedisUtils;
+import models.entities.GameMessage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Akka actor class for a spectator of a game, who follows it without holding a disc.
+ * The spectator gets a snapshot of the game first and then every message of the game as the players get it.
+ * Frames of the game are shared with every other local player and spectator: the node holds a single subscription
+ * to the game's channel, or in clustered mode a single {@link WatchHub} the game's entity sends every frame to.
+ * A spectator can only ask for another snapshot; anything else it sends is ignored.
+ * Snapshots are read on the game's {@link BlockingIo} lane and come back to the actor as messages.
+ */
+public class WatchActor extends UntypedActor {
+
+    private static final String MESSAGE_SYNC = "sync";
+    private static final byte BINARY_SYNC = -1;
+    // Spectators take no seat
+    private static final short DISC_NONE = 0;
+    private static final AtomicInteger activeCount = new AtomicInteger();
+
+    private final ActorRef out;
+    private final String gameId;
+    private final boolean binary;
+    private final Supplier<GameMessage> snapshot;
+    // The shard region of game entities in clustered mode, otherwise null
+    private final ActorRef region;
+
+    // A snapshot read on the blocking I/O lane, with the stream to acknowledge once it is sent
+    private static final class Synced {
+        final GameMessage gameMessage;
+        final ActorRef ack;
+
+        Synced(GameMessage gameMessage, ActorRef ack) {
+            this.gameMessage = gameMessage;
+            this.ack = ack;
+        }
+    }
+
+
+    public WatchActor(ActorRef out, String gameId, boolean binary, Supplier<GameMessage> snapshot, ActorRef region) {
+        this.out = out;
+        this.gameId = gameId;
+        this.binary = binary;
+        this.snapshot = snapshot;
+        this.region = region;
+        activeCount.incrementAndGet();
+
+        // Subscribed before the snapshot is taken. Moves already in the snapshot may still arrive,
+        // the client skips those with a seq it already has and asks for a snapshot on a gap like a player.
+        if (region != null)
+            WatchHub.add(gameId, self());
+        else
+            RedisUtils.subscribe(gameId, self());
+        sync(null);
+    }
+
+    /**
+     * Get the number of spectators connected to this node
+     */
+    public static int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * Props of a spectator of a game. The snapshot is taken from the entity of the game if a shard region is given.
+     */
+    public static Props props(ActorRef out, String gameId, boolean binary, Supplier<GameMessage> snapshot,
+                              ActorRef region) {
+        return Props.create(WatchActor.class, out, gameId, binary, snapshot, region);
+    }
+
+
+    @Override
+    public void onReceive(Object message) throws Exception {
+        long start = System.nanoTime();
+        if (message instanceof Frame) {
+            Frame frame = (Frame) message;
+            if (binary)
+                out.tell(frame.getBytes(GameActor.BINARY_ENCODER), self());
+            else
+                out.tell(frame.getText(), self());
+            Metrics.time(Metrics.Stage.DELIVER, start);
+        } else if (message instanceof Synced) {
+            Synced synced = (Synced) message;
+            out.tell(binary ? synced.gameMessage.toBytes() : synced.gameMessage.toString(), self());
+            if (synced.ack != null)
+                synced.ack.tell(ActorFlow.ACK, self());
+        } else if (message instanceof Status.Failure) {
+            throw new IllegalStateException("Snapshot of game " + gameId + " failed", ((Status.Failure) message).cause());
+        } else if (message instanceof String || message instanceof byte[]) {
+            if (MESSAGE_SYNC.equals(message)
+                    || message instanceof byte[] && ((byte[]) message).length == 1 && ((byte[]) message)[0] == BINARY_SYNC) {
+                sync(sender());
+                Metrics.time(Metrics.Stage.SYNC, start);
+            } else
+                sender().tell(ActorFlow.ACK, self());
+        }
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        super.postStop();
+
+        if (region != null)
+            WatchHub.remove(gameId, self());
+        else
+            RedisUtils.unsubscribe(gameId, self());
+        activeCount.decrementAndGet();
+    }
+
+    // Acknowledges the client's message, if there is one, once the snapshot has been sent
+    private void sync(ActorRef ack) {
+        if (region != null) {
+            // The entity replies with the snapshot frame
+            region.tell(new GameEntity.Sync(gameId, DISC_NONE), self());
+            if (ack != null)
+                ack.tell(ActorFlow.ACK, self());
+        } else
+            BlockingIo.pipe(gameId, () -> new Synced(snapshot.get(), ack), self());
+    }
+}
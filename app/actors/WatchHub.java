@@ -0,0 +1,100 @@
+package actors;
+
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import akka.actor.UntypedActor;
+import com.google.inject.Inject;
+import common.Frame;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Fans out the frames of a watched game to the spectators on this node in clustered mode.
+ * A node runs one hub per watched game, which registers with the game's {@link GameEntity}, so the entity sends
+ * every frame once per node however many spectators follow the game there.
+ */
+public class WatchHub extends UntypedActor {
+
+    @Inject
+    private static ActorSystem actorSystem;
+    // Hubs of the games watched on this node, changed only while holding the class lock
+    private static final Map<String, Route> routes = new HashMap<>();
+
+    private final String gameId;
+    private final Set<ActorRef> spectators;
+    private ActorRef entity;
+
+    private static class Route {
+        final Set<ActorRef> spectators = new CopyOnWriteArraySet<>();
+        ActorRef hub;
+    }
+
+
+    public WatchHub(String gameId, Set<ActorRef> spectators) {
+        this.gameId = gameId;
+        this.spectators = spectators;
+    }
+
+    /**
+     * Route the frames of a game to a spectator. The hub of the game is started when its first spectator is added.
+     */
+    public static synchronized void add(String gameId, ActorRef spectator) {
+        Route route = routes.get(gameId);
+        if (route == null) {
+            route = new Route();
+            route.hub = actorSystem.actorOf(Props.create(WatchHub.class, gameId, route.spectators));
+            routes.put(gameId, route);
+        }
+        route.spectators.add(spectator);
+    }
+
+    /**
+     * Stop routing the frames of a game to a spectator. The hub is stopped when its last spectator is removed.
+     */
+    public static synchronized void remove(String gameId, ActorRef spectator) {
+        Route route = routes.get(gameId);
+        if (route != null && route.spectators.remove(spectator) && route.spectators.isEmpty()) {
+            routes.remove(gameId);
+            actorSystem.stop(route.hub);
+        }
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        super.preStart();
+        GameEntity.getRegion().tell(new GameEntity.Watch(gameId), self());
+    }
+
+    @Override
+    public void onReceive(Object message) throws Exception {
+        if (message instanceof Frame) {
+            for (ActorRef spectator : spectators)
+                spectator.tell(message, self());
+        } else if (message instanceof GameEntity.Watching) {
+            // The hub follows the entity from its answer, so it learns when the entity moves away even before a move
+            if (!getSender().equals(entity)) {
+                if (entity != null)
+                    getContext().unwatch(entity);
+                entity = getSender();
+                getContext().watch(entity);
+            }
+        } else if (message instanceof Terminated) {
+            // The entity was handed off to another node or its node went away, the region starts it again
+            entity = null;
+            GameEntity.getRegion().tell(new GameEntity.Watch(gameId), self());
+        } else
+            unhandled(message);
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        super.postStop();
+        GameEntity.getRegion().tell(new GameEntity.Unwatch(gameId), self());
+    }
+}
@@ -0,0 +1,147 @@
+package common;
+
+
+import akka.NotUsed;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import akka.actor.Status;
+import akka.actor.SupervisorStrategy;
+import akka.actor.Terminated;
+import akka.actor.UntypedActor;
+import akka.japi.Pair;
+import akka.stream.Materializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.ThrottleMode;
+import akka.stream.javadsl.AsPublisher;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.reactivestreams.Publisher;
+import scala.concurrent.duration.Duration;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Builds the stream of a WebSocket around an actor, like Play's Scala ActorFlow, with bounds on both directions.
+ * <p>
+ * Messages the actor sends to its out reference wait in a bounded buffer for the client to read them. A client
+ * that falls behind loses messages by the configured overflow strategy: dropHead drops the oldest messages, which
+ * a client notices as a gap in the sequence of moves and recovers from with a snapshot; fail closes its socket.
+ * <p>
+ * Messages from the client are throttled and handed to the actor one at a time. The next one is only read once the
+ * actor has answered the last one with {@link #ACK}, so a flooding client is held back by TCP flow control instead
+ * of filling the actor's mailbox.
+ */
+public class ActorFlow {
+
+    private static final String KEY_BUFFER_SIZE = "websocket.bufferSize";
+    private static final String KEY_OVERFLOW = "websocket.overflow";
+    private static final String KEY_INBOUND_RATE = "websocket.inbound.rate";
+    private static final String KEY_INBOUND_PER = "websocket.inbound.per";
+    private static final String KEY_INBOUND_BURST = "websocket.inbound.burst";
+
+    /**
+     * Reply of the actor to every message from the client
+     */
+    public static final Object ACK = Signal.ACK;
+
+    private enum Signal {
+        INIT, ACK, COMPLETE
+    }
+
+    @Inject
+    private static ActorSystem actorSystem;
+    @Inject
+    private static Materializer materializer;
+
+    private static final int bufferSize;
+    private static final OverflowStrategy overflowStrategy;
+    private static final int inboundRate;
+    private static final FiniteDuration inboundPer;
+    private static final int inboundBurst;
+
+    static {
+        Config config = ConfigFactory.load();
+        bufferSize = config.getInt(KEY_BUFFER_SIZE);
+        overflowStrategy = getOverflowStrategy(config.getString(KEY_OVERFLOW));
+        inboundRate = config.getInt(KEY_INBOUND_RATE);
+        inboundPer = Duration.create(config.getDuration(KEY_INBOUND_PER, TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        inboundBurst = config.getInt(KEY_INBOUND_BURST);
+    }
+
+
+    /**
+     * Create the flow of a WebSocket handled by an actor. The actor is created with the reference it sends the
+     * client's messages to, and it is stopped when the client leaves. The socket is closed when the actor stops.
+     */
+    public static <In, Out> Flow<In, Out, NotUsed> actorRef(Function<ActorRef, Props> props) {
+        Pair<ActorRef, Publisher<Out>> out = Source.<Out>actorRef(bufferSize, overflowStrategy)
+                .toMat(Sink.asPublisher(AsPublisher.WITHOUT_FANOUT), Keep.both())
+                .run(materializer);
+        ActorRef flowActor = actorSystem.actorOf(Props.create(FlowActor.class, props.apply(out.first()), out.first()));
+
+        Sink<In, NotUsed> in = Flow.<In>create()
+                .throttle(inboundRate, inboundPer, inboundBurst, ThrottleMode.shaping())
+                .to(Sink.actorRefWithAck(flowActor, Signal.INIT, Signal.ACK, Signal.COMPLETE, e -> Signal.COMPLETE));
+        return Flow.fromSinkAndSource(in, Source.fromPublisher(out.second()));
+    }
+
+    private static OverflowStrategy getOverflowStrategy(String name) {
+        switch (name) {
+            case "dropHead":
+                return OverflowStrategy.dropHead();
+            case "dropTail":
+                return OverflowStrategy.dropTail();
+            case "dropBuffer":
+                return OverflowStrategy.dropBuffer();
+            case "dropNew":
+                return OverflowStrategy.dropNew();
+            case "fail":
+                return OverflowStrategy.fail();
+            default:
+                throw new IllegalArgumentException("Unknown overflow strategy " + name);
+        }
+    }
+
+
+    // Parent of the actor handling a socket, tying the actor's life to the stream's
+    static class FlowActor extends UntypedActor {
+
+        private final ActorRef out;
+        private final ActorRef child;
+
+        public FlowActor(Props props, ActorRef out) {
+            this.out = out;
+            this.child = getContext().watch(getContext().actorOf(props, "handler"));
+        }
+
+        @Override
+        public void onReceive(Object message) throws Exception {
+            if (message == Signal.INIT)
+                getSender().tell(Signal.ACK, getSelf());
+            else if (message == Signal.COMPLETE)
+                child.tell(PoisonPill.getInstance(), getSelf());
+            else if (message instanceof Terminated) {
+                // Completes the outbound stream, which closes the socket
+                out.tell(new Status.Success(NotUsed.getInstance()), getSelf());
+                getContext().stop(getSelf());
+            } else
+                // The child acknowledges to the stream itself once it has handled the message
+                child.tell(message, getSender());
+        }
+
+        @Override
+        public SupervisorStrategy supervisorStrategy() {
+            // A failing handler closes its socket rather than being restarted with a fresh state
+            return SupervisorStrategy.stoppingStrategy();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package common;
+
+
+import akka.actor.ActorRef;
+import akka.actor.Status;
+import com.typesafe.config.ConfigFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the blocking Redis and Mongo calls of game actors and controllers on threads of their own, so they never hold
+ * a thread of the Akka dispatcher that every actor and request of the node shares.
+ * <p>
+ * The threads are lanes with one thread each, and the calls of a game always run on the lane of its id, in the order
+ * they were made. Results are sent back to the calling actor as messages, so what the actor sees of a game keeps the
+ * order in which it happened. Game actors make one call at a time per socket and read the client's next message only
+ * once it is done, which bounds the calls waiting on a lane by the sockets of the node.
+ */
+public class BlockingIo {
+
+    private static final String KEY_THREADS = "blockingIo.threads";
+
+    private static final ThreadPoolExecutor[] lanes;
+    // Spreads calls that do not belong to a game over the lanes
+    private static final AtomicInteger next = new AtomicInteger();
+
+    static {
+        int threads = ConfigFactory.load().getInt(KEY_THREADS);
+        lanes = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            String name = "blocking-io-" + i;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+
+    /**
+     * Run a call on the lane of a game and send its result to an actor, or a {@link Status.Failure} if it throws
+     */
+    public static void pipe(String gameId, Supplier<?> call, ActorRef actorRef) {
+        getLane(gameId).execute(() -> {
+            Object result;
+            try {
+                result = call.get();
+            } catch (RuntimeException e) {
+                result = new Status.Failure(e);
+            }
+            actorRef.tell(result, ActorRef.noSender());
+        });
+    }
+
+    /**
+     * Run a call on the lane of a game, after the calls made before it for the game
+     */
+    public static void run(String gameId, Runnable call) {
+        getLane(gameId).execute(call);
+    }
+
+    /**
+     * Run a call that does not belong to a game yet, for example opening a socket
+     */
+    public static <T> CompletionStage<T> supply(Supplier<T> call) {
+        return CompletableFuture.supplyAsync(call, lanes[Math.floorMod(next.getAndIncrement(), lanes.length)]);
+    }
+
+    /**
+     * Get the number of calls waiting for a lane
+     */
+    public static int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor lane : lanes)
+            depth += lane.getQueue().size();
+        return depth;
+    }
+
+    private static ExecutorService getLane(String gameId) {
+        return lanes[Math.floorMod(gameId.hashCode(), lanes.length)];
+    }
+}
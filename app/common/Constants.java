@@ -8,4 +8,6 @@ public class Constants {
 
     public static final String MESSAGE_GAME_WAITING = "Game hasn't started yet";
     public static final String MESSAGE_WRONG_TURN = "Not your turn";
+    public static final String MESSAGE_GAME_ENDED = "Game has ended";
+    public static final String MESSAGE_TURN_TIMEOUT = "Ran out of time";
 }
\ No newline at end of file
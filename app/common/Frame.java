@@ -0,0 +1,62 @@
+package common;
+
+
+import java.io.Serializable;
+import java.util.function.Function;
+
+/**
+ * A message encoded once and shared by every local recipient.
+ * On the wire the encoded text is prefixed with a single character holding the type, so the type can be read
+ * without parsing the text. The binary encoding is made on first use and then shared as well.
+ * Frames can be sent to actors on other nodes of a cluster, where the binary encoding is made again.
+ */
+public final class Frame implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final char HEADER_BASE = '0';
+
+    private final int type;
+    private final String text;
+    private transient volatile byte[] bytes;
+
+
+    public Frame(int type, String text) {
+        this.type = type;
+        this.text = text;
+    }
+
+    /**
+     * Read a frame from its wire form
+     */
+    public static Frame fromWire(String wire) {
+        return new Frame(wire.charAt(0) - HEADER_BASE, wire.substring(1));
+    }
+
+    /**
+     * Get the wire form of the frame, the type header followed by the text
+     */
+    public String toWire() {
+        return (char) (HEADER_BASE + type) + text;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Get the binary encoding of the frame, made from the text by the encoder on first use
+     */
+    public byte[] getBytes(Function<String, byte[]> encoder) {
+        // Two threads may both encode the first time, which is harmless since the result is the same
+        byte[] encoded = bytes;
+        if (encoded == null) {
+            encoded = encoder.apply(text);
+            bytes = encoded;
+        }
+        return encoded;
+    }
+}
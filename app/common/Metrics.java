@@ -0,0 +1,180 @@
+package common;
+
+
+import actors.GameActor;
+import actors.WatchActor;
+import models.GameCache;
+import models.TurnClock;
+import models.MessageType;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Node-wide latency histograms, counters and gauges, exposed in the Prometheus text format.
+ * <p>
+ * Recording is allocation-free: a stage is timed with two {@link System#nanoTime()} calls and lands in a fixed
+ * bucket of its histogram with a single atomic increment. Gauges are only read when the metrics are scraped.
+ */
+public class Metrics {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String PREFIX = "connect4_";
+
+    // Upper bounds of the histogram buckets in seconds, from 50 microseconds to 10 seconds
+    private static final double[] BUCKET_SECONDS = {0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01,
+            0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+    private static final String[] BUCKET_LABELS = new String[BUCKET_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKET_SECONDS[i] * 1e9);
+            BUCKET_LABELS[i] = BigDecimal.valueOf(BUCKET_SECONDS[i]).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    /**
+     * Timed stages of handling a game message
+     */
+    public enum Stage {
+        // A frame published to the game delivered to the actor's client
+        DELIVER,
+        // A move received from a client, from parsing it to publishing the outcome
+        MOVE,
+        // A snapshot requested by a client
+        SYNC,
+        // Getting the game from the node's cache
+        CACHE_GET,
+        // Loading a game missing from the cache from Mongo
+        GAME_LOAD,
+        // Checking the turn, applying the move and scanning for a win in one Redis script
+        COMMIT_MOVE,
+        // Finding the cells of a winning connection
+        WIN_CELLS,
+        // Saving a new game to Mongo
+        GAME_SAVE,
+        // Writing a batch of changed games to Mongo
+        GAME_WRITE,
+        // Publishing a message to the game's channel
+        PUBLISH;
+
+        private final Histogram histogram = new Histogram();
+    }
+
+    // Outcomes of the moves made by clients, by the type of the message they got back
+    private static final LongAdder[] moves = new LongAdder[MessageType.values().length];
+
+    static {
+        for (int i = 0; i < moves.length; i++)
+            moves[i] = new LongAdder();
+    }
+
+    private static final List<Gauge> gauges = new ArrayList<>();
+
+    static {
+        gauges.add(new Gauge("actors", "Game actors running on this node", GameActor::getActiveCount));
+        gauges.add(new Gauge("spectators", "Spectators connected to this node", WatchActor::getActiveCount));
+        gauges.add(new Gauge("subscriptions", "Game channels subscribed on this node",
+                RedisUtils::getSubscriptionCount));
+        gauges.add(new Gauge("redis_connections_active", "Redis connections borrowed from the pool",
+                RedisUtils::getActiveConnections));
+        gauges.add(new Gauge("redis_connections_idle", "Redis connections idle in the pool",
+                RedisUtils::getIdleConnections));
+        gauges.add(new Gauge("games_in_progress", "Games cached on this node", GameCache::getSize));
+        gauges.add(new Gauge("blocking_io_queue", "Redis and Mongo calls waiting for a blocking I/O thread",
+                BlockingIo::getQueueDepth));
+        gauges.add(new Gauge("games_write_queue", "Games waiting to be written to Mongo", GameCache::getQueueDepth));
+        gauges.add(new Gauge("game_timers", "Turn clocks and open game timers running on this node",
+                TurnClock::getPending));
+    }
+
+    private static class Histogram {
+        // Count of every bucket on its own, the last one for values above all bounds; summed up when scraped
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKET_NANOS.length + 1);
+        final LongAdder sumNanos = new LongAdder();
+
+        void record(long nanos) {
+            int bucket = Arrays.binarySearch(BUCKET_NANOS, nanos);
+            buckets.incrementAndGet(bucket >= 0 ? bucket : -bucket - 1);
+            sumNanos.add(nanos);
+        }
+    }
+
+    private static class Gauge {
+        final String name;
+        final String help;
+        final LongSupplier value;
+
+        Gauge(String name, String help, LongSupplier value) {
+            this.name = PREFIX + name;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+
+    /**
+     * Record the time of a stage started at the given {@link System#nanoTime()}
+     */
+    public static void time(Stage stage, long startNanos) {
+        stage.histogram.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Count a move made by a client by the type of its outcome
+     */
+    public static void countMove(MessageType outcome) {
+        moves[outcome.ordinal()].increment();
+    }
+
+    /**
+     * Write all metrics in the Prometheus text format
+     */
+    public static String scrape() {
+        StringBuilder builder = new StringBuilder(8192);
+
+        String name = PREFIX + "stage_seconds";
+        builder.append("# HELP ").append(name).append(" Time taken by the stages of handling game messages\n");
+        builder.append("# TYPE ").append(name).append(" histogram\n");
+        for (Stage stage : Stage.values()) {
+            String label = stage.name().toLowerCase(Locale.ROOT);
+            Histogram histogram = stage.histogram;
+            long count = 0;
+            for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+                count += histogram.buckets.get(i);
+                builder.append(name).append("_bucket{stage=\"").append(label).append("\",le=\"")
+                        .append(BUCKET_LABELS[i]).append("\"} ").append(count).append('\n');
+            }
+            count += histogram.buckets.get(BUCKET_SECONDS.length);
+            builder.append(name).append("_bucket{stage=\"").append(label).append("\",le=\"+Inf\"} ")
+                    .append(count).append('\n');
+            builder.append(name).append("_sum{stage=\"").append(label).append("\"} ")
+                    .append(histogram.sumNanos.sum() / 1e9).append('\n');
+            builder.append(name).append("_count{stage=\"").append(label).append("\"} ").append(count).append('\n');
+        }
+
+        name = PREFIX + "moves_total";
+        builder.append("# HELP ").append(name).append(" Moves made by clients by their outcome\n");
+        builder.append("# TYPE ").append(name).append(" counter\n");
+        for (MessageType type : MessageType.values()) {
+            if (moves[type.ordinal()].sum() > 0)
+                builder.append(name).append("{outcome=\"").append(type.name().toLowerCase(Locale.ROOT))
+                        .append("\"} ").append(moves[type.ordinal()].sum()).append('\n');
+        }
+
+        for (Gauge gauge : gauges) {
+            builder.append("# HELP ").append(gauge.name).append(' ').append(gauge.help).append('\n');
+            builder.append("# TYPE ").append(gauge.name).append(" gauge\n");
+            builder.append(gauge.name).append(' ').append(gauge.value.getAsLong()).append('\n');
+        }
+        return builder.toString();
+    }
+}
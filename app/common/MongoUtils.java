@@ -1,7 +1,9 @@
 package common;
 
 
+import com.google.inject.Inject;
 import com.mongodb.MongoClient;
+import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import models.entities.Game;
 import org.mongodb.morphia.Datastore;
@@ -13,6 +15,7 @@ import org.mongodb.morphia.Morphia;
 public class MongoUtils {
 
     private static final String KEY_MONGO_DB = "mongo.db";
+    private static final String KEY_MONGO_MIGRATE_ON_START = "mongo.migrateOnStart";
     private static Datastore datastore = createDatastore();
 
 
@@ -24,8 +27,22 @@ public class MongoUtils {
     public static Datastore createDatastore() {
         Morphia morphia = new Morphia();
         morphia.mapPackageFromClass(Game.class);
-        Datastore datastore = morphia.createDatastore(new MongoClient(), ConfigFactory.load().getString(KEY_MONGO_DB));
+        Config config = ConfigFactory.load();
+        Datastore datastore = morphia.createDatastore(new MongoClient(), config.getString(KEY_MONGO_DB));
         datastore.ensureIndexes();
         return datastore;
     }
+
+    /**
+     * Convert legacy games in the background when the application starts, games loaded before that are converted
+     * when loaded. Offline jobs using the datastore do not start the migration.
+     */
+    @Inject
+    private static void migrateOnStart() {
+        if (ConfigFactory.load().getBoolean(KEY_MONGO_MIGRATE_ON_START)) {
+            Thread thread = new Thread(() -> Game.migrateLegacy(datastore), "mongo-migration");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
 }
\ No newline at end of file
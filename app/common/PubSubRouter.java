@@ -0,0 +1,181 @@
+package common;
+
+
+import akka.actor.ActorRef;
+import play.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Multiplexes the Redis channels subscribed on this node over a small fixed set of connections.
+ * Each connection is held by its own daemon thread, channels are subscribed and unsubscribed on it as local actors
+ * come and go, and every message is routed to the actors registered for its channel as a single shared {@link Frame}.
+ */
+public class PubSubRouter {
+
+    // Every connection stays subscribed to this channel so the blocking subscribe call never returns
+    private static final String CHANNEL_CONTROL = "pubsub";
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final JedisPool jedisPool;
+    private final Shard[] shards;
+
+    public PubSubRouter(JedisPool jedisPool, int connections) {
+        this.jedisPool = jedisPool;
+        shards = new Shard[connections];
+        for (int i = 0; i < connections; i++) {
+            shards[i] = new Shard();
+            Thread thread = new Thread(shards[i], "redis-pubsub-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Route messages of a channel to an actor. The channel is subscribed when its first actor is added.
+     */
+    public void add(String channel, ActorRef actorRef) {
+        getShard(channel).add(channel, actorRef);
+    }
+
+    /**
+     * Stop routing messages of a channel to an actor. The channel is unsubscribed when its last actor is removed.
+     */
+    public void remove(String channel, ActorRef actorRef) {
+        getShard(channel).remove(channel, actorRef);
+    }
+
+    /**
+     * Get the number of channels currently subscribed on this node
+     */
+    public int getChannelCount() {
+        int count = 0;
+        for (Shard shard : shards)
+            count += shard.routes.size();
+        return count;
+    }
+
+    private Shard getShard(String channel) {
+        return shards[Math.floorMod(channel.hashCode(), shards.length)];
+    }
+
+
+    // One subscriber connection and the routes of the channels hashed to it.
+    // Subscription changes are synchronized so they are never lost while the connection is being (re)established.
+    private class Shard extends JedisPubSub implements Runnable {
+
+        private final Map<String, Set<ActorRef>> routes = new ConcurrentHashMap<>();
+        private boolean subscribed = false;
+
+        synchronized void add(String channel, ActorRef actorRef) {
+            Set<ActorRef> actorRefs = routes.get(channel);
+            if (actorRefs == null) {
+                actorRefs = new CopyOnWriteArraySet<>();
+                routes.put(channel, actorRefs);
+                if (subscribed)
+                    subscribe(channel);
+            }
+            actorRefs.add(actorRef);
+        }
+
+        synchronized void remove(String channel, ActorRef actorRef) {
+            Set<ActorRef> actorRefs = routes.get(channel);
+            if (actorRefs != null && actorRefs.remove(actorRef) && actorRefs.isEmpty()) {
+                routes.remove(channel);
+                if (subscribed)
+                    unsubscribe(channel);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Jedis jedis = null;
+                try {
+                    jedis = jedisPool.getResource();
+                    // Blocks for as long as the connection is alive
+                    jedis.subscribe(this, CHANNEL_CONTROL);
+                } catch (JedisConnectionException e) {
+                    if (jedis != null) {
+                        jedisPool.returnBrokenResource(jedis);
+                        jedis = null;
+                    }
+                } catch (RuntimeException e) {
+                    // The connection is left in an unknown state, so it is dropped and the channels resubscribed
+                    Logger.error("Redis subscriber connection failed", e);
+                    if (jedis != null) {
+                        jedisPool.returnBrokenResource(jedis);
+                        jedis = null;
+                    }
+                } finally {
+                    if (jedis != null)
+                        jedisPool.returnResource(jedis);
+                }
+
+                synchronized (this) {
+                    subscribed = false;
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void onMessage(String channel, String message) {
+            Set<ActorRef> actorRefs = routes.get(channel);
+            if (actorRefs != null) {
+                Frame frame;
+                try {
+                    // Decoded once and shared by all the actors of the channel
+                    frame = Frame.fromWire(message);
+                } catch (RuntimeException e) {
+                    // A malformed message must not take the connection of the other channels down with it
+                    Logger.error("Dropped malformed message on channel " + channel, e);
+                    return;
+                }
+                for (ActorRef actorRef : actorRefs)
+                    actorRef.tell(frame, ActorRef.noSender());
+            }
+        }
+
+        @Override
+        public synchronized void onSubscribe(String channel, int subscribedChannels) {
+            // Once the control channel is subscribed the connection is ready to take the channels of local actors
+            if (channel.equals(CHANNEL_CONTROL)) {
+                subscribed = true;
+                if (!routes.isEmpty())
+                    subscribe(routes.keySet().toArray(new String[0]));
+            }
+        }
+
+        @Override
+        public void onPMessage(String pattern, String channel, String message) {
+
+        }
+
+        @Override
+        public void onUnsubscribe(String channel, int subscribedChannels) {
+
+        }
+
+        @Override
+        public void onPUnsubscribe(String pattern, int subscribedChannels) {
+
+        }
+
+        @Override
+        public void onPSubscribe(String pattern, int subscribedChannels) {
+
+        }
+    }
+}
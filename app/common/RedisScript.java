@@ -0,0 +1,52 @@
+package common;
+
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A Lua script kept on the classpath under conf/redis and run atomically on the Redis server.
+ * The script is called by its SHA1 so only the digest travels with each call, and it is sent in full
+ * only the first time a server does not know it.
+ */
+public class RedisScript {
+
+    private static final String ERROR_NO_SCRIPT = "NOSCRIPT";
+
+    private final String source;
+    private volatile String sha;
+
+
+    public RedisScript(String name) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                RedisScript.class.getClassLoader().getResourceAsStream("redis/" + name), StandardCharsets.UTF_8))) {
+            source = reader.lines().collect(Collectors.joining("\n"));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not load Redis script " + name, e);
+        }
+    }
+
+    /**
+     * Run the script with the given keys and arguments
+     */
+    public Object eval(Jedis jedis, List<String> keys, List<String> args) {
+        if (sha != null) {
+            try {
+                return jedis.evalsha(sha, keys, args);
+            } catch (JedisDataException e) {
+                // The script cache was flushed or this is a different server, so load it again below
+                if (e.getMessage() == null || !e.getMessage().startsWith(ERROR_NO_SCRIPT))
+                    throw e;
+            }
+        }
+        sha = jedis.scriptLoad(source);
+        return jedis.evalsha(sha, keys, args);
+    }
+}
@@ -1,137 +1,459 @@
 package common;
 
 
-import akka.actor.ActorSystem;
+import akka.actor.ActorRef;
 import com.google.inject.Inject;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.apache.commons.pool2.impl.GenericObjectPool;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPubSub;
-import scala.concurrent.duration.Duration;
+import redis.clients.util.Pool;
 
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Utility class for Redis.
+ * <p>
+ * All keys are expected on a single Redis instance: the lobby script follows game ids read from the lobby list and
+ * the batch scripts span the keys of many games, which Redis Cluster would spread over different slots.
  */
 public class RedisUtils {
 
-    private static final String KEY_DISCS = "discs";
-    private static final String KEY_LAST_DISC = "lastDisc";
+    private static final String KEY_SEAT = "seat";
+    private static final String KEY_BOARD = "board";
+    private static final String KEY_LOBBY = "lobby";
+    private static final String FIELD_LAST_DISC = "lastDisc";
+    private static final String FIELD_MOVES = "moves";
+    private static final String FIELD_ENDED = "ended";
+    private static final String FIELD_FORFEIT = "forfeit";
+    private static final String KEY_PUBSUB_CONNECTIONS = "redis.pubsub.connections";
+    private static final String KEY_SEAT_LEASE = "redis.seat.lease";
+    private static final String KEY_SEAT_RENEW_INTERVAL = "redis.seat.renewInterval";
+    private static final String KEY_BOARD_IDLE_TIMEOUT = "redis.board.idleTimeout";
+    private static final String KEY_BOARD_ENDED_TIMEOUT = "redis.board.endedTimeout";
+    private static final short DISC_1 = 1;
+    private static final short DISC_2 = 2;
+    // Outcomes of reaping an open game: its board was deleted, a move has been made, or a seat is still held
+    public static final int REAP_DELETED = 1;
+    public static final int REAP_STARTED = 2;
+    public static final int REAP_HELD = 0;
     @Inject
     private static JedisPool jedisPool;
-    @Inject
-    private static ActorSystem actorSystem;
+    private static PubSubRouter pubSubRouter;
+    private static final RedisScript SCRIPT_COMMIT_MOVE = new RedisScript("commit-move.lua");
+    private static final RedisScript SCRIPT_LOBBY_PAIR = new RedisScript("lobby-pair.lua");
+    private static final RedisScript SCRIPT_SEAT_CLAIM = new RedisScript("seat-claim.lua");
+    private static final RedisScript SCRIPT_SEAT_RENEW = new RedisScript("seat-renew.lua");
+    private static final RedisScript SCRIPT_SEAT_RELEASE = new RedisScript("seat-release.lua");
+    private static final RedisScript SCRIPT_TURN_FORFEIT = new RedisScript("turn-forfeit.lua");
+    private static final RedisScript SCRIPT_OPEN_REAP = new RedisScript("open-reap.lua");
+    private static final Field FIELD_INTERNAL_POOL;
+    private static final long seatLeaseMs;
+    private static final long seatRenewIntervalMs;
+    private static final long boardIdleTimeoutMs;
+    private static final long boardEndedTimeoutMs;
+
+    static {
+        Config config = ConfigFactory.load();
+        seatLeaseMs = config.getDuration(KEY_SEAT_LEASE, TimeUnit.MILLISECONDS);
+        seatRenewIntervalMs = config.getDuration(KEY_SEAT_RENEW_INTERVAL, TimeUnit.MILLISECONDS);
+        boardIdleTimeoutMs = config.getDuration(KEY_BOARD_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        boardEndedTimeoutMs = config.getDuration(KEY_BOARD_ENDED_TIMEOUT, TimeUnit.MILLISECONDS);
+        try {
+            FIELD_INTERNAL_POOL = Pool.class.getDeclaredField("internalPool");
+            FIELD_INTERNAL_POOL.setAccessible(true);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Outcome of a move committed to the board of a game
+     */
+    public static class MoveResult {
+        public static final int STATUS_MOVE = 0;
+        public static final int STATUS_WIN = 1;
+        public static final int STATUS_DRAW = 2;
+        public static final int STATUS_WRONG_TURN = -1;
+        public static final int STATUS_ENDED = -2;
+        public static final int STATUS_INVALID = -3;
+        public static final int STATUS_UNKNOWN_GAME = -4;
+
+        private final int status;
+        private final short row;
+        private final String moves;
+
+        public MoveResult(int status, short row, String moves) {
+            this.status = status;
+            this.row = row;
+            this.moves = moves;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Grid row the disc landed on, counted from the top
+         */
+        public short getRow() {
+            return row;
+        }
+
+        /**
+         * All moves of the game including this one, one character per move ('0' + column)
+         */
+        public String getMoves() {
+            return moves;
+        }
+    }
 
 
     /**
-     * Subscribe a JedisPubSub listener to a channel
+     * Subscribe an actor to a channel. Messages are delivered to the actor as {@link Frame}s.
      */
-    public static void subscribe(JedisPubSub jedisPubSub, String channel) {
-        actorSystem.scheduler().scheduleOnce(
-                Duration.create(0, TimeUnit.MILLISECONDS),
-                () -> {
-                    jedisPool.getResource().subscribe(jedisPubSub, channel);
-                },
-                actorSystem.dispatcher());
+    public static void subscribe(String channel, ActorRef actorRef) {
+        getPubSubRouter().add(channel, actorRef);
     }
 
     /**
-     * Publish a message to a channel
+     * Unsubscribe an actor from a channel
      */
-    public static void publish(String channel, String message) {
+    public static void unsubscribe(String channel, ActorRef actorRef) {
+        getPubSubRouter().remove(channel, actorRef);
+    }
+
+    /**
+     * Publish a frame to a channel
+     */
+    public static void publish(String channel, Frame frame) {
+        long start = System.nanoTime();
         Jedis jedis = jedisPool.getResource();
         try {
-            jedis.publish(channel, message);
+            jedis.publish(channel, frame.toWire());
         } finally {
             jedisPool.returnResource(jedis);
         }
+        Metrics.time(Metrics.Stage.PUBLISH, start);
+    }
+
+    /**
+     * Claim the seat of a disc in a game for an owner, as a lease that expires unless it is renewed.
+     * This implies that the disc is taken by a player. Claiming a seat the owner already holds renews it.
+     *
+     * @return -1 if the seat is held by another owner, else count of seats taken after the claim.
+     */
+    public static short attachDisc(String gameId, short disc, String token) {
+        return attachDisc(gameId, disc, token, seatLeaseMs);
     }
 
     /**
-     * Attach a disc with a game. This implies that the disc is taken by a player.
+     * Claim the seat of a disc in a game for an owner with a lease of the given time
      *
-     * @return -1 if disc could not be attached, else count of discs after attachment.
+     * @return -1 if the seat is held by another owner, else count of seats taken after the claim.
      */
-    public static short attachDisc(String gameId, short disc) {
+    public static short attachDisc(String gameId, short disc, String token, long leaseMs) {
         Jedis jedis = jedisPool.getResource();
         try {
-            String listName = KEY_DISCS + gameId, discString = String.valueOf(disc);
-            List<String> discs = jedis.lrange(listName, 0, -1);
-            if (!discs.contains(discString)) {
-                jedis.lpush(listName, discString);
-                return (short) (discs.size() + 1);
-            }
-            return -1;
+            return ((Long) SCRIPT_SEAT_CLAIM.eval(jedis,
+                    Arrays.asList(getSeatKey(gameId, disc), getSeatKey(gameId, disc == DISC_1 ? DISC_2 : DISC_1)),
+                    Arrays.asList(token, String.valueOf(leaseMs)))).shortValue();
         } finally {
             jedisPool.returnResource(jedis);
         }
     }
 
     /**
-     * Get one of the currently attached discs
+     * Renew the lease of a seat held by an owner
+     *
+     * @return false if the lease has expired or the seat is held by another owner.
      */
-    public static short getAttachedDisc(String gameId) {
+    public static boolean renewDisc(String gameId, short disc, String token) {
         Jedis jedis = jedisPool.getResource();
         try {
-            String listName = KEY_DISCS + gameId;
-            String disc = jedis.lindex(listName, 0);
-            if (disc != null)
-                return Short.valueOf(disc);
-            return -1;
+            return (Long) SCRIPT_SEAT_RENEW.eval(jedis, Collections.singletonList(getSeatKey(gameId, disc)),
+                    Arrays.asList(token, String.valueOf(seatLeaseMs))) == 1;
         } finally {
             jedisPool.returnResource(jedis);
         }
     }
 
+    /**
+     * Get one of the currently attached discs
+     */
+    public static short getAttachedDisc(String gameId) {
+        List<String> seats = getSeats(gameId);
+        if (seats.get(0) != null)
+            return DISC_1;
+        if (seats.get(1) != null)
+            return DISC_2;
+        return -1;
+    }
+
     /**
      * Get the number of currently attached discs
      */
     public static short getAttachedCount(String gameId) {
+        short count = 0;
+        for (String seat : getSeats(gameId))
+            if (seat != null)
+                count++;
+        return count;
+    }
+
+    /**
+     * Release the seat of a disc held by an owner. This implies that the disc is freed up from a player.
+     * A seat that has since been claimed by another owner is left to them.
+     */
+    public static void detachDisc(String gameId, short disc, String token) {
+        Jedis jedis = jedisPool.getResource();
+        try {
+            SCRIPT_SEAT_RELEASE.eval(jedis, Collections.singletonList(getSeatKey(gameId, disc)),
+                    Collections.singletonList(token));
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+    }
+
+    /**
+     * Get the time after which the lease of a seat should be renewed, well before it expires
+     */
+    public static long getSeatRenewIntervalMs() {
+        return seatRenewIntervalMs;
+    }
+
+    /**
+     * Get the time the board of a game is kept without a move, also the lease time of the engine's seat
+     */
+    public static long getBoardIdleTimeoutMs() {
+        return boardIdleTimeoutMs;
+    }
+
+    /**
+     * Create the board of a new game.
+     *
+     * @param lastDisc disc treated as having made the last move, so the other disc moves first.
+     */
+    public static void createBoard(String gameId, short lastDisc) {
+        restoreBoard(gameId, lastDisc, "", false);
+    }
+
+    /**
+     * Restore the board of a game from its stored moves. Nothing is changed if the board already exists.
+     */
+    public static void restoreBoard(String gameId, short lastDisc, String moves, boolean ended) {
+        Jedis jedis = jedisPool.getResource();
+        try {
+            String key = KEY_BOARD + gameId;
+            jedis.hsetnx(key, FIELD_MOVES, moves);
+            if (ended)
+                jedis.hsetnx(key, FIELD_ENDED, "1");
+            // Set last as the script treats a board without a last disc as unknown
+            jedis.hsetnx(key, FIELD_LAST_DISC, String.valueOf(lastDisc));
+            // An abandoned board expires, it is restored from the stored game if the game goes on
+            jedis.pexpire(key, (int) (ended ? boardEndedTimeoutMs : boardIdleTimeoutMs));
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+    }
+
+    /**
+     * Get the moves played on the board of a game
+     *
+     * @return null if Redis does not have the board.
+     */
+    public static String getMoves(String gameId) {
+        Jedis jedis = jedisPool.getResource();
+        try {
+            return jedis.hget(KEY_BOARD + gameId, FIELD_MOVES);
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+    }
+
+    /**
+     * Get the disc that lost a game on its board by running out of time
+     *
+     * @return 0 if the game was not forfeited or Redis does not have the board.
+     */
+    public static short getForfeit(String gameId) {
+        Jedis jedis = jedisPool.getResource();
+        try {
+            String forfeit = jedis.hget(KEY_BOARD + gameId, FIELD_FORFEIT);
+            return forfeit != null ? Short.parseShort(forfeit) : 0;
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+    }
+
+    /**
+     * Check the turn and apply a move to the board of a game in a single atomic round trip
+     */
+    public static MoveResult commitMove(String gameId, short disc, short column, int rows, int columns, int connectCount) {
+        Jedis jedis = jedisPool.getResource();
+        try {
+            List<?> result = (List<?>) SCRIPT_COMMIT_MOVE.eval(jedis, Collections.singletonList(KEY_BOARD + gameId),
+                    Arrays.asList(String.valueOf(disc), String.valueOf(column), String.valueOf(rows),
+                            String.valueOf(columns), String.valueOf(connectCount), String.valueOf(boardIdleTimeoutMs),
+                            String.valueOf(boardEndedTimeoutMs)));
+            return new MoveResult(((Long) result.get(0)).intValue(), ((Long) result.get(1)).shortValue(),
+                    (String) result.get(2));
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+    }
+
+    /**
+     * End the games whose player to move has run out of time, all in a single round trip.
+     * A game is left alone if a move has been made since its clock was started.
+     *
+     * @param moveCounts number of moves of every game when its clock was started.
+     * @return for every game the disc that forfeited it, or 0 if it was left alone.
+     */
+    public static List<Short> forfeit(List<String> gameIds, List<Integer> moveCounts) {
+        List<String> keys = new ArrayList<>(gameIds.size());
+        for (String gameId : gameIds)
+            keys.add(KEY_BOARD + gameId);
+        List<String> args = new ArrayList<>(moveCounts.size() + 1);
+        for (int moveCount : moveCounts)
+            args.add(String.valueOf(moveCount));
+        args.add(String.valueOf(boardEndedTimeoutMs));
+
         Jedis jedis = jedisPool.getResource();
         try {
-            return jedis.llen(KEY_DISCS + gameId).shortValue();
+            List<?> result = (List<?>) SCRIPT_TURN_FORFEIT.eval(jedis, keys, args);
+            List<Short> forfeits = new ArrayList<>(result.size());
+            for (Object disc : result)
+                forfeits.add(((Long) disc).shortValue());
+            return forfeits;
         } finally {
             jedisPool.returnResource(jedis);
         }
     }
 
     /**
-     * Detach a disc from a game. This implies that the disc is freed up from a player.
+     * Delete the boards of games that never started once nobody holds a seat of them, all in a single round trip
+     *
+     * @return for every game {@link #REAP_DELETED}, {@link #REAP_STARTED} or {@link #REAP_HELD}.
      */
-    public static void detachDisc(String gameId, short disc) {
+    public static List<Integer> reapOpenGames(List<String> gameIds) {
+        List<String> keys = new ArrayList<>(gameIds.size() * 3);
+        for (String gameId : gameIds) {
+            keys.add(KEY_BOARD + gameId);
+            keys.add(getSeatKey(gameId, DISC_1));
+            keys.add(getSeatKey(gameId, DISC_2));
+        }
+
         Jedis jedis = jedisPool.getResource();
         try {
-            String listName = KEY_DISCS + gameId;
-            jedis.lrem(listName, 0, String.valueOf(disc));
-            if (jedis.llen(listName) == 0)
-                jedis.del(listName);
+            List<?> result = (List<?>) SCRIPT_OPEN_REAP.eval(jedis, keys, Collections.emptyList());
+            List<Integer> outcomes = new ArrayList<>(result.size());
+            for (Object outcome : result)
+                outcomes.add(((Long) outcome).intValue());
+            return outcomes;
         } finally {
             jedisPool.returnResource(jedis);
         }
     }
 
     /**
-     * Get the disc used in the last move of the game
+     * Add a game to the end of a lobby where its player waits for an opponent
      */
-    public static short getLastDisc(String gameId) {
+    public static void joinLobby(String bucket, String gameId) {
         Jedis jedis = jedisPool.getResource();
         try {
-            return Short.valueOf(jedis.get(KEY_LAST_DISC + gameId));
+            jedis.rpush(KEY_LOBBY + bucket, gameId);
         } finally {
             jedisPool.returnResource(jedis);
         }
     }
 
     /**
-     * Set the disc used in the last move of the game
+     * Remove a game from a lobby, for example when its waiting player has left
      */
-    public static void setLastDisc(String gameId, short disc) {
+    public static void leaveLobby(String bucket, String gameId) {
         Jedis jedis = jedisPool.getResource();
         try {
-            jedis.set(KEY_LAST_DISC + gameId, String.valueOf(disc));
+            jedis.lrem(KEY_LOBBY + bucket, 0, gameId);
         } finally {
             jedisPool.returnResource(jedis);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Atomically take the oldest game of a lobby whose player is still waiting, skipping abandoned games
+     *
+     * @return null if no player is waiting.
+     */
+    public static String pairFromLobby(String bucket) {
+        Jedis jedis = jedisPool.getResource();
+        try {
+            return (String) SCRIPT_LOBBY_PAIR.eval(jedis, Collections.singletonList(KEY_LOBBY + bucket),
+                    Collections.singletonList(KEY_SEAT));
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+    }
+
+    // Seats are separate keys, since a lease expires on its own
+    private static String getSeatKey(String gameId, short disc) {
+        return KEY_SEAT + gameId + ":" + disc;
+    }
+
+    // Both seats of a game in a single round trip, null for a free seat
+    private static List<String> getSeats(String gameId) {
+        Jedis jedis = jedisPool.getResource();
+        try {
+            return jedis.mget(getSeatKey(gameId, DISC_1), getSeatKey(gameId, DISC_2));
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+    }
+
+    /**
+     * Get the number of game channels subscribed on this node
+     */
+    public static synchronized int getSubscriptionCount() {
+        return pubSubRouter != null ? pubSubRouter.getChannelCount() : 0;
+    }
+
+    /**
+     * Get the number of connections currently borrowed from the pool
+     */
+    public static int getActiveConnections() {
+        GenericObjectPool<?> pool = getInternalPool();
+        return pool != null ? pool.getNumActive() : 0;
+    }
+
+    /**
+     * Get the number of connections idle in the pool
+     */
+    public static int getIdleConnections() {
+        GenericObjectPool<?> pool = getInternalPool();
+        return pool != null ? pool.getNumIdle() : 0;
+    }
+
+    // This version of Jedis keeps the pool's counts to itself, they are read from its protected pool
+    private static GenericObjectPool<?> getInternalPool() {
+        if (jedisPool == null)
+            return null;
+        try {
+            return (GenericObjectPool<?>) FIELD_INTERNAL_POOL.get(jedisPool);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    // The router is created on first use since the pool is only available after static injection
+    private static synchronized PubSubRouter getPubSubRouter() {
+        if (pubSubRouter == null)
+            pubSubRouter = new PubSubRouter(jedisPool, ConfigFactory.load().getInt(KEY_PUBSUB_CONNECTIONS));
+        return pubSubRouter;
+    }
+}
@@ -0,0 +1,170 @@
+package common;
+
+
+import play.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel for large numbers of timers that are mostly cancelled before they expire, like turn clocks.
+ * <p>
+ * Timers hang in the slot of the wheel their deadline falls in, with the number of turns of the wheel left before
+ * they are due, so arming and cancelling a timer are constant-time list operations whatever the number of timers.
+ * A single thread advances the wheel by a slot every tick and hands the timers due in it to the handler as one
+ * batch, outside the wheel's lock. Timers expire up to a tick late, never early.
+ */
+public class TimingWheel<T> {
+
+    private final Slot<T>[] slots;
+    private final long tickNanos;
+    private final Consumer<List<T>> handler;
+    private final long startNanos = System.nanoTime();
+    // Ticks the wheel has gone through, the slot of the next one is tick % slots.length
+    private long tick;
+    private int pending;
+
+    /**
+     * A timer armed on the wheel
+     */
+    public final class Timeout {
+        private final T item;
+        private long rounds;
+        private Slot<T> slot;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(T item) {
+            this.item = item;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        /**
+         * Cancel the timer, nothing happens if it has already expired or been cancelled
+         */
+        public void cancel() {
+            synchronized (TimingWheel.this) {
+                if (slot != null) {
+                    slot.remove(this);
+                    pending--;
+                }
+            }
+        }
+    }
+
+    private static final class Slot<T> {
+        private TimingWheel<T>.Timeout head;
+
+        void add(TimingWheel<T>.Timeout timeout) {
+            timeout.slot = this;
+            timeout.next = head;
+            if (head != null)
+                head.previous = timeout;
+            head = timeout;
+        }
+
+        void remove(TimingWheel<T>.Timeout timeout) {
+            if (timeout.previous != null)
+                timeout.previous.next = timeout.next;
+            else
+                head = timeout.next;
+            if (timeout.next != null)
+                timeout.next.previous = timeout.previous;
+            timeout.slot = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+    }
+
+
+    /**
+     * Start a wheel of the given number of slots, turned by a daemon thread of the given name
+     *
+     * @param handler called on the wheel's thread with the items of the timers due in a tick, it should not block.
+     */
+    public TimingWheel(String name, long tickMs, int size, Consumer<List<T>> handler) {
+        @SuppressWarnings("unchecked")
+        Slot<T>[] slots = (Slot<T>[]) new Slot<?>[size];
+        for (int i = 0; i < size; i++)
+            slots[i] = new Slot<>();
+        this.slots = slots;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.handler = handler;
+
+        Thread thread = new Thread(this::turn, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Arm a timer for an item, due after the given delay
+     */
+    public Timeout arm(T item, long delayMs) {
+        Timeout timeout = new Timeout(item);
+        synchronized (this) {
+            // Rounded up to whole ticks past the current time, so the timer never expires early
+            long elapsed = System.nanoTime() - startNanos;
+            long due = Math.max((elapsed + TimeUnit.MILLISECONDS.toNanos(delayMs) + tickNanos - 1) / tickNanos, tick);
+            timeout.rounds = (due - tick) / slots.length;
+            slots[(int) (due % slots.length)].add(timeout);
+            pending++;
+        }
+        return timeout;
+    }
+
+    /**
+     * Get the number of timers armed and not yet expired or cancelled
+     */
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    private void turn() {
+        while (true) {
+            long deadline;
+            synchronized (this) {
+                deadline = startNanos + (tick + 1) * tickNanos;
+            }
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            List<T> expired = expire();
+            if (expired.isEmpty())
+                continue;
+            try {
+                handler.accept(expired);
+            } catch (RuntimeException e) {
+                Logger.error("Could not handle " + expired.size() + " expired timers", e);
+            }
+        }
+    }
+
+    // Takes the timers due in the slot of the current tick and moves on to the next slot
+    private synchronized List<T> expire() {
+        List<T> expired = new ArrayList<>();
+        Slot<T> slot = slots[(int) (tick % slots.length)];
+        for (Timeout timeout = slot.head; timeout != null; ) {
+            Timeout next = timeout.next;
+            if (timeout.rounds == 0) {
+                slot.remove(timeout);
+                pending--;
+                expired.add(timeout.item);
+            } else
+                timeout.rounds--;
+            timeout = next;
+        }
+        tick++;
+        return expired;
+    }
+}
@@ -0,0 +1,64 @@
+package controllers;
+
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.typesafe.config.ConfigFactory;
+import common.BlockingIo;
+import models.Analytics;
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.Result;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Runs the batch jobs over the stored games.
+ * <p>
+ * The endpoints are disabled unless admin.token is set, and then only answer requests carrying the token as
+ * {@code Authorization: Bearer <token>}, since a job scans every stored game.
+ */
+public class AdminController extends Controller {
+
+    private static final String KEY_TOKEN = "admin.token";
+    private static final String KEY_RESTART = "restart";
+    private static final String KEY_RUNNING = "running";
+    private static final String BEARER = "Bearer ";
+
+    private static final byte[] token = ConfigFactory.load().getString(KEY_TOKEN).getBytes(StandardCharsets.UTF_8);
+
+
+    public Result startAnalytics() {
+        Result refused = authorize();
+        if (refused != null)
+            return refused;
+        boolean restart = Boolean.parseBoolean(request().getQueryString(KEY_RESTART));
+        return Analytics.start(restart) ? status(ACCEPTED) : status(CONFLICT);
+    }
+
+    public CompletionStage<Result> getAnalytics() {
+        Result refused = authorize();
+        if (refused != null)
+            return CompletableFuture.completedFuture(refused);
+        return BlockingIo.supply(Analytics::getSummary).thenApply(summary -> {
+            DBObject status = summary != null ? summary : new BasicDBObject();
+            status.put(KEY_RUNNING, Analytics.isRunning());
+            return summary != null ? ok(status.toString()).as(Http.MimeTypes.JSON) : notFound(status.toString()).as(Http.MimeTypes.JSON);
+        });
+    }
+
+    // Returns the result refusing the request, or null if it carries the token
+    private static Result authorize() {
+        if (token.length == 0)
+            return notFound();
+        String header = request().getHeader(AUTHORIZATION);
+        if (header == null || !header.startsWith(BEARER))
+            return unauthorized();
+        // Compared in constant time so the token cannot be guessed from response times
+        byte[] given = header.substring(BEARER.length()).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(token, given) ? null : forbidden();
+    }
+}
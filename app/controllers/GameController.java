@@ -1,26 +1,232 @@
 package controllers;
 
 
+import akka.stream.javadsl.Flow;
+import akka.util.ByteString;
+import common.BlockingIo;
+import models.BitBoard;
 import models.GameModel;
+import models.Rules;
+import org.bson.types.ObjectId;
+import play.libs.EventSource;
+import play.libs.F;
+import play.libs.Json;
 import play.mvc.Controller;
-import play.mvc.LegacyWebSocket;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.WebSocket;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class GameController extends Controller {
 
     private static final String KEY_GAME_ID = "gameId";
     private static final String KEY_DISC = "disc";
+    private static final String KEY_SEQ = "seq";
+    private static final String KEY_BUCKET = "bucket";
+    private static final String KEY_DEPTH = "depth";
+    private static final String KEY_TIME_MS = "timeMs";
+    private static final String KEY_MOVES = "moves";
+    private static final String KEY_ROWS = "rows";
+    private static final String KEY_COLUMNS = "cols";
+    private static final String KEY_CONNECT = "connect";
+    private static final String KEY_FROM = "from";
+    private static final String KEY_SPEED = "speed";
+    private static final String HEADER_LAST_EVENT_ID = "Last-Event-ID";
+    private static final String BUCKET_DEFAULT = "";
+
+
+    public WebSocket getNewGameSocket() {
+        return WebSocket.Text.acceptOrResult(request -> {
+            String bucket = getBucket(request);
+            Rules rules = getRules(request);
+            if (bucket == null || rules == null)
+                return refuse();
+            return accept(() -> new GameModel().getNewGameSocket(bucket, rules, false));
+        });
+    }
+
+    public WebSocket getOpenGameSocket() {
+        return WebSocket.Text.acceptOrResult(request -> {
+            String bucket = getBucket(request);
+            Rules rules = getRules(request);
+            if (bucket == null || rules == null)
+                return refuse();
+            return accept(() -> new GameModel().getOpenGameSocket(bucket, rules, false));
+        });
+    }
+
+    public WebSocket getGameSocketById() {
+        return WebSocket.Text.acceptOrResult(request -> {
+            String gameId = request.getQueryString(KEY_GAME_ID);
+            Short disc = getParam(request, KEY_DISC, null, Short::valueOf);
+            Integer seq = getParam(request, KEY_SEQ, -1, Integer::valueOf);
+            if (!isValidGameId(gameId) || disc == null || seq == null)
+                return refuse();
+            return accept(() -> new GameModel().getGameSocketById(gameId, disc, seq, false));
+        });
+    }
+
+    public WebSocket getWatchSocket() {
+        return WebSocket.Text.acceptOrResult(request -> {
+            String gameId = request.getQueryString(KEY_GAME_ID);
+            if (!isValidGameId(gameId))
+                return refuse();
+            return accept(() -> new GameModel().getWatchSocket(gameId, false));
+        });
+    }
 
+    public WebSocket getAiGameSocket() {
+        return WebSocket.Text.acceptOrResult(request -> {
+            // Missing settings are left to the engine's defaults
+            Integer depth = getDepth(request);
+            Long timeMs = getParam(request, KEY_TIME_MS, 0L, Long::valueOf);
+            if (depth == null || timeMs == null)
+                return refuse();
+            return accept(() -> new GameModel().getAiGameSocket(depth, timeMs, false));
+        });
+    }
+
+    public CompletionStage<Result> solve() {
+        String moves = request().getQueryString(KEY_MOVES);
+        if (moves == null || !Rules.STANDARD.isValidMoves(moves))
+            return CompletableFuture.completedFuture(badRequest());
+
+        // The search runs on the solver's own threads, it fails right away if they are all busy
+        return new GameModel().solve(moves).handle((solution, e) -> {
+            if (e == null)
+                return ok(Json.toJson(solution));
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            return cause instanceof RejectedExecutionException
+                    ? status(SERVICE_UNAVAILABLE) : internalServerError(cause.getMessage());
+        });
+    }
+
+    public CompletionStage<Result> replay() {
+        String gameId = request().getQueryString(KEY_GAME_ID);
+        // A reconnecting event source resumes from the last event it got, whose id is the sequence number
+        String lastEventId = request().getHeader(HEADER_LAST_EVENT_ID);
+        Integer from = lastEventId != null
+                ? parse(lastEventId, Integer::valueOf) : getParam(request(), KEY_FROM, 0, Integer::valueOf);
+        Double factor = getParam(request(), KEY_SPEED, 1.0, Double::valueOf);
+        if (!isValidGameId(gameId) || from == null || factor == null || !(factor > 0))
+            return CompletableFuture.completedFuture(badRequest());
+
+        // Each message is sent as a server-sent event in a chunk of its own as the client reads it
+        return BlockingIo.supply(() -> new GameModel().getReplay(gameId, from, factor)).thenApply(replay ->
+                replay != null ? ok().chunked(replay
+                        .map(gameMessage -> EventSource.Event.event(gameMessage.toString())
+                                .withId(String.valueOf(gameMessage.getSeq())))
+                        .via(EventSource.flow())).as(Http.MimeTypes.EVENT_STREAM) : notFound());
+    }
+
+    public WebSocket getNewGameBinarySocket() {
+        return WebSocket.Binary.acceptOrResult(request -> {
+            String bucket = getBucket(request);
+            Rules rules = getRules(request);
+            if (bucket == null || rules == null)
+                return refuse();
+            return acceptBinary(() -> new GameModel().getNewGameSocket(bucket, rules, true));
+        });
+    }
+
+    public WebSocket getOpenGameBinarySocket() {
+        return WebSocket.Binary.acceptOrResult(request -> {
+            String bucket = getBucket(request);
+            Rules rules = getRules(request);
+            if (bucket == null || rules == null)
+                return refuse();
+            return acceptBinary(() -> new GameModel().getOpenGameSocket(bucket, rules, true));
+        });
+    }
+
+    public WebSocket getGameBinarySocketById() {
+        return WebSocket.Binary.acceptOrResult(request -> {
+            String gameId = request.getQueryString(KEY_GAME_ID);
+            Short disc = getParam(request, KEY_DISC, null, Short::valueOf);
+            Integer seq = getParam(request, KEY_SEQ, -1, Integer::valueOf);
+            if (!isValidGameId(gameId) || disc == null || seq == null)
+                return refuse();
+            return acceptBinary(() -> new GameModel().getGameSocketById(gameId, disc, seq, true));
+        });
+    }
+
+    public WebSocket getWatchBinarySocket() {
+        return WebSocket.Binary.acceptOrResult(request -> {
+            String gameId = request.getQueryString(KEY_GAME_ID);
+            if (!isValidGameId(gameId))
+                return refuse();
+            return acceptBinary(() -> new GameModel().getWatchSocket(gameId, true));
+        });
+    }
+
+    // A socket that cannot be had, for example a disc already taken, is forbidden instead of opened.
+    // Opening a socket saves games and claims seats, which is done off the dispatcher like the socket's own calls.
+    private static <A> CompletionStage<F.Either<Result, Flow<A, A, ?>>> accept(Supplier<Flow<A, A, ?>> socket) {
+        return BlockingIo.supply(socket).thenApply(flow ->
+                flow != null ? F.Either.Right(flow) : F.Either.Left(forbidden()));
+    }
+
+    // The game actor exchanges byte arrays with binary clients
+    private static CompletionStage<F.Either<Result, Flow<ByteString, ByteString, ?>>> acceptBinary(
+            Supplier<Flow<byte[], byte[], ?>> socket) {
+        return accept(() -> {
+            Flow<byte[], byte[], ?> flow = socket.get();
+            return flow != null
+                    ? Flow.<ByteString>create().map(ByteString::toArray).via(flow).map(ByteString::fromArray) : null;
+        });
+    }
+
+    // A request with malformed parameters is refused before anything is looked up
+    private static <A> CompletionStage<F.Either<Result, A>> refuse() {
+        return CompletableFuture.completedFuture(F.Either.Left(badRequest()));
+    }
+
+    // Returns null if the bucket is not a valid lobby name
+    private static String getBucket(Http.RequestHeader request) {
+        String bucket = request.getQueryString(KEY_BUCKET);
+        if (bucket == null)
+            return BUCKET_DEFAULT;
+        return GameModel.isValidBucket(bucket) ? bucket : null;
+    }
+
+    // Returns null if the requested board is not supported, missing values are those of the standard board
+    private static Rules getRules(Http.RequestHeader request) {
+        Integer rows = getParam(request, KEY_ROWS, Rules.STANDARD.getRows(), Integer::valueOf);
+        Integer columns = getParam(request, KEY_COLUMNS, Rules.STANDARD.getColumns(), Integer::valueOf);
+        Integer connect = getParam(request, KEY_CONNECT, Rules.STANDARD.getConnect(), Integer::valueOf);
+        return rows != null && columns != null && connect != null && Rules.isSupported(rows, columns, connect)
+                ? Rules.of(rows, columns, connect) : null;
+    }
+
+    // Returns 0 for the engine's default if missing, null if it is not a number of moves left on the standard board
+    private static Integer getDepth(Http.RequestHeader request) {
+        Integer depth = getParam(request, KEY_DEPTH, 0, Integer::valueOf);
+        if (depth == null || request.getQueryString(KEY_DEPTH) == null)
+            return depth;
+        return depth >= 1 && depth <= BitBoard.CELLS ? depth : null;
+    }
 
-    public LegacyWebSocket<String> getNewGameSocket() {
-        return new GameModel().getNewGameSocket();
+    private static boolean isValidGameId(String gameId) {
+        return gameId != null && ObjectId.isValid(gameId);
     }
 
-    public LegacyWebSocket<String> getOpenGameSocket() {
-        return new GameModel().getOpenGameSocket();
+    // Returns the default value for a missing parameter, null for one that cannot be parsed
+    private static <T> T getParam(Http.RequestHeader request, String key, T defaultValue, Function<String, T> parser) {
+        String value = request.getQueryString(key);
+        return value != null ? parse(value, parser) : defaultValue;
     }
 
-    public LegacyWebSocket<String> getGameSocketById() {
-        return new GameModel().getGameSocketById(request().getQueryString(KEY_GAME_ID),
-                Short.valueOf(request().getQueryString(KEY_DISC)));
+    private static <T> T parse(String value, Function<String, T> parser) {
+        try {
+            return parser.apply(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,16 @@
+package controllers;
+
+
+import common.Metrics;
+import play.mvc.Controller;
+import play.mvc.Result;
+
+/**
+ * Exposes the node's metrics for Prometheus to scrape.
+ */
+public class MetricsController extends Controller {
+
+    public Result metrics() {
+        return ok(Metrics.scrape()).as(Metrics.CONTENT_TYPE);
+    }
+}
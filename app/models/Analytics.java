@@ -0,0 +1,429 @@
+package models;
+
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import common.MongoUtils;
+import models.entities.Game;
+import org.bson.types.ObjectId;
+import play.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Batch job replaying every stored game, active and archived, to compute statistics of how games are played:
+ * the first player's win rate per opening, the average length of ended games, how often every column is played,
+ * how many games are abandoned and along which direction games are won.
+ * <p>
+ * The games are streamed through a cursor in id order and handed in chunks to a pool of threads, with a bounded
+ * number of chunks in flight, so the job runs in the same memory however many games there are. The statistics of the
+ * chunks are added up in the order the chunks were read and written to a checkpoint with the id of the last game
+ * they cover, from which a stopped job resumes. The result is written to the summary document of the stats collection.
+ * <p>
+ * Start it on one node with {@code POST /admin/analytics}, or offline with {@code sbt "runMain models.Analytics"}.
+ * Games archived while the job runs may be counted twice or not at all.
+ */
+public class Analytics {
+
+    private static final String KEY_THREADS = "analytics.threads";
+    private static final String KEY_CHUNK_SIZE = "analytics.chunkSize";
+    private static final String KEY_CHECKPOINT_INTERVAL = "analytics.checkpointInterval";
+    private static final String KEY_OPENING_PLIES = "analytics.openingPlies";
+    private static final String COLLECTION_STATS = "stats";
+    private static final String ID_SUMMARY = "summary";
+    private static final String ID_CHECKPOINT = "checkpoint";
+    private static final String SOURCE_GAMES = "game";
+    private static final String SOURCE_ARCHIVE = "archive";
+    private static final String ARG_RESTART = "restart";
+
+    private static final int threads;
+    private static final int chunkSize;
+    private static final long checkpointIntervalMs;
+    private static final int openingPlies;
+    private static final AtomicBoolean running = new AtomicBoolean();
+
+    static {
+        Config config = ConfigFactory.load();
+        int configured = config.getInt(KEY_THREADS);
+        threads = configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
+        chunkSize = config.getInt(KEY_CHUNK_SIZE);
+        checkpointIntervalMs = config.getDuration(KEY_CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+        openingPlies = config.getInt(KEY_OPENING_PLIES);
+    }
+
+    private final ExecutorService workers;
+    // Games not ended are counted as abandoned by their archive time at the start of the run
+    private final long now = System.currentTimeMillis();
+    private Stats total;
+    private String source;
+    private ObjectId after;
+    private long checkpointAt;
+
+
+    private Analytics(DBObject checkpoint) {
+        AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "analytics-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        total = checkpoint != null ? Stats.fromDocument((DBObject) checkpoint.get("stats")) : new Stats();
+        source = checkpoint != null ? (String) checkpoint.get("source") : SOURCE_GAMES;
+        after = checkpoint != null ? (ObjectId) checkpoint.get("after") : null;
+    }
+
+
+    public static void main(String[] args) {
+        run(args.length > 0 && args[0].equals(ARG_RESTART));
+        System.out.println(getSummary());
+    }
+
+    /**
+     * Start the job on a thread of its own, from its checkpoint if a previous run was stopped
+     *
+     * @param restart whether to drop the checkpoint and start over.
+     * @return false if the job is already running on this node.
+     */
+    public static boolean start(boolean restart) {
+        // Claimed before the thread starts, so of two requests at the same time only one is told it started the job
+        if (!running.compareAndSet(false, true))
+            return false;
+        Thread thread = new Thread(() -> runClaimed(restart), "analytics");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Check whether the job is running on this node
+     */
+    public static boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Get the summary written by the last completed run
+     *
+     * @return null if the job has never completed.
+     */
+    public static DBObject getSummary() {
+        return getCollection().findOne(new BasicDBObject("_id", ID_SUMMARY));
+    }
+
+    /**
+     * Run the job on the calling thread, from its checkpoint if a previous run was stopped.
+     * Does nothing if the job is already running on this node.
+     *
+     * @param restart whether to drop the checkpoint and start over.
+     */
+    public static void run(boolean restart) {
+        if (running.compareAndSet(false, true))
+            runClaimed(restart);
+    }
+
+    // Runs the job once the caller has set the running flag, which is cleared when the job stops
+    private static void runClaimed(boolean restart) {
+        long start = System.nanoTime();
+        try {
+            DBObject checkpoint = restart ? null : getCollection().findOne(new BasicDBObject("_id", ID_CHECKPOINT));
+            if (checkpoint != null)
+                Logger.info("Resuming analytics of the {} collection after game {}",
+                        checkpoint.get("source"), checkpoint.get("after"));
+            new Analytics(checkpoint).replayAll();
+            Logger.info("Analytics completed in {} s", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // The games up to the last checkpoint are not read again by the next run
+            Logger.error("Analytics stopped", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void replayAll() throws InterruptedException {
+        checkpointAt = System.currentTimeMillis() + checkpointIntervalMs;
+        try {
+            if (source.equals(SOURCE_GAMES)) {
+                scan(Game.scan(after, chunkSize), Game::fromScan);
+                source = SOURCE_ARCHIVE;
+                after = null;
+            }
+            scan(GameArchive.scan(after, chunkSize), Game::fromArchive);
+        } finally {
+            workers.shutdownNow();
+        }
+
+        DBCollection collection = getCollection();
+        collection.save(total.toSummary(ID_SUMMARY, System.currentTimeMillis()));
+        collection.remove(new BasicDBObject("_id", ID_CHECKPOINT));
+    }
+
+    // Reads the games of a cursor in chunks and adds them up, a chunk on every worker and as many waiting
+    private void scan(DBCursor cursor, Function<DBObject, Game> reader) throws InterruptedException {
+        Deque<Chunk> pending = new ArrayDeque<>();
+        try {
+            List<DBObject> documents = new ArrayList<>(chunkSize);
+            while (cursor.hasNext()) {
+                documents.add(cursor.next());
+                if (documents.size() < chunkSize && cursor.hasNext())
+                    continue;
+
+                if (pending.size() == threads * 2)
+                    add(pending.poll());
+                List<DBObject> chunk = documents;
+                pending.add(new Chunk((ObjectId) chunk.get(chunk.size() - 1).get("_id"),
+                        workers.submit(() -> replay(chunk, reader))));
+                documents = new ArrayList<>(chunkSize);
+            }
+            while (!pending.isEmpty())
+                add(pending.poll());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Stats replay(List<DBObject> documents, Function<DBObject, Game> reader) {
+        Stats stats = new Stats();
+        for (DBObject document : documents)
+            stats.add(reader.apply(document), now);
+        return stats;
+    }
+
+    // Chunks are added in the order they were read, so the checkpoint covers every game up to its id
+    private void add(Chunk chunk) throws InterruptedException {
+        try {
+            total.add(chunk.stats.get());
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not replay games up to " + chunk.last, e.getCause());
+        }
+        after = chunk.last;
+        if (System.currentTimeMillis() >= checkpointAt) {
+            getCollection().save(new BasicDBObject("_id", ID_CHECKPOINT).append("source", source)
+                    .append("after", after).append("stats", total.toDocument()));
+            checkpointAt = System.currentTimeMillis() + checkpointIntervalMs;
+        }
+    }
+
+    private static DBCollection getCollection() {
+        return MongoUtils.getDatastore().getDB().getCollection(COLLECTION_STATS);
+    }
+
+
+    private static class Chunk {
+        final ObjectId last;
+        final Future<Stats> stats;
+
+        Chunk(ObjectId last, Future<Stats> stats) {
+            this.last = last;
+            this.stats = stats;
+        }
+    }
+
+    /**
+     * Counts over a set of games, added up from the counts of its parts
+     */
+    static class Stats {
+
+        // Directions of a connection as (row, column) steps, row 0 at the top
+        private static final int[][] DIRECTIONS = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+        private static final String[] ALIGNMENTS = {"E-W", "N-S", "NW-SE", "NE-SW"};
+
+        long games;
+        long firstWins;
+        long secondWins;
+        // Wins by a connection on the board, which the alignments are shares of, as opposed to forfeits
+        long boardWins;
+        long draws;
+        long abandoned;
+        // Moves of the games that have ended
+        long endedMoves;
+        final long[] columns = new long[Rules.MAX_SIZE];
+        final long[] alignments = new long[ALIGNMENTS.length];
+        // Games that have ended and games won by the first player, by board and opening moves
+        final Map<String, long[]> openings = new HashMap<>();
+
+
+        void add(Game game, long now) {
+            Rules rules = game.getRules();
+            String moves = game.getMoves();
+            games++;
+            for (int i = 0; i < moves.length(); i++)
+                columns[moves.charAt(i) - '0']++;
+
+            boolean firstWin = false;
+            if (rules.isWin(moves)) {
+                firstWin = moves.length() % 2 == 1;
+                if (firstWin)
+                    firstWins++;
+                else
+                    secondWins++;
+                boardWins++;
+                addAlignments(rules, moves);
+            } else if (game.getForfeit() != 0) {
+                // The player who ran out of time loses
+                firstWin = game.getForfeit() != 1;
+                if (firstWin)
+                    firstWins++;
+                else
+                    secondWins++;
+            } else if (moves.length() == rules.getRows() * rules.getColumns())
+                draws++;
+            else {
+                // Games still being played count as neither ended nor abandoned
+                if (game.isIdle(now))
+                    abandoned++;
+                return;
+            }
+
+            endedMoves += moves.length();
+            if (moves.length() >= openingPlies) {
+                long[] opening = openings.computeIfAbsent(rules + "/" + moves.substring(0, openingPlies),
+                        key -> new long[2]);
+                opening[0]++;
+                if (firstWin)
+                    opening[1]++;
+            }
+        }
+
+        void add(Stats stats) {
+            games += stats.games;
+            firstWins += stats.firstWins;
+            secondWins += stats.secondWins;
+            boardWins += stats.boardWins;
+            draws += stats.draws;
+            abandoned += stats.abandoned;
+            endedMoves += stats.endedMoves;
+            for (int i = 0; i < columns.length; i++)
+                columns[i] += stats.columns[i];
+            for (int i = 0; i < alignments.length; i++)
+                alignments[i] += stats.alignments[i];
+            for (Map.Entry<String, long[]> entry : stats.openings.entrySet()) {
+                long[] opening = openings.computeIfAbsent(entry.getKey(), key -> new long[2]);
+                opening[0] += entry.getValue()[0];
+                opening[1] += entry.getValue()[1];
+            }
+        }
+
+        // Counts every direction along which the last move connects, through the cells of its connections
+        private void addAlignments(Rules rules, String moves) {
+            boolean[][] win = new boolean[rules.getRows()][rules.getColumns()];
+            for (short[] cell : rules.winCells(moves))
+                win[cell[0]][cell[1]] = true;
+
+            int column = moves.charAt(moves.length() - 1) - '0', row = rules.getRows();
+            for (int i = 0; i < moves.length(); i++)
+                if (moves.charAt(i) - '0' == column)
+                    row--;
+
+            for (int d = 0; d < DIRECTIONS.length; d++) {
+                int length = 1;
+                for (int sign = -1; sign <= 1; sign += 2) {
+                    int r = row + sign * DIRECTIONS[d][0], c = column + sign * DIRECTIONS[d][1];
+                    while (r >= 0 && r < win.length && c >= 0 && c < win[r].length && win[r][c]) {
+                        length++;
+                        r += sign * DIRECTIONS[d][0];
+                        c += sign * DIRECTIONS[d][1];
+                    }
+                }
+                if (length >= rules.getConnect())
+                    alignments[d]++;
+            }
+        }
+
+        long getEnded() {
+            return firstWins + secondWins + draws;
+        }
+
+        DBObject toDocument() {
+            BasicDBList openingList = new BasicDBList();
+            for (Map.Entry<String, long[]> entry : openings.entrySet())
+                openingList.add(new BasicDBObject("opening", entry.getKey())
+                        .append("games", entry.getValue()[0]).append("firstWins", entry.getValue()[1]));
+            return new BasicDBObject("games", games).append("firstWins", firstWins).append("secondWins", secondWins)
+                    .append("boardWins", boardWins).append("draws", draws).append("abandoned", abandoned).append("endedMoves", endedMoves)
+                    .append("columns", toList(columns)).append("alignments", toList(alignments))
+                    .append("openings", openingList);
+        }
+
+        static Stats fromDocument(DBObject document) {
+            Stats stats = new Stats();
+            stats.games = ((Number) document.get("games")).longValue();
+            stats.firstWins = ((Number) document.get("firstWins")).longValue();
+            stats.secondWins = ((Number) document.get("secondWins")).longValue();
+            // Checkpoints without the count fall back to all of their wins
+            Number boardWins = (Number) document.get("boardWins");
+            stats.boardWins = boardWins != null ? boardWins.longValue() : stats.firstWins + stats.secondWins;
+            stats.draws = ((Number) document.get("draws")).longValue();
+            stats.abandoned = ((Number) document.get("abandoned")).longValue();
+            stats.endedMoves = ((Number) document.get("endedMoves")).longValue();
+            fromList((List<?>) document.get("columns"), stats.columns);
+            fromList((List<?>) document.get("alignments"), stats.alignments);
+            for (Object item : (List<?>) document.get("openings")) {
+                DBObject opening = (DBObject) item;
+                stats.openings.put((String) opening.get("opening"), new long[]{
+                        ((Number) opening.get("games")).longValue(), ((Number) opening.get("firstWins")).longValue()});
+            }
+            return stats;
+        }
+
+        // The counts with the rates worked out from them
+        DBObject toSummary(String id, long finishedOn) {
+            long ended = getEnded(), moves = 0;
+            for (long count : columns)
+                moves += count;
+
+            BasicDBList columnFrequency = new BasicDBList();
+            for (long count : columns)
+                columnFrequency.add(rate(count, moves));
+            BasicDBObject alignmentShare = new BasicDBObject();
+            for (int i = 0; i < ALIGNMENTS.length; i++)
+                alignmentShare.append(ALIGNMENTS[i], rate(alignments[i], boardWins));
+            BasicDBList openingWinRates = new BasicDBList();
+            for (Map.Entry<String, long[]> entry : openings.entrySet())
+                openingWinRates.add(new BasicDBObject("opening", entry.getKey()).append("games", entry.getValue()[0])
+                        .append("firstPlayerWinRate", rate(entry.getValue()[1], entry.getValue()[0])));
+
+            return new BasicDBObject("_id", id).append("finishedOn", finishedOn)
+                    .append("firstPlayerWinRate", rate(firstWins, ended))
+                    .append("averageLength", ended > 0 ? (double) endedMoves / ended : 0)
+                    .append("abandonmentRate", rate(abandoned, ended + abandoned))
+                    .append("columnFrequency", columnFrequency).append("alignments", alignmentShare)
+                    .append("openings", openingWinRates).append("counts", toDocument());
+        }
+
+        private static double rate(long count, long total) {
+            return total > 0 ? (double) count / total : 0;
+        }
+
+        private static BasicDBList toList(long[] counts) {
+            BasicDBList list = new BasicDBList();
+            for (long count : counts)
+                list.add(count);
+            return list;
+        }
+
+        private static void fromList(List<?> list, long[] counts) {
+            for (int i = 0; i < counts.length && i < list.size(); i++)
+                counts[i] = ((Number) list.get(i)).longValue();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package models;
+
+
+/**
+ * Bitboards of the standard 6x7 connect 4 board for the engine's search, one long per disc.
+ * Games are played on boards of any size with {@link Rules} and {@link Board}, this class only serves the search.
+ * <p>
+ * Cells are laid out column by column with one spare sentinel bit on top of every column:
+ * bit {@code column * HEIGHT + h} is the cell {@code h} rows above the bottom of {@code column}.
+ * The sentinel row keeps shifted lines from wrapping into the next column, so a connection can be found
+ * with a few shift-and-mask operations instead of walking the grid. All methods are static and allocation-free.
+ */
+public final class BitBoard {
+
+    public static final int HEIGHT = GameModel.ROWS + 1;
+    public static final int COLUMNS = GameModel.COLUMNS;
+    public static final int CELLS = GameModel.ROWS * GameModel.COLUMNS;
+
+    // Shifts between neighbouring cells of a line for each alignment
+    public static final int SHIFT_E_W = HEIGHT;
+    public static final int SHIFT_N_S = 1;
+    public static final int SHIFT_NW_SE = HEIGHT - 1;
+    public static final int SHIFT_NE_SW = HEIGHT + 1;
+
+    private static final long BOTTOM_MASK = bottomMask();
+    private static final long BOARD_MASK = BOTTOM_MASK * ((1L << GameModel.ROWS) - 1);
+
+
+    private BitBoard() {
+    }
+
+    /**
+     * Get the single bit of the cell a disc dropped in the column lands on.
+     * The column must be playable.
+     */
+    public static long moveBit(long occupied, int column) {
+        return (occupied + bottomMask(column)) & columnMask(column);
+    }
+
+    /**
+     * Get the grid column of a single cell bit
+     */
+    public static short column(long bit) {
+        return (short) (Long.numberOfTrailingZeros(bit) / HEIGHT);
+    }
+
+    /**
+     * Check whether the board of a disc holds a connection in any alignment
+     */
+    public static boolean isWin(long board) {
+        return lineStarts(board, SHIFT_E_W) != 0 || lineStarts(board, SHIFT_N_S) != 0
+                || lineStarts(board, SHIFT_NW_SE) != 0 || lineStarts(board, SHIFT_NE_SW) != 0;
+    }
+
+    /**
+     * Get the bits of the cells a disc can be dropped on, one per column that is not full
+     */
+    public static long playableCells(long occupied) {
+        return (occupied + BOTTOM_MASK) & BOARD_MASK;
+    }
+
+    /**
+     * Get the mask of all cells of a column
+     */
+    public static long columnMask(int column) {
+        return ((1L << GameModel.ROWS) - 1) << column * HEIGHT;
+    }
+
+    /**
+     * Get the empty cells that would complete a connection for the board of a disc
+     */
+    public static long winningCells(long board, long occupied) {
+        // Vertical
+        long cells = (board << 1) & (board << 2) & (board << 3);
+        cells |= winningCells(board, SHIFT_E_W) | winningCells(board, SHIFT_NW_SE) | winningCells(board, SHIFT_NE_SW);
+        return cells & (BOARD_MASK ^ occupied);
+    }
+
+    /**
+     * Get a key that is unique for every position, given the board of the disc to play and the occupied cells
+     */
+    public static long key(long board, long occupied) {
+        return board + occupied;
+    }
+
+    // Returns a bit for the first cell of every run of CONNECT_COUNT discs along the shift
+    private static long lineStarts(long board, int shift) {
+        long pairs = board & (board >>> shift);
+        return pairs & (pairs >>> 2 * shift);
+    }
+
+    // Returns the cells completing three discs in a line along the shift, whichever end or gap is missing
+    private static long winningCells(long board, int shift) {
+        long pairs = (board << shift) & (board << 2 * shift);
+        long cells = pairs & (board << 3 * shift);
+        cells |= pairs & (board >>> shift);
+        pairs = (board >>> shift) & (board >>> 2 * shift);
+        cells |= pairs & (board << shift);
+        cells |= pairs & (board >>> 3 * shift);
+        return cells;
+    }
+
+    private static long bottomMask(int column) {
+        return 1L << column * HEIGHT;
+    }
+
+    private static long bottomMask() {
+        long mask = 0;
+        for (int column = 0; column < GameModel.COLUMNS; column++)
+            mask |= bottomMask(column);
+        return mask;
+    }
+}
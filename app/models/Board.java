@@ -0,0 +1,76 @@
+package models;
+
+
+/**
+ * Board of a game kept up to date one move at a time, with a bitboard per disc and the height of every column.
+ * A move sets a single bit and only the lines through it are checked for a connection, so it costs the same however
+ * long the game is. Get one from {@link Rules#newBoard()}. Boards are not thread safe.
+ */
+public abstract class Board {
+
+    final Rules rules;
+    private final int[] heights;
+    private int moveCount;
+
+
+    Board(Rules rules) {
+        this.rules = rules;
+        heights = new int[rules.columns];
+    }
+
+    public Rules getRules() {
+        return rules;
+    }
+
+    public int getMoveCount() {
+        return moveCount;
+    }
+
+    /**
+     * Check whether a disc can still be dropped in a column
+     */
+    public boolean canPlay(int column) {
+        return column >= 0 && column < rules.columns && heights[column] < rules.rows;
+    }
+
+    /**
+     * Drop the disc of the player to move in a column, disc 1 moving first
+     *
+     * @return the row the disc lands on, where row 0 is the top.
+     * @throws IllegalArgumentException if the column cannot be played.
+     */
+    public int play(int column) {
+        if (!canPlay(column))
+            throw new IllegalArgumentException("Column " + column + " cannot be played");
+        int h = heights[column]++;
+        set(moveCount++ % 2, rules.bit(column, h));
+        return rules.rows - 1 - h;
+    }
+
+    /**
+     * Check whether the last move made a connection
+     */
+    public abstract boolean isWin();
+
+    /**
+     * Get the (row, column) cells of the connection made by the last move, where row 0 is the top
+     */
+    public abstract short[][] winCells();
+
+    /**
+     * Check whether every cell of the board is taken
+     */
+    public boolean isFull() {
+        return moveCount == rules.rows * rules.columns;
+    }
+
+    /**
+     * Check whether the last move ended the game with a connection or a full board
+     */
+    public boolean isEnded() {
+        return isFull() || isWin();
+    }
+
+    // Sets the bit of a move on the board of the player who made it, player 0 holding disc 1
+    abstract void set(int player, int bit);
+}
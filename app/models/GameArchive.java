@@ -0,0 +1,174 @@
+package models;
+
+
+import com.google.inject.Inject;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import common.MongoUtils;
+import models.entities.Game;
+import org.bson.types.ObjectId;
+import play.Logger;
+import play.inject.ApplicationLifecycle;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold storage for games that have ended or gone idle.
+ * A background thread moves such games in batches from the game collection to the archive collection, where a game is
+ * a small document holding its moves packed at 4 bits each (see {@link Game#toArchive()}), found by its id through
+ * the collection's _id index. The game collection and its indexes then only hold the games that are being played.
+ * <p>
+ * Every node runs the archiver. Archiving is idempotent and a game is only removed from the game collection if it has
+ * not been written since it was archived, so nodes may archive the same games at the same time. An archived game that
+ * had not ended is brought back to the game collection when it is loaded, so it can be played on.
+ */
+public class GameArchive {
+
+    private static final String KEY_ENABLED = "archive.enabled";
+    private static final String KEY_INTERVAL = "archive.interval";
+    private static final String KEY_BATCH_SIZE = "archive.batchSize";
+    private static final String KEY_IDLE_TIMEOUT = "archive.idleTimeout";
+    private static final String KEY_ENDED_DELAY = "archive.endedDelay";
+    private static final String COLLECTION_ARCHIVE = "archive";
+
+    private static final int batchSize;
+    private static final long idleTimeoutMs;
+    private static final long endedDelayMs;
+    private static final ScheduledExecutorService archiver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "game-archiver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        Config config = ConfigFactory.load();
+        batchSize = config.getInt(KEY_BATCH_SIZE);
+        idleTimeoutMs = config.getDuration(KEY_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        endedDelayMs = config.getDuration(KEY_ENDED_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Start archiving with the application and stop when it stops.
+     * Only the application starts the archiver, so offline jobs such as {@link Analytics} never move games they scan.
+     */
+    @Inject
+    private static void start(ApplicationLifecycle lifecycle) {
+        Config config = ConfigFactory.load();
+        if (config.getBoolean(KEY_ENABLED)) {
+            long interval = config.getDuration(KEY_INTERVAL, TimeUnit.MILLISECONDS);
+            archiver.scheduleWithFixedDelay(GameArchive::archiveAll, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        lifecycle.addStopHook(() -> CompletableFuture.runAsync(archiver::shutdownNow));
+    }
+
+    /**
+     * Get a game from the archive. A game that has not ended is moved back to the game collection first.
+     *
+     * @return null if the game is not in the archive.
+     */
+    public static Game findById(String id) {
+        Game game = read(id);
+        if (game != null && !game.isEnded()) {
+            game.save();
+            getCollection().remove(new BasicDBObject("_id", new ObjectId(id)));
+            Logger.debug("Brought game {} back from the archive", id);
+        }
+        return game;
+    }
+
+    /**
+     * Read a game from the archive and leave it there
+     *
+     * @return null if the game is not in the archive.
+     */
+    public static Game read(String id) {
+        DBObject document = getCollection().findOne(new BasicDBObject("_id", new ObjectId(id)));
+        return document != null ? Game.fromArchive(document) : null;
+    }
+
+    /**
+     * Stream the archived games after an id in id order through a cursor fetching them in batches.
+     * Read the documents with {@link Game#fromArchive} and close the cursor when done.
+     *
+     * @param after null to start with the first game.
+     */
+    public static DBCursor scan(ObjectId after, int batchSize) {
+        BasicDBObject query = after != null
+                ? new BasicDBObject("_id", new BasicDBObject("$gt", after)) : new BasicDBObject();
+        return getCollection().find(query).sort(new BasicDBObject("_id", 1)).batchSize(batchSize);
+    }
+
+    /**
+     * Check if a game with the given Id is in the archive
+     */
+    public static boolean exists(String id) {
+        return getCollection().count(new BasicDBObject("_id", new ObjectId(id))) > 0;
+    }
+
+    /**
+     * Get the time after which a game that has not ended is archived, counted from its last write
+     */
+    public static long getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    /**
+     * Get the time after which an ended game is archived
+     */
+    public static long getEndedDelayMs() {
+        return endedDelayMs;
+    }
+
+    /**
+     * Archive batches of games until none are left to archive
+     *
+     * @return number of archived games.
+     */
+    public static int archiveAll() {
+        int count = 0;
+        try {
+            int archived;
+            do {
+                archived = archive(System.currentTimeMillis());
+                count += archived;
+            } while (archived == batchSize);
+            if (count > 0)
+                Logger.info("Archived {} games", count);
+        } catch (RuntimeException e) {
+            // The games are left where they are and tried again next time
+            Logger.error("Could not archive games", e);
+        }
+        return count;
+    }
+
+    // Writes a batch to the archive before removing it from the game collection, so a game is never in neither
+    private static int archive(long now) {
+        List<Game> games = Game.findArchivable(now, batchSize);
+        if (games.isEmpty())
+            return 0;
+
+        BulkWriteOperation bulk = getCollection().initializeUnorderedBulkOperation();
+        for (Game game : games) {
+            DBObject document = game.toArchive();
+            bulk.find(new BasicDBObject("_id", document.get("_id"))).upsert().replaceOne(document);
+        }
+        bulk.execute();
+
+        Game.removeArchived(games, now);
+        return games.size();
+    }
+
+    private static DBCollection getCollection() {
+        return MongoUtils.getDatastore().getDB().getCollection(COLLECTION_ARCHIVE);
+    }
+}
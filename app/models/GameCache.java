@@ -0,0 +1,263 @@
+package models;
+
+
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import common.Metrics;
+import models.entities.Game;
+import play.Logger;
+import play.inject.ApplicationLifecycle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node-local cache of active games with write-behind persistence.
+ * Changed games are marked dirty and written to Mongo in coalesced batches by a single background thread,
+ * so several moves of a game between two flushes cost one targeted update. Games are flushed right away when they end
+ * and when the application stops, and are evicted once idle or when the cache grows past its maximum size.
+ */
+public class GameCache {
+
+    private static final String KEY_MAX_SIZE = "gameCache.maxSize";
+    private static final String KEY_IDLE_TIMEOUT = "gameCache.idleTimeout";
+    private static final String KEY_FLUSH_INTERVAL = "gameCache.flushInterval";
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    private static final int maxSize;
+    private static final long idleTimeout;
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "game-cache-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static volatile long lastFlushMillis;
+    private static volatile int lastFlushCount;
+
+    static {
+        Config config = ConfigFactory.load();
+        maxSize = config.getInt(KEY_MAX_SIZE);
+        idleTimeout = config.getDuration(KEY_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        long flushInterval = config.getDuration(KEY_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        flusher.scheduleWithFixedDelay(() -> {
+            flushDirty();
+            evict();
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private static class Entry {
+        final Game game;
+        volatile long accessedOn = System.currentTimeMillis();
+        // Held by the entity owning the game in clustered mode, which keeps changing it without getting it again
+        volatile boolean held;
+
+        Entry(Game game) {
+            this.game = game;
+        }
+    }
+
+
+    /**
+     * Flush all pending writes when the application stops
+     */
+    @Inject
+    private static void registerStopHook(ApplicationLifecycle lifecycle) {
+        lifecycle.addStopHook(() -> CompletableFuture.runAsync(GameCache::flushAll));
+    }
+
+    /**
+     * Get a game from the cache, loading it from Mongo on a miss
+     *
+     * @return null if the game does not exist.
+     */
+    public static Game get(String id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            long start = System.nanoTime();
+            Game game = Game.findById(id);
+            Metrics.time(Metrics.Stage.GAME_LOAD, start);
+            if (game == null)
+                return null;
+            Entry loaded = new Entry(game);
+            entry = entries.putIfAbsent(id, loaded);
+            if (entry == null)
+                entry = loaded;
+        }
+        entry.accessedOn = System.currentTimeMillis();
+        return entry.game;
+    }
+
+    /**
+     * Load a game from Mongo for the entity owning it, replacing any copy cached before the entity started, and keep
+     * it cached until it is released so the entity's changes are always written
+     *
+     * @return null if the game does not exist.
+     */
+    public static Game hold(String id) {
+        long start = System.nanoTime();
+        Game game = Game.findById(id);
+        Metrics.time(Metrics.Stage.GAME_LOAD, start);
+        if (game == null)
+            return null;
+        Entry entry = new Entry(game);
+        entry.held = true;
+        entries.put(id, entry);
+        return game;
+    }
+
+    /**
+     * Let a held game be evicted again once it is idle
+     */
+    public static void release(Game game) {
+        Entry entry = entries.get(game.getId());
+        if (entry != null && entry.game == game) {
+            entry.accessedOn = System.currentTimeMillis();
+            entry.held = false;
+        }
+    }
+
+    /**
+     * Add a game that was just saved to the cache
+     */
+    public static void put(Game game) {
+        entries.put(game.getId(), new Entry(game));
+    }
+
+    /**
+     * Queue a changed game to be written with the next batch
+     */
+    public static void markDirty(String id) {
+        dirty.add(id);
+    }
+
+    /**
+     * Write a game that will not change any more and drop it from the cache
+     */
+    public static void flush(String id) {
+        flusher.execute(() -> {
+            dirty.remove(id);
+            Entry entry = entries.remove(id);
+            // Keep a game that could not be written so the retry still finds it
+            if (entry != null && !write(Collections.singletonList(entry.game)))
+                entries.putIfAbsent(id, entry);
+        });
+    }
+
+    /**
+     * Drop a game that has been deleted from Mongo without writing it
+     */
+    public static void remove(String id) {
+        dirty.remove(id);
+        entries.remove(id);
+    }
+
+    /**
+     * Write all dirty games and wait for the writes to finish
+     */
+    public static void flushAll() {
+        try {
+            flusher.submit(GameCache::flushDirty).get();
+        } catch (InterruptedException | ExecutionException e) {
+            Logger.error("Could not flush the game cache", e);
+        }
+    }
+
+    /**
+     * Get the number of games waiting to be written
+     */
+    public static int getQueueDepth() {
+        return dirty.size();
+    }
+
+    /**
+     * Get the number of cached games
+     */
+    public static int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Get the time taken by the last batch of writes
+     */
+    public static long getLastFlushMillis() {
+        return lastFlushMillis;
+    }
+
+    /**
+     * Get the number of games written in the last batch
+     */
+    public static int getLastFlushCount() {
+        return lastFlushCount;
+    }
+
+    private static void flushDirty() {
+        if (dirty.isEmpty())
+            return;
+
+        long start = System.nanoTime();
+        List<Game> games = new ArrayList<>();
+        for (Iterator<String> iterator = dirty.iterator(); iterator.hasNext(); ) {
+            // Removed before writing so a change made during the write queues the game again
+            Entry entry = entries.get(iterator.next());
+            iterator.remove();
+            if (entry != null)
+                games.add(entry.game);
+        }
+
+        if (write(games)) {
+            lastFlushMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            lastFlushCount = games.size();
+            Logger.debug("Flushed {} games in {} ms, {} still queued", games.size(), lastFlushMillis, dirty.size());
+        }
+    }
+
+    private static boolean write(List<Game> games) {
+        try {
+            long start = System.nanoTime();
+            Game.updateMoves(games);
+            Metrics.time(Metrics.Stage.GAME_WRITE, start);
+            return true;
+        } catch (RuntimeException e) {
+            // Keep the games queued so the writes are retried with the next batch
+            Logger.error("Could not write " + games.size() + " games", e);
+            for (Game game : games)
+                dirty.add(game.getId());
+            return false;
+        }
+    }
+
+    private static void evict() {
+        long idleSince = System.currentTimeMillis() - idleTimeout;
+        entries.forEach((id, entry) -> {
+            if (entry.accessedOn < idleSince && !entry.held && !dirty.contains(id))
+                entries.remove(id, entry);
+        });
+
+        // Drop the least recently used games that are not held and have no pending write
+        int excess = entries.size() - maxSize;
+        if (excess > 0) {
+            List<Map.Entry<String, Entry>> candidates = new ArrayList<>(entries.entrySet());
+            candidates.sort(Comparator.comparingLong(candidate -> candidate.getValue().accessedOn));
+            for (Map.Entry<String, Entry> candidate : candidates) {
+                if (excess <= 0)
+                    break;
+                if (!candidate.getValue().held && !dirty.contains(candidate.getKey())
+                        && entries.remove(candidate.getKey(), candidate.getValue()))
+                    excess--;
+            }
+        }
+    }
+}
@@ -2,221 +2,419 @@ package models;
 
 
 import actors.GameActor;
+import actors.GameEntity;
+import actors.WatchActor;
+import akka.NotUsed;
+import akka.stream.ThrottleMode;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Source;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import common.ActorFlow;
 import common.Constants;
+import common.Metrics;
 import common.RedisUtils;
+import models.ai.AiPlayer;
+import models.ai.Solver;
 import models.entities.Game;
 import models.entities.GameMessage;
-import play.mvc.LegacyWebSocket;
-import play.mvc.WebSocket;
+import org.bson.types.ObjectId;
+import play.Logger;
+import redis.clients.jedis.exceptions.JedisException;
+import scala.concurrent.duration.Duration;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Model class for all logic and operations on a Game object.
- * Use this class to get a WebSocket for a new game or an existing game.
+ * Use this class to get the flow of a WebSocket for a new game or an existing game, null if it cannot be had.
  * A move listener will check for a win whenever a move is made and will prevent moves out of turn.
  */
 public class GameModel {
 
-    private static final short ROWS = 6;
-    private static final short COLUMNS = 7;
-    private static final short CONNECT_COUNT = 4;
+    static final short ROWS = 6;
+    static final short COLUMNS = 7;
+    static final short CONNECT_COUNT = 4;
     private static final short DISC_COUNT = 2;
-    private static final short DISC_EMPTY = 0;
     private static final short DISC_1 = 1;
     private static final short DISC_2 = 2;
-    private static final short DISC_1_WIN = 3;
-    private static final short DISC_2_WIN = 4;
-    private static final short ALIGNMENTS = 4;
-    private static final short ALIGNMENT_E_W = 0;
-    private static final short ALIGNMENT_N_S = 1;
-    private static final short ALIGNMENT_NW_SE = 2;
-    private static final short ALIGNMENT_NE_SW = 3;
-    private static final short DIRECTION_UP = 0;
-    private static final short DIRECTION_DOWN = 1;
-
-    private class Pair {
-        short i;
-        short j;
-
-        public Pair(short i, short j) {
-            this.i = i;
-            this.j = j;
-        }
+    // Spectators take no seat
+    private static final short DISC_NONE = 0;
+    // Sequence number of a player who has not seen any of the game
+    private static final int SEQ_NONE = -1;
+    // Owner of the seat of the engine, which is the same on every node
+    private static final String TOKEN_ENGINE = "engine";
+    // Lobby buckets, for example a rating band or a region. The empty bucket is the default lobby.
+    private static final String BUCKET_PATTERN = "[A-Za-z0-9_-]{0,32}";
+    private static final String KEY_REPLAY_MOVE_INTERVAL = "replay.moveInterval";
+    private static final String KEY_REPLAY_MAX_SPEED = "replay.maxSpeed";
+
+    private static final long replayMoveIntervalNanos;
+    private static final double replayMaxSpeed;
+
+    static {
+        Config config = ConfigFactory.load();
+        replayMoveIntervalNanos = config.getDuration(KEY_REPLAY_MOVE_INTERVAL, TimeUnit.NANOSECONDS);
+        replayMaxSpeed = config.getDouble(KEY_REPLAY_MAX_SPEED);
     }
 
 
     /**
-     * Get WebSocket for a new game.
+     * Get WebSocket for a new game played with the given rules.
+     * The game waits in the lobby of the bucket and the rules until another player joins.
+     *
+     * @param bucket name of the lobby, which must be valid, see {@link #isValidBucket(String)}.
      */
-    public LegacyWebSocket<String> getNewGameSocket() {
-        String gameId = new Game(new short[ROWS][COLUMNS]).save();
+    public <A> Flow<A, A, ?> getNewGameSocket(String bucket, Rules rules, boolean binary) {
+        Game game = new Game("", rules);
+        String gameId = game.save();
+        GameCache.put(game);
 
         // Setting the last disc to 2 forces player 1 to make the first move
-        RedisUtils.setLastDisc(gameId, DISC_2);
+        RedisUtils.createBoard(gameId, DISC_2);
 
-        return getSocket(gameId, DISC_1);
+        // The game is only added to the lobby once its disc is attached, so joiners never see it empty
+        String lobby = getLobby(bucket, rules);
+        Flow<A, A, ?> socket = getSocket(gameId, DISC_1, SEQ_NONE, binary, lobby, null);
+        if (socket != null) {
+            RedisUtils.joinLobby(lobby, gameId);
+            // The game is deleted if its player leaves before anyone joins
+            TurnClock.startOpen(gameId);
+        }
+        return socket;
     }
 
     /**
-     * Get WebSocket for an open game where a player is waiting.
+     * Get WebSocket for a new game against the engine, which holds the second seat.
+     *
+     * @param depth  maximum number of moves the engine looks ahead, 0 or less for the default.
+     * @param timeMs time the engine may take for a move, 0 or less for the default.
      */
-    public LegacyWebSocket<String> getOpenGameSocket() {
-        Game game = Game.findOpenGame();
-        if (game == null)
-            return getNewGameSocket();
+    public <A> Flow<A, A, ?> getAiGameSocket(int depth, long timeMs, boolean binary) {
+        AiPlayer ai = new AiPlayer(depth, timeMs);
 
-        // Once a game is started it cannot be joined by a new player again
-        game.setStartedOn(System.currentTimeMillis());
+        Game game = new Game("", Rules.STANDARD);
+        game.setAi(ai.getDepth(), ai.getTimeMs());
         String gameId = game.save();
+        GameCache.put(game);
+
+        RedisUtils.createBoard(gameId, DISC_2);
+
+        // The engine's disc stays attached for the whole game, so the game is full once the player's disc is attached
+        attachEngine(gameId);
+        Game.setStartedOn(gameId, System.currentTimeMillis());
+        return getSocket(gameId, DISC_1, SEQ_NONE, binary, null, ai);
+    }
+
+    /**
+     * Get WebSocket for an open game in the lobby of the bucket and the rules where a player is waiting.
+     * Starts a new game if nobody is waiting.
+     *
+     * @param bucket name of the lobby, which must be valid, see {@link #isValidBucket(String)}.
+     */
+    public <A> Flow<A, A, ?> getOpenGameSocket(String bucket, Rules rules, boolean binary) {
+        // The game is taken out of the lobby atomically, so once paired it cannot be joined by another player
+        String gameId = RedisUtils.pairFromLobby(getLobby(bucket, rules));
+        if (gameId == null)
+            return getNewGameSocket(bucket, rules, binary);
+
+        Game.setStartedOn(gameId, System.currentTimeMillis());
 
         // Since the current player's disc has not yet been attached there will only be maximum one disc attached to Redis
         // Get socket with DISC_2 only if DISC_1 is currently taken
-        return getSocket(gameId, RedisUtils.getAttachedDisc(gameId) == DISC_1 ? DISC_2 : DISC_1);
+        return getSocket(gameId, RedisUtils.getAttachedDisc(gameId) == DISC_1 ? DISC_2 : DISC_1, SEQ_NONE, binary,
+                null, null);
     }
 
     /**
      * Get WebSocket for an existing game with game with a gameId and a disc that isn't being used by another player.
      * This is useful for reconnecting with a game that was interrupted.
+     *
+     * @param seq sequence number of the last move the player has seen, to get only the moves it missed instead of
+     *            the whole game, or negative.
      */
-    public LegacyWebSocket<String> getGameSocketById(String gameId, short disc) {
-        if (Game.exists(gameId))
-            return getSocket(gameId, disc);
-        return null;
+    public <A> Flow<A, A, ?> getGameSocketById(String gameId, short disc, int seq, boolean binary) {
+        Game game = GameCache.get(gameId);
+        if (game == null)
+            return null;
+
+        // The seat of the engine cannot be taken by a player
+        if (game.getAiDepth() > 0) {
+            if (disc == DISC_2)
+                return null;
+            attachEngine(gameId);
+            return getSocket(gameId, disc, seq, binary, null, new AiPlayer(game.getAiDepth(), game.getAiTimeMs()));
+        }
+        return getSocket(gameId, disc, seq, binary, null, null);
+    }
+
+    /**
+     * Get WebSocket for a spectator of a game, who follows it without taking a disc.
+     * Spectators on a node share its subscription to the game, however many of them there are.
+     */
+    public <A> Flow<A, A, ?> getWatchSocket(String gameId, boolean binary) {
+        Game game = GameCache.get(gameId);
+        if (game == null)
+            return null;
+
+        // Games against the engine are played on the Redis board in clustered mode as well
+        if (GameEntity.isEnabled() && game.getAiDepth() <= 0)
+            return ActorFlow.actorRef(out -> WatchActor.props(out, gameId, binary, null, GameEntity.getRegion()));
+        return ActorFlow.actorRef(out -> WatchActor.props(out, gameId, binary, () -> {
+            Rules rules = game.getRules();
+            String moves = getMoves(gameId);
+            return GameMessage.snapshot(MessageType.SNAPSHOT, DISC_NONE, gameId, gameId, rules, moves,
+                    getForfeit(gameId), rules.replay(moves));
+        }, null));
     }
 
-    private LegacyWebSocket<String> getSocket(String gameId, short disc) {
-        short attachResult = RedisUtils.attachDisc(gameId, disc);
+    /**
+     * Get the messages replaying a game from a ply on: a SNAPSHOT of the board after that many moves, then the MOVE of
+     * every later move as it was sent to the players, the last one an END if the game has ended, followed by the END
+     * of its forfeit if it was forfeited.
+     * Moves follow each other at the replay interval divided by the speed. The messages are made from the packed moves
+     * one at a time as the client reads them, so a replay holds no more than the moves of its game.
+     *
+     * @return null if the game does not exist.
+     */
+    public Source<GameMessage, NotUsed> getReplay(String gameId, int from, double speed) {
+        if (!ObjectId.isValid(gameId))
+            return null;
+        // Replays are read only, they neither fill the cache nor bring archived games back
+        Game game = Game.read(gameId);
+        if (game == null)
+            return null;
+
+        // The board of a game being played is ahead of the stored game until the cache writes it
+        Rules rules = game.getRules();
+        String board = RedisUtils.getMoves(gameId);
+        String moves = board != null && board.length() > game.getMoves().length() ? board : game.getMoves();
+        short forfeit = game.getForfeit() != 0 ? game.getForfeit() : RedisUtils.getForfeit(gameId);
+        int lastSeq = GameMessage.getLastSeq(moves, forfeit);
+        if (from >= lastSeq)
+            return Source.single(GameMessage.snapshot(MessageType.SNAPSHOT, DISC_NONE, gameId, gameId, rules, moves,
+                    forfeit, rules.replay(moves)));
+
+        int start = Math.max(0, from);
+        String played = moves.substring(0, start);
+        Source<GameMessage, NotUsed> snapshot = Source.single(GameMessage.snapshot(MessageType.SNAPSHOT, DISC_NONE,
+                gameId, gameId, rules, played, (short) 0, rules.replay(played)));
+
+        long intervalNanos = Math.max(1, (long) (replayMoveIntervalNanos / Math.min(speed, replayMaxSpeed)));
+        return snapshot.concat(Source.range(start + 1, lastSeq)
+                .throttle(1, Duration.create(intervalNanos, TimeUnit.NANOSECONDS), 1, ThrottleMode.shaping())
+                .map(seq -> GameMessage.replay(rules, moves, forfeit, seq)));
+    }
+
+    /**
+     * Find the exact value and the best column of the position after the moves with a parallel search
+     */
+    public CompletableFuture<Solver.Solution> solve(String moves) {
+        return Solver.getDefault().solve(moves);
+    }
+
+    // The lobby is set only for a player waiting in it, so the game can be removed from it if they leave.
+    // The AI player is set only for a game against the engine.
+    private <A> Flow<A, A, ?> getSocket(String gameId, short disc, int seq, boolean binary, String lobby,
+                                        AiPlayer ai) {
+        // Every socket holds its seat under a token of its own
+        String token = UUID.randomUUID().toString();
+        short attachResult = RedisUtils.attachDisc(gameId, disc, token);
 
         // If attachResult is negative then the player's disc could not be attached
         if (attachResult > 0) {
-            return WebSocket.withActor(actorRef -> GameActor.props(actorRef, gameId, disc,
-                    getMoveListener(gameId, disc, attachResult)));
+            // In clustered mode the moves of players go to the node owning the game, the engine plays on this node
+            if (GameEntity.isEnabled() && ai == null)
+                return ActorFlow.actorRef(out -> GameActor.props(out, gameId, disc, seq, binary,
+                        getMoveListener(gameId, disc, token, attachResult, lobby, null), GameEntity.getRegion()));
+            return ActorFlow.actorRef(out -> GameActor.props(out, gameId, disc, seq, binary,
+                    getMoveListener(gameId, disc, token, attachResult, lobby, ai)));
         }
         return null;
     }
 
-    private GameActor.GameListener getMoveListener(String gameId, short disc, short attachResult) {
+    private GameActor.GameListener getMoveListener(String gameId, short disc, String token, short attachResult,
+                                                   String lobby, AiPlayer ai) {
         return new GameActor.GameListener() {
             @Override
             public void onReady() {
                 // If attachResult is equal to DISC_COUNT then the game is full
-                if (attachResult == DISC_COUNT)
+                if (attachResult == DISC_COUNT) {
                     // This lets all clients know that the game has started
-                    RedisUtils.publish(gameId, new GameMessage(MessageType.START, disc, null).toString());
+                    RedisUtils.publish(gameId, new GameMessage(MessageType.START, disc, null).toFrame());
+
+                    // The clock runs from the start, or again on this node for a player who has reconnected
+                    String moves = getMoves(gameId);
+                    if (!GameCache.get(gameId).getRules().isEnded(moves))
+                        TurnClock.startTurn(gameId, moves.length());
+                }
+
+                // A player reconnecting while it is the engine's turn gets the reply that was lost
+                if (ai != null) {
+                    String moves = getMoves(gameId);
+                    if (moves.length() % 2 == 1 && !GameCache.get(gameId).getRules().isEnded(moves))
+                        replyWithAi(gameId, ai, moves);
+                }
             }
 
             @Override
-            public GameMessage onMove(short column) {
-                // Use Redis to check if the last move was made by the same disc
-                if (RedisUtils.getLastDisc(gameId) == disc)
-                    return new GameMessage(MessageType.LOCKED, disc, Constants.MESSAGE_WRONG_TURN);
-
-                else {
-                    // Immediately update the last disc used. This will lock the other player.
-                    RedisUtils.setLastDisc(gameId, disc);
-
-                    // Get the game and update the grid
-                    Game game = Game.findById(gameId);
-                    short[][] grid = game.getGrid();
-                    short row = ROWS - 1;
-                    for (; row >= 0; row--) {
-                        if (grid[row][column] == DISC_EMPTY) {
-                            grid[row][column] = disc;
-                            break;
-                        }
-                    }
-
-                    // Check for a win
-                    // Worst case: 4 * O(k) for 4 different alignments
-                    boolean win = false;
-                    for (short align = 0; align < ALIGNMENTS; align++) {
-                        if (computeWin(row, column, grid, disc, align)) {
-                            win = true;
-                            break;
-                        }
-                    }
-
-                    // Update the game and return
-                    game.update(column, grid, disc);
-                    return new GameMessage(win ? MessageType.END : MessageType.MOVE, disc, game.toString());
+            public boolean onHeartbeat() {
+                try {
+                    return RedisUtils.renewDisc(gameId, disc, token);
+                } catch (JedisException e) {
+                    // The player keeps the socket while Redis is unreachable, the lease is checked again next time
+                    Logger.warn("Could not renew the seat of disc {} in game {}: {}", disc, gameId, e.getMessage());
+                    return true;
                 }
             }
+
+            @Override
+            public void onStop() {
+                // Detach the disc so it can be used by another player if the game hasn't already started
+                RedisUtils.detachDisc(gameId, disc, token);
+
+                // A waiting player who leaves takes the game out of the lobby. If the game was already paired this does nothing.
+                if (lobby != null)
+                    RedisUtils.leaveLobby(lobby, gameId);
+            }
+
+            @Override
+            public GameMessage onMove(short column) {
+                return move(gameId, disc, column);
+            }
+
+            @Override
+            public void afterMove(GameMessage gameMessage) {
+                // The engine replies once the player's move has been published, so its move always follows it
+                if (ai != null && gameMessage.getType() == MessageType.MOVE)
+                    replyWithAi(gameId, ai, getMoves(gameId));
+            }
+
+            @Override
+            public List<GameMessage> onConnect(int seq) {
+                Rules rules = GameCache.get(gameId).getRules();
+                return GameMessage.connect(disc, gameId, rules, getMoves(gameId), getForfeit(gameId), seq);
+            }
+
+            @Override
+            public GameMessage onSync(MessageType type) {
+                Rules rules = GameCache.get(gameId).getRules();
+                String moves = getMoves(gameId);
+                return GameMessage.snapshot(type, disc, gameId, gameId, rules, moves, getForfeit(gameId),
+                        rules.replay(moves));
+            }
         };
     }
 
-    // The method traverses the gird in two opposite directions from a given starting point and alignment
-    // and checks whether there are k consecutive discs of the same type.
-    // The algorithm runs in O(k) time where k is the number of discs required to connect.
-    private boolean computeWin(short row, short column, short[][] grid, short disc, short align) {
-        short i = row, j = column, startRow, startColumn, count = 0;
-
-        // Traversing up
-        do {
-            startRow = i;
-            startColumn = j;
-            ++count;
-            Pair pair = getIndices(i, j, align, DIRECTION_UP);
-            i = pair.i;
-            j = pair.j;
-        } while (isMatch(i, j, grid, disc) && count <= CONNECT_COUNT);
-
-        i = row;
-        j = column;
-        // Decrementing count else the starting position will be counted twice
-        --count;
-
-        // Traversing down
-        do {
-            ++count;
-            Pair pair = getIndices(i, j, align, DIRECTION_DOWN);
-            i = pair.i;
-            j = pair.j;
-        } while (isMatch(i, j, grid, disc) && count <= CONNECT_COUNT);
-
-        // If win then update the grid to represent the winning connection of discs
-        if (count == CONNECT_COUNT) {
-            i = startRow;
-            j = startColumn;
-            count = 1;
-            grid[i][j] = (disc == DISC_1 ? DISC_1_WIN : DISC_2_WIN);
-            while (count < CONNECT_COUNT) {
-                ++count;
-                Pair pair = getIndices(i, j, align, DIRECTION_DOWN);
-                i = pair.i;
-                j = pair.j;
-                grid[i][j] = (disc == DISC_1 ? DISC_1_WIN : DISC_2_WIN);
-            }
-            return true;
+    // Makes a move for a disc and gets the message for it
+    private static GameMessage move(String gameId, short disc, short column) {
+        // Check the turn and apply the move to the board in a single atomic step
+        long start = System.nanoTime();
+        Game game = GameCache.get(gameId);
+        Metrics.time(Metrics.Stage.CACHE_GET, start);
+
+        start = System.nanoTime();
+        RedisUtils.MoveResult result = commitMove(game, disc, column);
+        Metrics.time(Metrics.Stage.COMMIT_MOVE, start);
+
+        switch (result.getStatus()) {
+            case RedisUtils.MoveResult.STATUS_WRONG_TURN:
+                return new GameMessage(MessageType.LOCKED, disc, Constants.MESSAGE_WRONG_TURN);
+            case RedisUtils.MoveResult.STATUS_ENDED:
+                return new GameMessage(MessageType.LOCKED, disc, Constants.MESSAGE_GAME_ENDED);
+            case RedisUtils.MoveResult.STATUS_INVALID:
+                return new GameMessage(MessageType.INVALID, disc, null);
+        }
+
+        // Bring the cached game up to date with the board and leave the write to the cache
+        synchronized (game) {
+            game.update(result.getMoves(), disc);
         }
-        return false;
-    }
-
-    // The method returns the next cell to be visited for a given alignment and directions
-    private Pair getIndices(short row, short column, short align, short direction) {
-        switch (align) {
-            // East-West
-            case ALIGNMENT_E_W:
-                column += direction == DIRECTION_UP ? -1 : 1;
-                break;
-            // North-South
-            case ALIGNMENT_N_S:
-                row += direction == DIRECTION_UP ? -1 : 1;
-                break;
-            // NW-SE
-            case ALIGNMENT_NW_SE:
-                row += direction == DIRECTION_UP ? -1 : 1;
-                column += direction == DIRECTION_UP ? -1 : 1;
-                break;
-            // NE-SW
-            default:
-                row += direction == DIRECTION_UP ? -1 : 1;
-                column += direction == DIRECTION_UP ? 1 : -1;
-                break;
+
+        // Only the move itself is sent, the sequence number is the number of moves played so far
+        int seq = result.getMoves().length();
+        if (result.getStatus() == RedisUtils.MoveResult.STATUS_MOVE) {
+            // The other player's time for their move starts now
+            TurnClock.startTurn(gameId, seq);
+            GameCache.markDirty(gameId);
+            return GameMessage.move(MessageType.MOVE, disc, column, result.getRow(), seq, null);
+        }
+        TurnClock.stopTurn(gameId);
+        GameCache.flush(gameId);
+        short[][] win = null;
+        if (result.getStatus() == RedisUtils.MoveResult.STATUS_WIN) {
+            start = System.nanoTime();
+            win = game.getRules().winCells(result.getMoves());
+            Metrics.time(Metrics.Stage.WIN_CELLS, start);
         }
-        return new Pair(row, column);
+        return GameMessage.move(MessageType.END, disc, column, result.getRow(), seq, win);
+    }
+
+    // The engine's seat is leased for as long as the board is kept, and claimed again whenever its player reconnects
+    private static void attachEngine(String gameId) {
+        RedisUtils.attachDisc(gameId, DISC_2, TOKEN_ENGINE, RedisUtils.getBoardIdleTimeoutMs());
+    }
+
+    // Lets the engine search for its move in the background and publishes the move like a player's
+    private static void replyWithAi(String gameId, AiPlayer ai, String moves) {
+        ai.reply(moves, column -> {
+            GameMessage gameMessage = move(gameId, DISC_2, (short) column);
+            if (gameMessage.getType() == MessageType.MOVE || gameMessage.getType() == MessageType.END)
+                RedisUtils.publish(gameId, gameMessage.toFrame());
+            else
+                Logger.warn("AI move {} in game {} was rejected: {}", column, gameId, gameMessage);
+        });
+    }
+
+    // Gets the moves from the board in Redis, falling back to the stored game if Redis does not have it
+    private static String getMoves(String gameId) {
+        String moves = RedisUtils.getMoves(gameId);
+        return moves != null ? moves : GameCache.get(gameId).getMoves();
+    }
+
+    // Gets the disc that forfeited the game from the board, or from the stored game if the board was restored
+    private static short getForfeit(String gameId) {
+        short forfeit = RedisUtils.getForfeit(gameId);
+        return forfeit != 0 ? forfeit : GameCache.get(gameId).getForfeit();
+    }
+
+    // Commits a move to the board in Redis, restoring the board from the stored game if Redis does not have it
+    private static RedisUtils.MoveResult commitMove(Game game, short disc, short column) {
+        Rules rules = game.getRules();
+        RedisUtils.MoveResult result = RedisUtils.commitMove(game.getId(), disc, column, rules.getRows(),
+                rules.getColumns(), rules.getConnect());
+        if (result.getStatus() == RedisUtils.MoveResult.STATUS_UNKNOWN_GAME) {
+            String moves = game.getMoves();
+            RedisUtils.restoreBoard(game.getId(), moves.isEmpty() ? DISC_2 : game.getLastDisc(), moves,
+                    game.isEnded());
+            result = RedisUtils.commitMove(game.getId(), disc, column, rules.getRows(), rules.getColumns(),
+                    rules.getConnect());
+        }
+        return result;
+    }
+
+    /**
+     * Pack a list of columns into moves, one character per move ('0' + column)
+     */
+    public static String toMoves(List<Short> moveHistory) {
+        StringBuilder moves = new StringBuilder(moveHistory.size());
+        for (short column : moveHistory)
+            moves.append((char) ('0' + column));
+        return moves.toString();
+    }
+
+    /**
+     * Check whether a bucket can name a lobby: up to 32 letters, digits, '_' and '-'
+     */
+    public static boolean isValidBucket(String bucket) {
+        return bucket.matches(BUCKET_PATTERN);
     }
 
-    // The method checks for boundary conditions and if the given disc matches the one in the current cell
-    private boolean isMatch(short row, short column, short[][] grid, short disc) {
-        return row >= 0 && row < ROWS && column >= 0 && column < COLUMNS && grid[row][column] == disc;
+    // Games of other rules wait in lobbies of their own, the standard board keeps the lobby of the bucket
+    private static String getLobby(String bucket, Rules rules) {
+        return rules.isStandard() ? bucket : bucket + "/" + rules;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,92 @@
+package models;
+
+
+/**
+ * Rules for boards whose cells, with a sentinel row, fit in a single long.
+ * Every disc is a long bitboard laid out column by column like {@link BitBoard}, and a connection of any length
+ * through a move is found with a logarithmic number of shift-and-mask steps per alignment.
+ */
+final class LongRules extends Rules {
+
+    private final int[] shifts = shifts();
+
+
+    LongRules(int rows, int columns, int connect) {
+        super(rows, columns, connect);
+    }
+
+    @Override
+    public Board newBoard() {
+        return new LongBoard();
+    }
+
+    private final class LongBoard extends Board {
+
+        private final long[] boards = new long[2];
+        // Cells of the connection made by the last move, 0 if it did not make one
+        private long winMask;
+
+
+        LongBoard() {
+            super(LongRules.this);
+        }
+
+        @Override
+        void set(int player, int bit) {
+            long moveBit = 1L << bit;
+            boards[player] |= moveBit;
+            winMask = 0;
+            for (int shift : shifts)
+                winMask |= lineMask(boards[player], moveBit, shift);
+        }
+
+        @Override
+        public boolean isWin() {
+            return winMask != 0;
+        }
+
+        @Override
+        public short[][] winCells() {
+            long mask = winMask;
+            int[] bits = new int[Long.bitCount(mask)];
+            for (int i = 0; mask != 0; i++) {
+                bits[i] = Long.numberOfTrailingZeros(mask);
+                mask &= mask - 1;
+            }
+            return toCells(bits, bits.length);
+        }
+    }
+
+    // Returns a bit for the first cell of every run of connect discs along the shift, doubling the run each step
+    private long lineStarts(long board, int shift) {
+        long starts = board;
+        for (int length = 1; length < connect; ) {
+            int step = Math.min(length, connect - length);
+            starts &= shiftRight(starts, step * shift);
+            length += step;
+        }
+        return starts;
+    }
+
+    // Expands the runs along the shift that contain the move into the mask of their cells
+    private long lineMask(long board, long moveBit, int shift) {
+        long reach = 0;
+        for (int k = 0; k < connect; k++)
+            reach |= shiftRight(moveBit, k * shift);
+        long starts = lineStarts(board, shift) & reach;
+
+        long mask = 0;
+        for (int k = 0; k < connect; k++)
+            mask |= shiftLeft(starts, k * shift);
+        return mask;
+    }
+
+    // Java takes long shift distances modulo 64, but a line moved by a whole word or more leaves the board
+    private static long shiftRight(long bits, int distance) {
+        return distance < Long.SIZE ? bits >>> distance : 0;
+    }
+
+    private static long shiftLeft(long bits, int distance) {
+        return distance < Long.SIZE ? bits << distance : 0;
+    }
+}
@@ -7,5 +7,8 @@ public enum MessageType {
     LOCKED,
     MOVE,
     END,
-    INVALID
+    INVALID,
+    SNAPSHOT,
+    // Sent instead of CONNECT to a client resuming from the sequence number of the last move it has seen
+    RESUME
 }
\ No newline at end of file
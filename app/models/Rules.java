@@ -0,0 +1,174 @@
+package models;
+
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rules of a board size and connection length.
+ * <p>
+ * Every size class gets its own representation: boards whose cells fit in 64 bits with a sentinel row are
+ * played on single-long bitboards, larger boards on multi-word bitsets. A game being played keeps a {@link Board}
+ * and applies one move at a time. The methods taking the packed moves of a game, one character per move
+ * ('0' + column) with discs alternating starting with disc 1, replay them onto a new board and are meant for
+ * validating input, replays and analytics. Instances are shared and immutable, get them with
+ * {@link #of(int, int, int)}.
+ */
+public abstract class Rules {
+
+    public static final int MIN_SIZE = 4;
+    public static final int MAX_SIZE = 16;
+    public static final int MIN_CONNECT = 3;
+    public static final int MAX_CONNECT = 8;
+
+    private static final short DISC_1 = 1;
+    private static final short DISC_2 = 2;
+    private static final short DISC_1_WIN = 3;
+    private static final short DISC_2_WIN = 4;
+
+    private static final Map<Integer, Rules> instances = new ConcurrentHashMap<>();
+
+    public static final Rules STANDARD = of(GameModel.ROWS, GameModel.COLUMNS, GameModel.CONNECT_COUNT);
+
+    final int rows;
+    final int columns;
+    final int connect;
+    // Every column holds one spare sentinel bit on top so shifted lines never wrap into the next column
+    final int height;
+
+
+    Rules(int rows, int columns, int connect) {
+        this.rows = rows;
+        this.columns = columns;
+        this.connect = connect;
+        this.height = rows + 1;
+    }
+
+    /**
+     * Check whether a board size and connection length can be played
+     */
+    public static boolean isSupported(int rows, int columns, int connect) {
+        return rows >= MIN_SIZE && rows <= MAX_SIZE && columns >= MIN_SIZE && columns <= MAX_SIZE
+                && connect >= MIN_CONNECT && connect <= MAX_CONNECT && connect <= Math.max(rows, columns);
+    }
+
+    /**
+     * Get the rules of a board size and connection length, which must be supported
+     */
+    public static Rules of(int rows, int columns, int connect) {
+        if (!isSupported(rows, columns, connect))
+            throw new IllegalArgumentException("Unsupported board " + rows + "x" + columns + " connect " + connect);
+        return instances.computeIfAbsent((rows << 16) | (columns << 8) | connect,
+                key -> columns * (rows + 1) <= Long.SIZE
+                        ? new LongRules(rows, columns, connect) : new WideRules(rows, columns, connect));
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getConnect() {
+        return connect;
+    }
+
+    public boolean isStandard() {
+        return this == STANDARD;
+    }
+
+    /**
+     * Get an empty board of this size
+     */
+    public abstract Board newBoard();
+
+    /**
+     * Get a board with the moves played on it, which must be valid
+     */
+    public Board newBoard(String moves) {
+        Board board = newBoard();
+        for (int i = 0; i < moves.length(); i++)
+            board.play(moves.charAt(i) - '0');
+        return board;
+    }
+
+    /**
+     * Check whether the moves can be played in order. Only the last of the moves may end the game.
+     */
+    public boolean isValidMoves(String moves) {
+        if (moves.length() > rows * columns)
+            return false;
+
+        Board board = newBoard();
+        for (int i = 0; i < moves.length(); i++) {
+            int column = moves.charAt(i) - '0';
+            if (!board.canPlay(column) || board.isWin())
+                return false;
+            board.play(column);
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the last of the moves made a connection
+     */
+    public boolean isWin(String moves) {
+        return newBoard(moves).isWin();
+    }
+
+    /**
+     * Get the (row, column) cells of the connection made by the last of the moves, where row 0 is the top
+     */
+    public short[][] winCells(String moves) {
+        return newBoard(moves).winCells();
+    }
+
+    /**
+     * Check whether the last of the moves ended the game with a connection or a full board
+     */
+    public boolean isEnded(String moves) {
+        return moves.length() == rows * columns || isWin(moves);
+    }
+
+    /**
+     * Rebuild the grid of a game from its moves, with a connection made by the last move marked on the grid
+     */
+    public short[][] replay(String moves) {
+        short[][] grid = new short[rows][columns];
+        int[] heights = new int[columns];
+        for (int i = 0; i < moves.length(); i++) {
+            int column = moves.charAt(i) - '0';
+            grid[rows - 1 - heights[column]++][column] = i % 2 == 0 ? DISC_1 : DISC_2;
+        }
+
+        short winDisc = moves.length() % 2 == 1 ? DISC_1_WIN : DISC_2_WIN;
+        for (short[] cell : winCells(moves))
+            grid[cell[0]][cell[1]] = winDisc;
+        return grid;
+    }
+
+    @Override
+    public String toString() {
+        return rows + "x" + columns + "c" + connect;
+    }
+
+    // Bit index of the cell h rows above the bottom of a column
+    int bit(int column, int h) {
+        return column * height + h;
+    }
+
+    // Turns bit indexes of cells into (row, column) cells
+    short[][] toCells(int[] bits, int count) {
+        short[][] cells = new short[count][];
+        for (int i = 0; i < count; i++)
+            cells[i] = new short[]{(short) (rows - 1 - bits[i] % height), (short) (bits[i] / height)};
+        return cells;
+    }
+
+    // Shifts between neighbouring cells of a line: vertical, horizontal and both diagonals
+    int[] shifts() {
+        return new int[]{1, height, height - 1, height + 1};
+    }
+}
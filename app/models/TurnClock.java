@@ -0,0 +1,229 @@
+package models;
+
+
+import akka.actor.ActorRef;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import common.RedisUtils;
+import common.TimingWheel;
+import models.entities.Game;
+import models.entities.GameMessage;
+import play.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clocks of the games played on this node, and the reaper of games that never started.
+ * <p>
+ * The player to move has a limited time for every move and loses the game by forfeit once it runs out. The clock of a
+ * game is started by the node that committed the last move, and again when both players are attached, so a clock is
+ * running somewhere while a game is being played. A forfeit is decided on the Redis board in the same atomic step as
+ * moves are, so a move made in time always wins against the clock, and clocks of the same game on several nodes
+ * forfeit it once. In clustered mode the entity of a game decides the forfeit itself when its clock runs out.
+ * <p>
+ * A new game whose player has left the lobby before anyone joined is deleted from Redis and Mongo.
+ * <p>
+ * All clocks are timers on a single {@link TimingWheel}. The timers due in a tick are handled as a batch on a thread
+ * of their own, with one Redis round trip and one Mongo bulk write for the whole batch.
+ */
+public class TurnClock {
+
+    private static final String KEY_TURN_TIMEOUT = "game.clock.turnTimeout";
+    private static final String KEY_OPEN_TIMEOUT = "game.clock.openTimeout";
+    private static final String KEY_TICK = "game.clock.tick";
+    private static final String KEY_WHEEL_SIZE = "game.clock.wheelSize";
+    // Move count of the timer of a game waiting for its second player
+    private static final int OPEN = -1;
+
+    private static final long turnTimeoutMs;
+    private static final long openTimeoutMs;
+    private static final TimingWheel<Timer> wheel;
+    // The running turn clock of every game, at most one per game on a node
+    private static final Map<String, TimingWheel<Timer>.Timeout> clocks = new ConcurrentHashMap<>();
+    private static final ExecutorService reaper = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "game-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        Config config = ConfigFactory.load();
+        turnTimeoutMs = config.getDuration(KEY_TURN_TIMEOUT, TimeUnit.MILLISECONDS);
+        openTimeoutMs = config.getDuration(KEY_OPEN_TIMEOUT, TimeUnit.MILLISECONDS);
+        // The wheel only hands the timers over, so its thread keeps turning while the batch calls Redis and Mongo
+        wheel = new TimingWheel<>("game-clock", config.getDuration(KEY_TICK, TimeUnit.MILLISECONDS),
+                config.getInt(KEY_WHEEL_SIZE), timers -> reaper.execute(() -> expire(timers)));
+    }
+
+    private static class Timer {
+        final String gameId;
+        final int moveCount;
+        // The entity deciding the forfeit in clustered mode, otherwise null
+        final ActorRef owner;
+
+        Timer(String gameId, int moveCount, ActorRef owner) {
+            this.gameId = gameId;
+            this.moveCount = moveCount;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * Sent to the owner of a clock that ran out, who forfeits the game if no move was made since it was started
+     */
+    public static class Expired {
+        private final int moveCount;
+
+        Expired(int moveCount) {
+            this.moveCount = moveCount;
+        }
+
+        public int getMoveCount() {
+            return moveCount;
+        }
+    }
+
+
+    /**
+     * Start the clock of the player to move in a game with the given number of moves, forfeited on the Redis board.
+     * A clock already running for the same move keeps running.
+     */
+    public static void startTurn(String gameId, int moveCount) {
+        startTurn(gameId, moveCount, null);
+    }
+
+    /**
+     * Start the clock of the player to move for an owner of the game, who is sent {@link Expired} if it runs out
+     */
+    public static void startTurn(String gameId, int moveCount, ActorRef owner) {
+        if (turnTimeoutMs <= 0)
+            return;
+        clocks.compute(gameId, (id, running) -> {
+            if (running != null) {
+                if (running.getItem().moveCount == moveCount)
+                    return running;
+                running.cancel();
+            }
+            return wheel.arm(new Timer(gameId, moveCount, owner), turnTimeoutMs);
+        });
+    }
+
+    /**
+     * Stop the clock of a game, for example once it has ended
+     */
+    public static void stopTurn(String gameId) {
+        TimingWheel<Timer>.Timeout running = clocks.remove(gameId);
+        if (running != null)
+            running.cancel();
+    }
+
+    /**
+     * Start the timer of a new game waiting for its second player, after which it is deleted if its player has left
+     */
+    public static void startOpen(String gameId) {
+        wheel.arm(new Timer(gameId, OPEN, null), openTimeoutMs);
+    }
+
+    /**
+     * Get the number of clocks and timers running on this node
+     */
+    public static int getPending() {
+        return wheel.getPending();
+    }
+
+    private static void expire(List<Timer> timers) {
+        List<Timer> turns = new ArrayList<>(), open = new ArrayList<>();
+        for (Timer timer : timers) {
+            if (timer.moveCount == OPEN)
+                open.add(timer);
+            else if (removeClock(timer)) {
+                if (timer.owner != null)
+                    timer.owner.tell(new Expired(timer.moveCount), ActorRef.noSender());
+                else
+                    turns.add(timer);
+            }
+        }
+
+        try {
+            forfeit(turns);
+        } catch (RuntimeException e) {
+            // The players keep playing without a clock until the next move starts one
+            Logger.error("Could not forfeit " + turns.size() + " games", e);
+        }
+        try {
+            reap(open);
+        } catch (RuntimeException e) {
+            Logger.error("Could not reap " + open.size() + " open games", e);
+        }
+    }
+
+    // Takes the clock of an expired timer off the node, unless it has been replaced by the clock of a later move
+    private static boolean removeClock(Timer timer) {
+        TimingWheel<Timer>.Timeout running = clocks.get(timer.gameId);
+        return running != null && running.getItem() == timer && clocks.remove(timer.gameId, running);
+    }
+
+    private static void forfeit(List<Timer> turns) {
+        if (turns.isEmpty())
+            return;
+
+        List<String> gameIds = new ArrayList<>(turns.size());
+        List<Integer> moveCounts = new ArrayList<>(turns.size());
+        for (Timer timer : turns) {
+            gameIds.add(timer.gameId);
+            moveCounts.add(timer.moveCount);
+        }
+        List<Short> forfeits = RedisUtils.forfeit(gameIds, moveCounts);
+
+        List<Game> games = new ArrayList<>();
+        for (int i = 0; i < forfeits.size(); i++) {
+            short disc = forfeits.get(i);
+            if (disc == 0)
+                continue;
+            String gameId = gameIds.get(i);
+            RedisUtils.publish(gameId, GameMessage.forfeit(disc, moveCounts.get(i)).toFrame());
+            Game game = GameCache.get(gameId);
+            if (game != null) {
+                synchronized (game) {
+                    game.forfeit(disc);
+                }
+                games.add(game);
+            }
+        }
+        Game.updateForfeits(games);
+        for (Game game : games)
+            GameCache.flush(game.getId());
+        if (!games.isEmpty())
+            Logger.info("Forfeited {} games whose player ran out of time", games.size());
+    }
+
+    private static void reap(List<Timer> open) {
+        if (open.isEmpty())
+            return;
+
+        List<String> gameIds = new ArrayList<>(open.size());
+        for (Timer timer : open)
+            gameIds.add(timer.gameId);
+        List<Integer> outcomes = RedisUtils.reapOpenGames(gameIds);
+
+        List<String> deleted = new ArrayList<>();
+        for (int i = 0; i < outcomes.size(); i++) {
+            String gameId = gameIds.get(i);
+            if (outcomes.get(i) == RedisUtils.REAP_DELETED) {
+                deleted.add(gameId);
+                GameCache.remove(gameId);
+            } else if (outcomes.get(i) == RedisUtils.REAP_HELD)
+                // Its player is still waiting in the lobby
+                startOpen(gameId);
+        }
+        Game.removeUnstarted(deleted);
+        if (!deleted.isEmpty())
+            Logger.info("Deleted {} games that never started", deleted.size());
+    }
+}
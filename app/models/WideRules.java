@@ -0,0 +1,100 @@
+package models;
+
+
+/**
+ * Rules for boards too large for a single long.
+ * Every disc is a bitset of several longs laid out column by column like {@link LongRules}. A connection through a
+ * move is found by following the set bits out from the move along every alignment, at most connect - 1 cells each
+ * way, where the sentinel row ends every line at the edges of the board.
+ */
+final class WideRules extends Rules {
+
+    private final int[] shifts = shifts();
+    private final int words;
+
+
+    WideRules(int rows, int columns, int connect) {
+        super(rows, columns, connect);
+        words = (columns * height + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    @Override
+    public Board newBoard() {
+        return new WideBoard();
+    }
+
+    private final class WideBoard extends Board {
+
+        private final long[][] boards = {new long[words], new long[words]};
+        private int lastPlayer;
+        private int lastBit;
+        private boolean win;
+
+
+        WideBoard() {
+            super(WideRules.this);
+        }
+
+        @Override
+        void set(int player, int bit) {
+            WideRules.set(boards[player], bit);
+            lastPlayer = player;
+            lastBit = bit;
+            win = false;
+            for (int shift : shifts)
+                win |= 1 + reach(boards[player], bit, -shift) + reach(boards[player], bit, shift) >= connect;
+        }
+
+        @Override
+        public boolean isWin() {
+            return win;
+        }
+
+        @Override
+        public short[][] winCells() {
+            if (!win)
+                return new short[0][];
+
+            long[] board = boards[lastPlayer];
+            // The lines of different alignments only share the cell of the move
+            int[] back = new int[shifts.length], forward = new int[shifts.length];
+            int count = 1;
+            for (int i = 0; i < shifts.length; i++) {
+                back[i] = reach(board, lastBit, -shifts[i]);
+                forward[i] = reach(board, lastBit, shifts[i]);
+                if (1 + back[i] + forward[i] >= connect)
+                    count += back[i] + forward[i];
+                else
+                    back[i] = forward[i] = 0;
+            }
+
+            int[] bits = new int[count];
+            bits[0] = lastBit;
+            count = 1;
+            for (int i = 0; i < shifts.length; i++) {
+                for (int k = -back[i]; k <= forward[i]; k++) {
+                    if (k != 0)
+                        bits[count++] = lastBit + k * shifts[i];
+                }
+            }
+            return toCells(bits, count);
+        }
+    }
+
+    // Counts the discs following a cell along the step, up to connect - 1 of them
+    private int reach(long[] board, int bit, int step) {
+        int count = 0;
+        for (int cell = bit + step; count < connect - 1 && cell >= 0 && cell < words * Long.SIZE && get(board, cell);
+             cell += step)
+            count++;
+        return count;
+    }
+
+    private static void set(long[] bits, int bit) {
+        bits[bit / Long.SIZE] |= 1L << bit;
+    }
+
+    private static boolean get(long[] bits, int bit) {
+        return (bits[bit / Long.SIZE] & 1L << bit) != 0;
+    }
+}
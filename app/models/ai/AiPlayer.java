@@ -0,0 +1,91 @@
+package models.ai;
+
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import models.BitBoard;
+import play.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Server-side player that fills a seat of a game with an {@link Engine}.
+ * Searches run on a fixed pool of threads shared by all AI games of the node. Every thread keeps its own engine
+ * and transposition table for its whole life, so a reply allocates nothing while searching.
+ * Replies in the first plies come straight from the opening book if one is configured.
+ */
+public class AiPlayer {
+
+    private static final String KEY_THREADS = "ai.threads";
+    private static final String KEY_TABLE_SIZE = "ai.tableSize";
+    private static final String KEY_DEPTH = "ai.depth";
+    private static final String KEY_TIME = "ai.time";
+    private static final String KEY_MAX_TIME = "ai.maxTime";
+
+    private static final int tableSize;
+    private static final int defaultDepth;
+    private static final long defaultTimeMs;
+    private static final long maxTimeMs;
+    private static final ExecutorService executor;
+    private static final ThreadLocal<Engine> engines;
+
+    static {
+        Config config = ConfigFactory.load();
+        tableSize = config.getInt(KEY_TABLE_SIZE);
+        defaultDepth = config.getInt(KEY_DEPTH);
+        defaultTimeMs = config.getDuration(KEY_TIME, TimeUnit.MILLISECONDS);
+        maxTimeMs = config.getDuration(KEY_MAX_TIME, TimeUnit.MILLISECONDS);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(config.getInt(KEY_THREADS), runnable -> {
+            Thread thread = new Thread(runnable, "ai-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        OpeningBook book = OpeningBook.getDefault();
+        engines = ThreadLocal.withInitial(() -> new Engine(new TranspositionTable(tableSize), book));
+    }
+
+    private final int depth;
+    private final long timeMs;
+
+
+    /**
+     * Create a player searching up to the given depth and time. Values of 0 or less use the configured defaults,
+     * the depth is capped at the cells of the board and the time at the configured maximum.
+     */
+    public AiPlayer(int depth, long timeMs) {
+        this.depth = Math.min(depth > 0 ? depth : defaultDepth, BitBoard.CELLS);
+        this.timeMs = Math.min(timeMs > 0 ? timeMs : defaultTimeMs, maxTimeMs);
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getTimeMs() {
+        return timeMs;
+    }
+
+    /**
+     * Search for a reply to the moves in the background and hand the column to play to the callback
+     */
+    public void reply(String moves, IntConsumer play) {
+        executor.execute(() -> {
+            try {
+                Engine engine = engines.get();
+                int column = engine.search(moves, depth, timeMs);
+                Logger.debug("AI searched {} nodes to depth {}, score {}", engine.getNodes(), engine.getDepth(),
+                        engine.getScore());
+                if (column >= 0)
+                    play.accept(column);
+            } catch (RuntimeException e) {
+                Logger.error("AI could not reply to moves " + moves, e);
+            }
+        });
+    }
+}
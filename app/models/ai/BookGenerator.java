@@ -0,0 +1,115 @@
+package models.ai;
+
+
+import models.BitBoard;
+import models.Rules;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Offline generator of an {@link OpeningBook}.
+ * Solves every distinct position reachable in up to the given number of plies with the parallel {@link Solver},
+ * deepest positions first so their results help with the shallower ones, and writes the exact values to a book.
+ * Positions that cannot be solved within the time per position are left out and searched at runtime.
+ * <p>
+ * Run with {@code sbt "runMain models.ai.BookGenerator <maxPlies> <file> [threads] [secondsPerPosition]"}.
+ */
+public class BookGenerator {
+
+    private static final int TABLE_SIZE = 1 << 24;
+    private static final int DEFAULT_SECONDS = 600;
+
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: BookGenerator <maxPlies> <file> [threads] [secondsPerPosition]");
+            System.exit(1);
+        }
+        int maxPlies = Integer.parseInt(args[0]);
+        Path path = Paths.get(args[1]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        long timeMs = TimeUnit.SECONDS.toMillis(args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_SECONDS);
+
+        List<Map<Long, String>> plies = positions(maxPlies);
+        Solver solver = new Solver(threads, threads, threads, TABLE_SIZE, timeMs, null);
+        List<Long> entries = new ArrayList<>();
+        try {
+            for (int ply = maxPlies; ply >= 0; ply--) {
+                int solved = 0;
+                long start = System.nanoTime();
+                for (Map.Entry<Long, String> position : plies.get(ply).entrySet()) {
+                    Solver.Solution solution;
+                    try {
+                        solution = solver.solve(position.getValue()).get();
+                    } catch (ExecutionException e) {
+                        // Left out like a position whose value was not proven in time
+                        continue;
+                    }
+                    if (solution.isExact()) {
+                        entries.add(OpeningBook.entry(position.getKey(), solution.getScore(), solution.getColumn()));
+                        solved++;
+                    }
+                }
+                System.out.printf("Ply %d: solved %d of %d positions in %d s%n", ply, solved, plies.get(ply).size(),
+                        TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+            }
+        } finally {
+            solver.shutdown();
+        }
+
+        long[] sorted = new long[entries.size()];
+        for (int i = 0; i < sorted.length; i++)
+            sorted[i] = entries.get(i);
+        OpeningBook.sort(sorted);
+
+        // Written next to the book and moved over it, so a running application never maps a half-written file
+        Path temporary = Files.createTempFile(path.toAbsolutePath().getParent(), "book", ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary))) {
+            OpeningBook.write(out, maxPlies, sorted);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.printf("Wrote %d positions to %s%n", sorted.length, path);
+    }
+
+    // Collects the distinct positions of every ply that have not ended, by key, with moves reaching them
+    private static List<Map<Long, String>> positions(int maxPlies) {
+        List<Map<Long, String>> plies = new ArrayList<>();
+        Map<Long, String> current = new LinkedHashMap<>();
+        current.put(0L, "");
+        plies.add(current);
+        for (int ply = 1; ply <= maxPlies; ply++) {
+            Map<Long, String> next = new LinkedHashMap<>();
+            for (String moves : current.values()) {
+                for (int column = 0; column < BitBoard.COLUMNS; column++) {
+                    String nextMoves = moves + (char) ('0' + column);
+                    if (!Rules.STANDARD.isValidMoves(nextMoves) || Rules.STANDARD.isEnded(nextMoves))
+                        continue;
+                    next.putIfAbsent(key(nextMoves), nextMoves);
+                }
+            }
+            plies.add(next);
+            current = next;
+        }
+        return plies;
+    }
+
+    private static long key(String moves) {
+        long board = 0, occupied = 0;
+        for (int i = 0; i < moves.length(); i++) {
+            board ^= occupied;
+            occupied |= BitBoard.moveBit(occupied, moves.charAt(i) - '0');
+        }
+        return BitBoard.key(board, occupied);
+    }
+}
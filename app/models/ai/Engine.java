@@ -0,0 +1,313 @@
+package models.ai;
+
+
+import models.BitBoard;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Game engine searching the bitboards of {@link BitBoard} with negamax and alpha-beta pruning.
+ * <p>
+ * The search deepens iteratively until it runs out of depth or time, trying the best move of the previous iteration
+ * first and the other columns from the center outwards. Results are kept in a fixed-size {@link TranspositionTable}.
+ * Positions of the first plies are looked up in an {@link OpeningBook} if one is given.
+ * Positions are a pair of longs, the discs of the player to move and the occupied cells, so searching allocates
+ * nothing. An engine is not thread-safe, every searching thread needs its own, but engines may share a table.
+ * <p>
+ * Scores are from the point of view of the player to move. A win scores {@link #WIN} plus the number of cells
+ * still empty after it, so sooner wins score higher, a draw scores 0, and positions at the search horizon are
+ * scored by the difference in cells each player could win on, which always stays far below {@link #WIN}.
+ */
+public class Engine {
+
+    public static final int WIN = 1000;
+    private static final int INFINITY = WIN + BitBoard.CELLS + 1;
+    // The clock is only read every this many nodes plus one
+    private static final int TIME_CHECK_NODES = 4095;
+    private static final int[] CENTER_FIRST = centerFirst();
+
+    private final TranspositionTable table;
+    private final OpeningBook book;
+    private final int bookPlies;
+    private long deadline;
+    private AtomicBoolean cancelled;
+    private boolean stoppable;
+    private boolean stopped;
+    private long nodes;
+    private int score;
+    private int depth;
+    private boolean exact;
+
+
+    public Engine(TranspositionTable table) {
+        this(table, null);
+    }
+
+    /**
+     * Create an engine looking up the positions of the first plies in a book
+     *
+     * @param book null to search every position.
+     */
+    public Engine(TranspositionTable table, OpeningBook book) {
+        this.table = table;
+        this.book = book;
+        this.bookPlies = book != null ? book.getMaxPlies() : -1;
+    }
+
+    /**
+     * Find the best column to play after the moves, one character per move ('0' + column).
+     * The first iteration always completes, so a column is returned even if the time is too short.
+     *
+     * @param maxDepth maximum number of moves to look ahead.
+     * @param timeMs   time after which the search stops and returns the result of the last complete iteration.
+     * @return -1 if the game has ended.
+     */
+    public int search(String moves, int maxDepth, long timeMs) {
+        long board = 0, occupied = 0;
+        for (int i = 0; i < moves.length(); i++) {
+            // The discs of the player to move become the other player's once the move is made
+            board ^= occupied;
+            occupied |= BitBoard.moveBit(occupied, moves.charAt(i) - '0');
+        }
+        return search(board, occupied, moves.length(), maxDepth, timeMs);
+    }
+
+    /**
+     * Find the best column to play in a position
+     *
+     * @param board    discs of the player to move.
+     * @param occupied all discs on the board.
+     * @param plies    number of moves played so far.
+     * @see #search(String, int, long)
+     */
+    public int search(long board, long occupied, int plies, int maxDepth, long timeMs) {
+        return search(board, occupied, plies, 1, maxDepth, timeMs, null);
+    }
+
+    /**
+     * Find the best column to play in a position, starting the iterations at the given depth.
+     * The search stops as soon as the cancelled flag is set, even during the first iteration.
+     *
+     * @return -1 if the game has ended or the search was cancelled before an iteration completed.
+     * @see #search(long, long, int, int, long)
+     */
+    public int search(long board, long occupied, int plies, int firstDepth, int maxDepth, long timeMs,
+                      AtomicBoolean cancelled) {
+        this.deadline = System.nanoTime() + timeMs * 1_000_000;
+        this.cancelled = cancelled;
+        stoppable = false;
+        stopped = false;
+        nodes = 0;
+        score = 0;
+        depth = 0;
+        exact = false;
+
+        if (plies >= BitBoard.CELLS || BitBoard.isWin(board ^ occupied)) {
+            exact = true;
+            return -1;
+        }
+
+        if (plies <= bookPlies) {
+            int index = book.indexOf(BitBoard.key(board, occupied));
+            if (index >= 0) {
+                score = book.getScore(index);
+                depth = BitBoard.CELLS - plies;
+                exact = true;
+                return book.getMove(index);
+            }
+        }
+
+        int bestColumn = -1;
+        int limit = Math.min(maxDepth, BitBoard.CELLS - plies);
+        for (int iteration = Math.min(firstDepth, limit); iteration <= limit; iteration++) {
+            int column = searchRoot(board, occupied, plies, iteration);
+            if (stopped)
+                break;
+            bestColumn = column;
+            depth = iteration;
+            // Only the first iteration has to complete
+            stoppable = true;
+            // A proven win or loss cannot change with a deeper search, and a search to the end of the game is exact
+            if (Math.abs(score) >= WIN || iteration == BitBoard.CELLS - plies) {
+                exact = true;
+                break;
+            }
+        }
+        return bestColumn;
+    }
+
+    /**
+     * Get the score of the last search
+     */
+    public int getScore() {
+        return score;
+    }
+
+    /**
+     * Get the depth of the last complete iteration of the last search
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Check whether the score of the last search is the exact value of the position, without any estimate
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    /**
+     * Get the number of positions visited by the last search
+     */
+    public long getNodes() {
+        return nodes;
+    }
+
+    // Searches every move of the root so the best column is known, sets the score of the position
+    private int searchRoot(long board, long occupied, int plies, int depth) {
+        long playable = BitBoard.playableCells(occupied);
+        long wins = BitBoard.winningCells(board, occupied) & playable;
+        if (wins != 0) {
+            score = winScore(plies + 1);
+            return BitBoard.column(Long.lowestOneBit(wins));
+        }
+
+        long key = BitBoard.key(board, occupied);
+        int hashMove = TranspositionTable.move(table.probe(key));
+        int alpha = -INFINITY, bestColumn = -1;
+        for (int i = -1; i < BitBoard.COLUMNS; i++) {
+            int column = i < 0 ? hashMove : CENTER_FIRST[i];
+            if (column < 0 || i >= 0 && column == hashMove)
+                continue;
+            long moveBit = playable & BitBoard.columnMask(column);
+            if (moveBit == 0)
+                continue;
+
+            int moveScore = -negamax(board ^ occupied, occupied | moveBit, plies + 1, depth - 1, -INFINITY, -alpha);
+            if (stopped)
+                return bestColumn;
+            if (moveScore > alpha) {
+                alpha = moveScore;
+                bestColumn = column;
+            }
+        }
+        table.store(key, alpha, depth, TranspositionTable.FLAG_EXACT, bestColumn);
+        score = alpha;
+        return bestColumn;
+    }
+
+    private int negamax(long board, long occupied, int plies, int depth, int alpha, int beta) {
+        if ((++nodes & TIME_CHECK_NODES) == 0
+                && (cancelled != null && cancelled.get() || stoppable && System.nanoTime() > deadline))
+            stopped = true;
+        if (stopped)
+            return 0;
+
+        // The book holds the exact value, whatever the depth and the bounds
+        if (plies <= bookPlies) {
+            int index = book.indexOf(BitBoard.key(board, occupied));
+            if (index >= 0)
+                return book.getScore(index);
+        }
+
+        long playable = BitBoard.playableCells(occupied);
+        if ((BitBoard.winningCells(board, occupied) & playable) != 0)
+            return winScore(plies + 1);
+        // The last empty cell cannot win, so the game is drawn
+        if (plies + 1 >= BitBoard.CELLS)
+            return 0;
+
+        // A cell the opponent would win on has to be taken, and the cell below it must not be
+        long threats = BitBoard.winningCells(board ^ occupied, occupied);
+        long forced = playable & threats;
+        if (forced != 0) {
+            // Two threats cannot both be blocked
+            if ((forced & (forced - 1)) != 0)
+                return -winScore(plies + 2);
+            playable = forced;
+        }
+        playable &= ~(threats >>> 1);
+        if (playable == 0)
+            return -winScore(plies + 2);
+
+        if (depth == 0)
+            return evaluate(board, occupied);
+
+        // The soonest this player can still win is with their next move after the opponent's
+        int max = winScore(plies + 3);
+        if (beta > max) {
+            beta = max;
+            if (alpha >= beta)
+                return beta;
+        }
+
+        long key = BitBoard.key(board, occupied);
+        long entry = table.probe(key);
+        int hashMove = -1;
+        if (entry != 0) {
+            hashMove = TranspositionTable.move(entry);
+            if (TranspositionTable.depth(entry) >= depth) {
+                int entryScore = TranspositionTable.score(entry);
+                switch (TranspositionTable.flag(entry)) {
+                    case TranspositionTable.FLAG_EXACT:
+                        return entryScore;
+                    case TranspositionTable.FLAG_LOWER:
+                        alpha = Math.max(alpha, entryScore);
+                        break;
+                    case TranspositionTable.FLAG_UPPER:
+                        beta = Math.min(beta, entryScore);
+                        break;
+                }
+                if (alpha >= beta)
+                    return entryScore;
+            }
+        }
+
+        int originalAlpha = alpha, best = -INFINITY, bestColumn = -1;
+        for (int i = -1; i < BitBoard.COLUMNS; i++) {
+            int column = i < 0 ? hashMove : CENTER_FIRST[i];
+            if (column < 0 || i >= 0 && column == hashMove)
+                continue;
+            long moveBit = playable & BitBoard.columnMask(column);
+            if (moveBit == 0)
+                continue;
+
+            int moveScore = -negamax(board ^ occupied, occupied | moveBit, plies + 1, depth - 1, -beta, -alpha);
+            if (stopped)
+                return 0;
+            if (moveScore > best) {
+                best = moveScore;
+                bestColumn = column;
+                if (best > alpha) {
+                    alpha = best;
+                    if (alpha >= beta)
+                        break;
+                }
+            }
+        }
+
+        int flag = best <= originalAlpha ? TranspositionTable.FLAG_UPPER
+                : best >= beta ? TranspositionTable.FLAG_LOWER : TranspositionTable.FLAG_EXACT;
+        table.store(key, best, depth, flag, bestColumn);
+        return best;
+    }
+
+    // Scores a position at the search horizon by the cells each player could still win on
+    private static int evaluate(long board, long occupied) {
+        return Long.bitCount(BitBoard.winningCells(board, occupied))
+                - Long.bitCount(BitBoard.winningCells(board ^ occupied, occupied));
+    }
+
+    // Scores a win made with the move that fills the given number of cells
+    private static int winScore(int plies) {
+        return WIN + BitBoard.CELLS - plies;
+    }
+
+    private static int[] centerFirst() {
+        int[] order = new int[BitBoard.COLUMNS];
+        for (int i = 0; i < order.length; i++)
+            order[i] = BitBoard.COLUMNS / 2 + (i % 2 == 0 ? i / 2 : -(i + 1) / 2);
+        return order;
+    }
+}
@@ -0,0 +1,190 @@
+package models.ai;
+
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import models.BitBoard;
+import play.Logger;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Read-only book of exact values and best moves of the positions of the first plies, memory-mapped from a file.
+ * <p>
+ * The file is a header followed by one long per position, sorted by position key:
+ * <pre>
+ * header     magic "C4BK", version, rows, columns, maximum plies, entry count, as 4-byte big-endian ints
+ * bits 15-63 position key, see {@link BitBoard#key(long, long)}
+ * bits 3-14  score as defined by {@link Engine}, offset by 2048
+ * bits 0-2   best column
+ * </pre>
+ * Lookups binary search the mapped file off-heap, so opening a book costs no loading time and next to no heap,
+ * and the pages of the file are shared by all processes using it. Books are written by {@link BookGenerator}.
+ */
+public class OpeningBook {
+
+    private static final String KEY_PATH = "book.path";
+    private static final int MAGIC = 0x4334424B;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 24;
+    private static final int KEY_SHIFT = 15;
+    private static final int SCORE_SHIFT = 3;
+    private static final int SCORE_OFFSET = 2048;
+    private static final long SCORE_MASK = 0xFFF;
+    private static final long MOVE_MASK = 0x7;
+
+    private final LongBuffer entries;
+    private final int maxPlies;
+    private final int size;
+
+    // Loaded on first use, a missing book only disables lookups
+    private static class DefaultHolder {
+        static final OpeningBook INSTANCE = fromConfig(ConfigFactory.load());
+    }
+
+
+    private OpeningBook(LongBuffer entries, int maxPlies) {
+        this.entries = entries;
+        this.maxPlies = maxPlies;
+        this.size = entries.limit();
+    }
+
+    /**
+     * Map a book file
+     */
+    public static OpeningBook open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+                throw new IOException("Not an opening book: " + path);
+            if (buffer.getInt(8) != BitBoard.HEIGHT - 1 || buffer.getInt(12) != BitBoard.COLUMNS)
+                throw new IOException("Opening book for another board size: " + path);
+
+            int maxPlies = buffer.getInt(16), count = buffer.getInt(20);
+            buffer.position(HEADER_LENGTH);
+            LongBuffer entries = buffer.slice().asLongBuffer();
+            if (entries.limit() != count)
+                throw new IOException("Truncated opening book: " + path);
+            return new OpeningBook(entries, maxPlies);
+        }
+    }
+
+    /**
+     * Get the book configured for the application
+     *
+     * @return null if no book is configured or it cannot be opened.
+     */
+    public static OpeningBook getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    private static OpeningBook fromConfig(Config config) {
+        if (!config.hasPath(KEY_PATH))
+            return null;
+
+        Path path = Paths.get(config.getString(KEY_PATH));
+        if (!Files.exists(path)) {
+            Logger.info("No opening book at {}", path);
+            return null;
+        }
+        try {
+            OpeningBook book = open(path);
+            Logger.info("Opened book of {} positions up to ply {}", book.size, book.maxPlies);
+            return book;
+        } catch (IOException e) {
+            Logger.error("Could not open the opening book", e);
+            return null;
+        }
+    }
+
+    /**
+     * Write a book from its entries, which must be sorted with {@link #sort(long[])}
+     */
+    public static void write(OutputStream stream, int maxPlies, long[] entries) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(BitBoard.HEIGHT - 1);
+        out.writeInt(BitBoard.COLUMNS);
+        out.writeInt(maxPlies);
+        out.writeInt(entries.length);
+        for (long entry : entries)
+            out.writeLong(entry);
+        out.flush();
+    }
+
+    /**
+     * Pack the value of a position into a book entry
+     */
+    public static long entry(long key, int score, int column) {
+        return key << KEY_SHIFT | (score + SCORE_OFFSET & SCORE_MASK) << SCORE_SHIFT | column & MOVE_MASK;
+    }
+
+    /**
+     * Sort entries by key in the order used for lookups
+     */
+    public static void sort(long[] entries) {
+        // The key fills the top bits, so entries are ordered as unsigned longs
+        for (int i = 0; i < entries.length; i++)
+            entries[i] ^= Long.MIN_VALUE;
+        Arrays.sort(entries);
+        for (int i = 0; i < entries.length; i++)
+            entries[i] ^= Long.MIN_VALUE;
+    }
+
+    /**
+     * Get the highest number of moves played in the positions of the book
+     */
+    public int getMaxPlies() {
+        return maxPlies;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find the entry of a position
+     *
+     * @return -1 if the book does not have the position.
+     */
+    public int indexOf(long key) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleKey = entries.get(middle) >>> KEY_SHIFT;
+            if (middleKey < key)
+                low = middle + 1;
+            else if (middleKey > key)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the exact score of the position of an entry
+     */
+    public int getScore(int index) {
+        return (int) (entries.get(index) >>> SCORE_SHIFT & SCORE_MASK) - SCORE_OFFSET;
+    }
+
+    /**
+     * Get the best column to play in the position of an entry
+     */
+    public int getMove(int index) {
+        return (int) (entries.get(index) & MOVE_MASK);
+    }
+}
@@ -0,0 +1,263 @@
+package models.ai;
+
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import models.BitBoard;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Parallel solver finding the exact value and the best column of a position.
+ * <p>
+ * A position is searched by several threads at once (lazy SMP): every thread runs its own iterative deepening
+ * {@link Engine} on the whole position, and every other thread starts one iteration deeper, so the threads spread
+ * over different parts of the tree and fill the shared lock-free {@link TranspositionTable} for each other.
+ * The first thread to prove the value cancels the others.
+ * <p>
+ * All searches run on a fixed pool of threads with a bounded queue, apart from the Akka dispatchers serving the game
+ * actors, so concurrent searches share one thread budget. Searches that cannot be queued fail right away.
+ */
+public class Solver {
+
+    private static final String KEY_THREADS = "solver.threads";
+    private static final String KEY_THREADS_PER_SEARCH = "solver.threadsPerSearch";
+    private static final String KEY_QUEUE_SIZE = "solver.queueSize";
+    private static final String KEY_TABLE_SIZE = "solver.tableSize";
+    private static final String KEY_TIME = "solver.time";
+
+    private final int threadsPerSearch;
+    private final long timeMs;
+    private final ExecutorService executor;
+    private final TranspositionTable table;
+    private final ThreadLocal<Engine> engines;
+
+    // Created on first use so the configuration is only needed by applications that solve positions
+    private static class DefaultHolder {
+        static final Solver INSTANCE = fromConfig(ConfigFactory.load());
+    }
+
+    /**
+     * Value of a position for the player to move, with the best column to play
+     */
+    public static class Solution {
+        private final int column;
+        private final int score;
+        private final boolean exact;
+        private final int depth;
+        private final long nodes;
+        private final long timeMs;
+
+        public Solution(int column, int score, boolean exact, int depth, long nodes, long timeMs) {
+            this.column = column;
+            this.score = score;
+            this.exact = exact;
+            this.depth = depth;
+            this.nodes = nodes;
+            this.timeMs = timeMs;
+        }
+
+        /**
+         * Best column to play, -1 if the game has ended
+         */
+        public int getColumn() {
+            return column;
+        }
+
+        /**
+         * Score of the position as defined by {@link Engine}, positive if the player to move wins
+         */
+        public int getScore() {
+            return score;
+        }
+
+        /**
+         * Whether the score is proven, otherwise the search ran out of time and the score is an estimate
+         */
+        public boolean isExact() {
+            return exact;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * Positions visited by all threads of the search
+         */
+        public long getNodes() {
+            return nodes;
+        }
+
+        public long getTimeMs() {
+            return timeMs;
+        }
+    }
+
+    // State of one search shared by its threads
+    private static class Search {
+        final long board, occupied;
+        final int plies;
+        final long timeMs;
+        final long deadline;
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final AtomicInteger running;
+        final LongAdder nodes = new LongAdder();
+        final long start = System.nanoTime();
+        final CompletableFuture<Solution> result = new CompletableFuture<>();
+        Solution best;
+
+        Search(long board, long occupied, int plies, int threads, long timeMs) {
+            this.board = board;
+            this.occupied = occupied;
+            this.plies = plies;
+            this.running = new AtomicInteger(threads);
+            this.timeMs = timeMs;
+            this.deadline = start + TimeUnit.MILLISECONDS.toNanos(timeMs);
+        }
+    }
+
+
+    /**
+     * Create a solver with its own pool of threads and transposition table
+     *
+     * @param threads          threads shared by all searches of the solver.
+     * @param threadsPerSearch threads taking part in a single search.
+     * @param queueSize        threads of searches that may wait for a free thread.
+     * @param tableSize        entries of the transposition table shared by all threads.
+     * @param timeMs           time after which a search stops with the best estimate found so far.
+     * @param book             book of the first plies, null to search every position.
+     */
+    public Solver(int threads, int threadsPerSearch, int queueSize, int tableSize, long timeMs, OpeningBook book) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "solver-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.threadsPerSearch = Math.min(threadsPerSearch, threads);
+        this.timeMs = timeMs;
+        this.table = new TranspositionTable(tableSize);
+        this.engines = ThreadLocal.withInitial(() -> new Engine(table, book));
+    }
+
+    /**
+     * Get the solver configured for the application
+     */
+    public static Solver getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    private static Solver fromConfig(Config config) {
+        return new Solver(config.getInt(KEY_THREADS), config.getInt(KEY_THREADS_PER_SEARCH),
+                config.getInt(KEY_QUEUE_SIZE), config.getInt(KEY_TABLE_SIZE),
+                config.getDuration(KEY_TIME, TimeUnit.MILLISECONDS), OpeningBook.getDefault());
+    }
+
+    /**
+     * Solve the position after the moves, one character per move ('0' + column), with the configured threads.
+     * Cancelling the returned future stops the search.
+     *
+     * @return a future failed with a {@link RejectedExecutionException} if the solver is too busy, or with a
+     * {@link TimeoutException} if no thread finished a single iteration in time.
+     */
+    public CompletableFuture<Solution> solve(String moves) {
+        return solve(moves, threadsPerSearch);
+    }
+
+    /**
+     * Solve the position after the moves with the given number of threads
+     *
+     * @see #solve(String)
+     */
+    public CompletableFuture<Solution> solve(String moves, int threads) {
+        long board = 0, occupied = 0;
+        for (int i = 0; i < moves.length(); i++) {
+            board ^= occupied;
+            occupied |= BitBoard.moveBit(occupied, moves.charAt(i) - '0');
+        }
+
+        Search search = new Search(board, occupied, moves.length(), threads, timeMs);
+        search.result.whenComplete((solution, e) -> search.cancelled.set(true));
+        for (int i = 0; i < threads; i++) {
+            int helper = i;
+            try {
+                executor.execute(() -> run(search, helper));
+            } catch (RejectedExecutionException e) {
+                if (helper == 0) {
+                    search.result.completeExceptionally(e);
+                    return search.result;
+                }
+                // The search goes on with fewer threads
+                finish(search, null);
+            }
+        }
+        return search.result;
+    }
+
+    /**
+     * Remove all results kept from earlier searches
+     */
+    public void clear() {
+        table.clear();
+    }
+
+    /**
+     * Stop the threads of the solver
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void run(Search search, int helper) {
+        if (search.cancelled.get()) {
+            finish(search, null);
+            return;
+        }
+
+        Engine engine = engines.get();
+        long timeMs = Math.max(0, TimeUnit.NANOSECONDS.toMillis(search.deadline - System.nanoTime()));
+        int column = engine.search(search.board, search.occupied, search.plies, 1 + helper % 2,
+                BitBoard.CELLS, timeMs, search.cancelled);
+        search.nodes.add(engine.getNodes());
+
+        Solution solution = null;
+        if (column >= 0 || engine.isExact())
+            solution = new Solution(column, engine.getScore(), engine.isExact(), engine.getDepth(), 0, 0);
+        // The first proven value ends the search for all threads
+        if (solution != null && solution.isExact())
+            search.cancelled.set(true);
+        finish(search, solution);
+    }
+
+    // Keeps the best solution of the threads and completes the search once the last thread is done
+    private void finish(Search search, Solution solution) {
+        synchronized (search) {
+            if (solution != null && (search.best == null || !search.best.isExact()
+                    && (solution.isExact() || solution.getDepth() > search.best.getDepth())))
+                search.best = solution;
+        }
+        if (search.running.decrementAndGet() > 0)
+            return;
+
+        Solution best = search.best;
+        if (best == null) {
+            // Every thread ran out of time or was stopped before it finished an iteration
+            search.result.completeExceptionally(new TimeoutException("No result for the position within "
+                    + search.timeMs + " ms"));
+            return;
+        }
+        search.result.complete(new Solution(best.getColumn(), best.getScore(), best.isExact(), best.getDepth(),
+                search.nodes.sum(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - search.start)));
+    }
+}
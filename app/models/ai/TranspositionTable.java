@@ -0,0 +1,84 @@
+package models.ai;
+
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size transposition table of search results, keyed by {@link models.BitBoard#key(long, long)}.
+ * <p>
+ * Every slot holds two longs: the data of the entry, and the key xor'd with the data. An entry is only used if the
+ * two still match its key, so a slot overwritten by another position, or torn by a concurrent write, reads as a miss.
+ * The table never allocates after it is created, and newer entries always replace older ones.
+ */
+public class TranspositionTable {
+
+    public static final int FLAG_EXACT = 1;
+    public static final int FLAG_LOWER = 2;
+    public static final int FLAG_UPPER = 3;
+
+    // Multiplier spreading the keys over the slots (Fibonacci hashing)
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final long[] slots;
+    private final int shift;
+
+
+    /**
+     * Create a table with room for at least the given number of entries, rounded up to a power of two
+     */
+    public TranspositionTable(int size) {
+        int bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+        this.slots = new long[2 << bits];
+        this.shift = 64 - bits;
+    }
+
+    /**
+     * Get the data of the entry for a key
+     *
+     * @return 0 if the table has no entry for the key.
+     */
+    public long probe(long key) {
+        int index = index(key);
+        long data = slots[index + 1];
+        return (slots[index] ^ data) == key ? data : 0;
+    }
+
+    /**
+     * Store the result of a search for a key
+     *
+     * @param move column of the best move, -1 if there is none.
+     */
+    public void store(long key, int score, int depth, int flag, int move) {
+        long data = (score & 0xFFFFL) | (long) depth << 16 | (long) flag << 24 | (long) (move + 1) << 26;
+        int index = index(key);
+        slots[index] = key ^ data;
+        slots[index + 1] = data;
+    }
+
+    /**
+     * Remove all entries
+     */
+    public void clear() {
+        Arrays.fill(slots, 0);
+    }
+
+    public static int score(long data) {
+        return (short) data;
+    }
+
+    public static int depth(long data) {
+        return (int) (data >>> 16) & 0xFF;
+    }
+
+    public static int flag(long data) {
+        return (int) (data >>> 24) & 0x3;
+    }
+
+    public static int move(long data) {
+        return ((int) (data >>> 26) & 0xF) - 1;
+    }
+
+    private int index(long key) {
+        return (int) ((key * HASH_MULTIPLIER) >>> shift) << 1;
+    }
+}
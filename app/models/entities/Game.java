@@ -1,53 +1,126 @@
 package models.entities;
 
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import common.Metrics;
 import common.MongoUtils;
+import models.GameArchive;
+import models.GameModel;
+import models.Rules;
 import org.bson.types.ObjectId;
+import org.mongodb.morphia.Datastore;
 import org.mongodb.morphia.annotations.Entity;
 import org.mongodb.morphia.annotations.Id;
+import org.mongodb.morphia.annotations.Indexed;
+import org.mongodb.morphia.annotations.PostLoad;
+import org.mongodb.morphia.annotations.Property;
 import org.mongodb.morphia.annotations.Transient;
+import org.mongodb.morphia.query.Query;
+import play.Logger;
 import play.libs.Json;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
+/**
+ * A game as stored in Mongo.
+ * The board is kept as a packed string of moves, one character per move ('0' + column), and the grid is rebuilt
+ * from it on demand. Documents written before the moves were packed hold a grid and a move history list instead;
+ * they are converted when loaded and rewritten in the packed form by their next update or by {@link #migrateLegacy}.
+ * The board size and connection length are stored with the game, documents without them are standard games.
+ * Games that have ended or gone idle are moved to the archive collection by {@link models.GameArchive}, packed into
+ * a few bytes each, and read back from there by id.
+ */
 @Entity(value = "game", noClassnameStored = true)
 public class Game {
 
     @Transient
-    private static final String KEY_ID = "id", KEY_STARTED_ON = "startedOn", KEY_CREATED_ON = "createdOn";
+    private static final String KEY_ID = "id", KEY_STARTED_ON = "startedOn",
+            KEY_MOVES = "moves", KEY_MOVE_COUNT = "moveCount", KEY_LAST_DISC = "lastDisc",
+            KEY_LEGACY_GRID = "grid", KEY_LEGACY_MOVE_HISTORY = "moveHistory", KEY_CREATED_ON = "createdOn",
+            KEY_ARCHIVE_AFTER = "archiveAfter", KEY_DATA = "data", KEY_AI_TIME_MS = "aiTimeMs",
+            KEY_ROWS = "rows", KEY_COLUMNS = "columns", KEY_CONNECT = "connect", KEY_FORFEIT = "forfeit";
+    @Transient
+    private static final int ARCHIVE_VERSION = 1;
+    @Transient
+    private static final int ARCHIVE_HEADER_LENGTH = 6;
+    @Transient
+    private static final short DISC_1 = 1;
+    @Transient
+    private static final short DISC_2 = 2;
+    @Transient
+    private static final int MIGRATION_BATCH_SIZE = 500;
 
     @Id
     private ObjectId id;
-    private short[][] grid;
+    private String moves;
+    private int moveCount;
     private short lastDisc;
     private long createdOn;
     private long startedOn;
-    private List<Short> moveHistory = new ArrayList<>();
+    private int rows;
+    private int columns;
+    private int connect;
+    // Search settings of the engine holding the second seat, a depth of 0 if both seats are held by players
+    private int aiDepth;
+    private long aiTimeMs;
+    // Disc that lost the game by running out of time on its turn, 0 if the game was not forfeited
+    private short forfeit;
+    // Time after which the game is moved to the archive, pushed back by every write of its moves
+    @Indexed
+    private long archiveAfter;
+    @Transient
+    private short[][] grid;
+    // Only read from legacy documents
+    @Property(KEY_LEGACY_MOVE_HISTORY)
+    private List<Short> legacyMoveHistory;
 
 
     // Empty constructor for framework
     public Game() {
     }
 
-    public Game(short[][] grid) {
-        this.grid = grid;
+    public Game(String moves, Rules rules) {
+        this.moves = moves;
+        moveCount = moves.length();
         createdOn = System.currentTimeMillis();
+        archiveAfter = createdOn + GameArchive.getIdleTimeoutMs();
+        rows = rules.getRows();
+        columns = rules.getColumns();
+        connect = rules.getConnect();
     }
 
+
     /**
-     * Find game by Id
+     * Find game by Id, in the archive if it is no longer among the active games
      */
     public static Game findById(String id) {
-        return MongoUtils.getDatastore().get(Game.class, new ObjectId(id));
+        Game game = MongoUtils.getDatastore().get(Game.class, new ObjectId(id));
+        return game != null ? game : GameArchive.findById(id);
+    }
+
+    /**
+     * Find game by Id for reading only, an archived game is left in the archive
+     */
+    public static Game read(String id) {
+        Game game = MongoUtils.getDatastore().get(Game.class, new ObjectId(id));
+        return game != null ? game : GameArchive.read(id);
     }
 
     /**
-     * Find the first game that hasn't yet been started
+     * Record the time a game was started with a targeted update
      */
-    public static Game findOpenGame() {
-        return MongoUtils.getDatastore().createQuery(Game.class).field(KEY_STARTED_ON).equal(0).order(KEY_CREATED_ON)
-                .limit(1).get();
+    public static void setStartedOn(String id, long startedOn) {
+        Datastore datastore = MongoUtils.getDatastore();
+        datastore.update(datastore.createQuery(Game.class).field(KEY_ID).equal(new ObjectId(id)),
+                datastore.createUpdateOperations(Game.class).set(KEY_STARTED_ON, startedOn));
     }
 
 
@@ -55,7 +128,220 @@ public class Game {
      * Check if game with the given Id exists
      */
     public static boolean exists(String id) {
-        return MongoUtils.getDatastore().find(Game.class, KEY_ID, new ObjectId(id)).countAll() > 0;
+        return MongoUtils.getDatastore().find(Game.class, KEY_ID, new ObjectId(id)).countAll() > 0
+                || GameArchive.exists(id);
+    }
+
+    /**
+     * Find games that have been left alone past their archive time, including games stored before it was kept
+     */
+    public static List<Game> findArchivable(long now, int limit) {
+        Query<Game> query = MongoUtils.getDatastore().createQuery(Game.class);
+        query.or(query.criteria(KEY_ARCHIVE_AFTER).lessThan(now),
+                query.and(query.criteria(KEY_ARCHIVE_AFTER).equal(null),
+                        query.criteria(KEY_CREATED_ON).lessThan(now - GameArchive.getIdleTimeoutMs())));
+        return query.limit(limit).asList();
+    }
+
+    /**
+     * Remove archived games from the active games, except for those written since they were found
+     */
+    public static void removeArchived(Collection<Game> games, long now) {
+        if (games.isEmpty())
+            return;
+
+        BulkWriteOperation bulk = MongoUtils.getDatastore().getCollection(Game.class).initializeUnorderedBulkOperation();
+        for (Game game : games) {
+            // A write of the game's moves moves its archive time into the future
+            bulk.find(new BasicDBObject("_id", game.id).append("$or", Arrays.asList(
+                    new BasicDBObject(KEY_ARCHIVE_AFTER, new BasicDBObject("$lt", now)),
+                    new BasicDBObject(KEY_ARCHIVE_AFTER, null)))).removeOne();
+        }
+        bulk.execute();
+    }
+
+    /**
+     * Stream the games stored after an id in id order through a cursor fetching them in batches, with only the
+     * fields needed to replay them. Read the documents with {@link #fromScan} and close the cursor when done.
+     *
+     * @param after null to start with the first game.
+     */
+    public static DBCursor scan(ObjectId after, int batchSize) {
+        BasicDBObject query = after != null
+                ? new BasicDBObject("_id", new BasicDBObject("$gt", after)) : new BasicDBObject();
+        BasicDBObject fields = new BasicDBObject(KEY_MOVES, 1).append(KEY_LEGACY_MOVE_HISTORY, 1)
+                .append(KEY_ROWS, 1).append(KEY_COLUMNS, 1).append(KEY_CONNECT, 1)
+                .append(KEY_CREATED_ON, 1).append(KEY_ARCHIVE_AFTER, 1).append(KEY_FORFEIT, 1);
+        return MongoUtils.getDatastore().getCollection(Game.class).find(query, fields)
+                .sort(new BasicDBObject("_id", 1)).batchSize(batchSize);
+    }
+
+    /**
+     * Read a game streamed by {@link #scan}. Morphia is left out, as its entity cache would keep every game read
+     * from a cursor.
+     */
+    @SuppressWarnings("unchecked")
+    public static Game fromScan(DBObject document) {
+        Game game = new Game();
+        game.id = (ObjectId) document.get("_id");
+        game.moves = (String) document.get(KEY_MOVES);
+        List<Number> moveHistory = (List<Number>) document.get(KEY_LEGACY_MOVE_HISTORY);
+        if (game.moves == null && moveHistory != null) {
+            StringBuilder moves = new StringBuilder(moveHistory.size());
+            for (Number column : moveHistory)
+                moves.append((char) ('0' + column.intValue()));
+            game.moves = moves.toString();
+        }
+        game.rows = getInt(document, KEY_ROWS);
+        game.columns = getInt(document, KEY_COLUMNS);
+        game.connect = getInt(document, KEY_CONNECT);
+        game.createdOn = getLong(document, KEY_CREATED_ON);
+        game.archiveAfter = getLong(document, KEY_ARCHIVE_AFTER);
+        game.forfeit = (short) getInt(document, KEY_FORFEIT);
+        game.convertLegacy();
+        return game;
+    }
+
+    /**
+     * Read a game from its archive document
+     */
+    public static Game fromArchive(DBObject document) {
+        byte[] data = (byte[]) document.get(KEY_DATA);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (buffer.get() != ARCHIVE_VERSION)
+            throw new IllegalArgumentException("Unknown archive version " + data[0]);
+
+        Game game = new Game();
+        game.id = (ObjectId) document.get("_id");
+        game.createdOn = ((Number) document.get(KEY_CREATED_ON)).longValue();
+        game.startedOn = ((Number) document.get(KEY_STARTED_ON)).longValue();
+        Number aiTimeMs = (Number) document.get(KEY_AI_TIME_MS);
+        game.aiTimeMs = aiTimeMs != null ? aiTimeMs.longValue() : 0;
+
+        int size = buffer.get() & 0xff;
+        game.rows = (size >>> 4) + 1;
+        game.columns = (size & 0xf) + 1;
+        int connect = buffer.get() & 0xff;
+        game.connect = connect & 0xf;
+        game.forfeit = (short) (connect >>> 4);
+        game.aiDepth = buffer.get() & 0xff;
+        int moveCount = buffer.getShort() & 0xffff;
+
+        StringBuilder moves = new StringBuilder(moveCount);
+        for (int i = 0; i < moveCount; i++) {
+            int packed = data[ARCHIVE_HEADER_LENGTH + i / 2];
+            moves.append((char) ('0' + (i % 2 == 0 ? packed >>> 4 & 0xf : packed & 0xf)));
+        }
+        game.update(moves.toString(), moveCount == 0 ? 0 : moveCount % 2 == 1 ? DISC_1 : DISC_2);
+        return game;
+    }
+
+    /**
+     * Write the moves of games with one targeted update each, sent to Mongo as a single bulk operation.
+     * A stored game is only updated if it has fewer moves, so repeated or stale writes from other nodes are ignored.
+     */
+    public static void updateMoves(Collection<Game> games) {
+        if (games.isEmpty())
+            return;
+
+        long now = System.currentTimeMillis();
+        BulkWriteOperation bulk = MongoUtils.getDatastore().getCollection(Game.class).initializeUnorderedBulkOperation();
+        for (Game game : games) {
+            synchronized (game) {
+                // An ended game is archived soon, a game still being played once it has gone idle
+                game.archiveAfter = now + (game.isEnded()
+                        ? GameArchive.getEndedDelayMs() : GameArchive.getIdleTimeoutMs());
+                bulk.find(new BasicDBObject("_id", game.id)
+                        .append(KEY_MOVE_COUNT, new BasicDBObject("$not", new BasicDBObject("$gte", game.moveCount))))
+                        .updateOne(new BasicDBObject("$set", new BasicDBObject(KEY_MOVES, game.moves)
+                                .append(KEY_MOVE_COUNT, game.moveCount)
+                                .append(KEY_LAST_DISC, game.lastDisc)
+                                .append(KEY_ARCHIVE_AFTER, game.archiveAfter))
+                                .append("$unset", new BasicDBObject(KEY_LEGACY_GRID, "")
+                                        .append(KEY_LEGACY_MOVE_HISTORY, "")));
+            }
+        }
+        bulk.execute();
+    }
+
+    /**
+     * Write the forfeits of games with one targeted update each, sent to Mongo as a single bulk operation.
+     * The games are archived as soon as games that have ended.
+     */
+    public static void updateForfeits(Collection<Game> games) {
+        if (games.isEmpty())
+            return;
+
+        long archiveAfter = System.currentTimeMillis() + GameArchive.getEndedDelayMs();
+        BulkWriteOperation bulk = MongoUtils.getDatastore().getCollection(Game.class).initializeUnorderedBulkOperation();
+        for (Game game : games) {
+            synchronized (game) {
+                game.archiveAfter = archiveAfter;
+                bulk.find(new BasicDBObject("_id", game.id)).updateOne(new BasicDBObject("$set",
+                        new BasicDBObject(KEY_FORFEIT, game.forfeit).append(KEY_ARCHIVE_AFTER, archiveAfter)));
+            }
+        }
+        bulk.execute();
+    }
+
+    /**
+     * Delete games that never started, as long as they still have not
+     */
+    public static void removeUnstarted(Collection<String> ids) {
+        if (ids.isEmpty())
+            return;
+
+        BulkWriteOperation bulk = MongoUtils.getDatastore().getCollection(Game.class).initializeUnorderedBulkOperation();
+        for (String id : ids)
+            bulk.find(new BasicDBObject("_id", new ObjectId(id)).append(KEY_STARTED_ON, 0).append(KEY_MOVE_COUNT, 0))
+                    .removeOne();
+        bulk.execute();
+    }
+
+    /**
+     * Convert all documents still holding a grid and a move history list to packed moves, in batches
+     *
+     * @return number of converted documents.
+     */
+    public static int migrateLegacy(Datastore datastore) {
+        DBCollection collection = datastore.getCollection(Game.class);
+        DBCursor cursor = collection.find(new BasicDBObject(KEY_MOVES, new BasicDBObject("$exists", false)),
+                new BasicDBObject(KEY_LEGACY_MOVE_HISTORY, 1)).batchSize(MIGRATION_BATCH_SIZE);
+
+        int count = 0, pending = 0;
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        try {
+            while (cursor.hasNext()) {
+                DBObject document = cursor.next();
+                @SuppressWarnings("unchecked")
+                List<Number> moveHistory = (List<Number>) document.get(KEY_LEGACY_MOVE_HISTORY);
+                StringBuilder moves = new StringBuilder();
+                if (moveHistory != null) {
+                    for (Number column : moveHistory)
+                        moves.append((char) ('0' + column.intValue()));
+                }
+
+                bulk.find(new BasicDBObject("_id", document.get("_id"))
+                        .append(KEY_MOVES, new BasicDBObject("$exists", false)))
+                        .updateOne(new BasicDBObject("$set", new BasicDBObject(KEY_MOVES, moves.toString())
+                                .append(KEY_MOVE_COUNT, moves.length()))
+                                .append("$unset", new BasicDBObject(KEY_LEGACY_GRID, "")
+                                        .append(KEY_LEGACY_MOVE_HISTORY, "")));
+                count++;
+                if (++pending == MIGRATION_BATCH_SIZE) {
+                    bulk.execute();
+                    bulk = collection.initializeUnorderedBulkOperation();
+                    pending = 0;
+                }
+            }
+            if (pending > 0)
+                bulk.execute();
+        } finally {
+            cursor.close();
+        }
+
+        Logger.info("Migrated {} games to packed moves", count);
+        return count;
     }
 
 
@@ -63,12 +349,45 @@ public class Game {
         return id.toHexString();
     }
 
-    public short[][] getGrid() {
-        return grid;
+    /**
+     * Encode the game as an archive document: the moves packed two to a byte behind a short header.
+     * <pre>
+     * byte 0     archive version
+     * byte 1     rows - 1 in the high nibble, columns - 1 in the low nibble
+     * byte 2     discs to connect in the low nibble, the disc that forfeited the game in the high nibble
+     * byte 3     search depth of the engine, 0 if both seats are held by players
+     * byte 4-5   number of moves, unsigned big-endian
+     * byte 6..   the columns of the moves, 4 bits each, the first move in the high nibble
+     * </pre>
+     * The times of the game and the engine's time per move are kept next to the data.
+     */
+    public DBObject toArchive() {
+        String moves = getMoves();
+        ByteBuffer buffer = ByteBuffer.allocate(ARCHIVE_HEADER_LENGTH + (moves.length() + 1) / 2)
+                .put((byte) ARCHIVE_VERSION)
+                .put((byte) ((rows - 1) << 4 | (columns - 1)))
+                .put((byte) (forfeit << 4 | connect))
+                .put((byte) aiDepth)
+                .putShort((short) moves.length());
+        for (int i = 0; i < moves.length(); i += 2) {
+            int high = moves.charAt(i) - '0', low = i + 1 < moves.length() ? moves.charAt(i + 1) - '0' : 0;
+            buffer.put((byte) (high << 4 | low));
+        }
+
+        BasicDBObject document = new BasicDBObject("_id", id).append(KEY_DATA, buffer.array())
+                .append(KEY_CREATED_ON, createdOn).append(KEY_STARTED_ON, startedOn);
+        if (aiDepth > 0)
+            document.append(KEY_AI_TIME_MS, aiTimeMs);
+        return document;
     }
 
-    public void setGrid(short[][] grid) {
-        this.grid = grid;
+    /**
+     * Get the grid, rebuilt from the moves when first needed
+     */
+    public short[][] getGrid() {
+        if (grid == null)
+            grid = getRules().replay(moves);
+        return grid;
     }
 
     public short getLastDisc() {
@@ -79,12 +398,69 @@ public class Game {
         this.lastDisc = lastDisc;
     }
 
-    public void setStartedOn(long startedOn) {
-        this.startedOn = startedOn;
+    /**
+     * Get the rules of the board size and connection length of the game
+     */
+    @JsonIgnore
+    public Rules getRules() {
+        return Rules.of(rows, columns, connect);
+    }
+
+    @JsonIgnore
+    public int getAiDepth() {
+        return aiDepth;
+    }
+
+    @JsonIgnore
+    public long getAiTimeMs() {
+        return aiTimeMs;
+    }
+
+    /**
+     * Set the search settings of the engine holding the second seat
+     */
+    public void setAi(int aiDepth, long aiTimeMs) {
+        this.aiDepth = aiDepth;
+        this.aiTimeMs = aiTimeMs;
     }
 
-    public void addMove(short column) {
-        moveHistory.add(column);
+    @JsonIgnore
+    public String getMoves() {
+        return moves;
+    }
+
+    /**
+     * Get the disc that lost the game by running out of time on its turn
+     *
+     * @return 0 if the game was not forfeited.
+     */
+    @JsonIgnore
+    public short getForfeit() {
+        return forfeit;
+    }
+
+    /**
+     * Record that a disc lost the game by running out of time on its turn. The change is written by
+     * {@link #updateForfeits}.
+     */
+    public void forfeit(short disc) {
+        forfeit = disc;
+    }
+
+    /**
+     * Check whether the game has ended with a connection, a full board or a forfeit
+     */
+    @JsonIgnore
+    public boolean isEnded() {
+        return forfeit != 0 || getRules().isEnded(moves);
+    }
+
+    /**
+     * Check whether the game has been left alone past its archive time, as every archived game has
+     */
+    @JsonIgnore
+    public boolean isIdle(long now) {
+        return archiveAfter != 0 ? archiveAfter < now : createdOn < now - GameArchive.getIdleTimeoutMs();
     }
 
     @Override
@@ -93,14 +469,47 @@ public class Game {
     }
 
     public String save() {
+        long start = System.nanoTime();
+        if (id != null)
+            // A game brought back from the archive gets the time of a new game before it is archived again
+            archiveAfter = System.currentTimeMillis() + GameArchive.getIdleTimeoutMs();
         MongoUtils.getDatastore().save(this);
+        Metrics.time(Metrics.Stage.GAME_SAVE, start);
         return getId();
     }
 
-    public void update(short move, short[][] grid, short disc) {
-        moveHistory.add(move);
-        this.grid = grid;
-        this.lastDisc = disc;
-        save();
+    /**
+     * Update the state of the game from its board. The change is written by the game cache.
+     */
+    public void update(String moves, short lastDisc) {
+        this.moves = moves;
+        this.lastDisc = lastDisc;
+        moveCount = moves.length();
+        grid = null;
+    }
+
+    private static int getInt(DBObject document, String key) {
+        Number value = (Number) document.get(key);
+        return value != null ? value.intValue() : 0;
+    }
+
+    private static long getLong(DBObject document, String key) {
+        Number value = (Number) document.get(key);
+        return value != null ? value.longValue() : 0;
+    }
+
+    // Documents written before the moves were packed only have a move history list,
+    // and documents written before other board sizes were played have no size
+    @PostLoad
+    private void convertLegacy() {
+        if (moves == null)
+            moves = legacyMoveHistory != null ? GameModel.toMoves(legacyMoveHistory) : "";
+        moveCount = moves.length();
+        legacyMoveHistory = null;
+        if (rows == 0) {
+            rows = Rules.STANDARD.getRows();
+            columns = Rules.STANDARD.getColumns();
+            connect = Rules.STANDARD.getConnect();
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,14 +1,64 @@
 package models.entities;
 
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import common.Constants;
+import common.Frame;
 import models.MessageType;
+import models.Rules;
 import play.libs.Json;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Message exchanged with the clients of a game.
+ * <p>
+ * Moves are sent as deltas carrying only the column, the row, the disc and the sequence number of the move,
+ * so a message stays the same size however long the game gets. The full game is only sent as a snapshot on
+ * CONNECT and on SNAPSHOT, which a client requests to resync, for example after noticing a gap in the sequence.
+ * A client reconnecting with the sequence number of the last move it has seen gets RESUME instead of CONNECT,
+ * followed by the moves it missed, which are rebuilt from the moves of the game.
+ * <p>
+ * A game lost by running out of time ends with an END of its own after the last move, without a column, holding the
+ * disc that forfeited and the sequence number following that of the last move. Snapshots of the game carry that disc
+ * as forfeit and its sequence number, and a forfeited game is resumed and replayed up to that END.
+ * <p>
+ * The same message can be encoded as a binary frame for bot clients:
+ * <pre>
+ * byte 0     protocol version
+ * byte 1     type, ordinal of {@link MessageType}
+ * byte 2     disc
+ * byte 3     column, -1 if not a move
+ * byte 4     row, -1 if not a move
+ * byte 5-6   sequence number, unsigned big-endian
+ * byte 7..   END: (row, column) byte pairs of the winning cells
+ *            CONNECT and SNAPSHOT: the length of the data in one byte, the data as UTF-8,
+ *            the rows, columns and discs to connect in one byte each, the disc that forfeited or 0,
+ *            then the moves, one byte per move holding the column
+ *            otherwise: the data as UTF-8
+ * </pre>
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class GameMessage {
 
+    public static final int VERSION = 4;
+    private static final int HEADER_LENGTH = 7;
+
+    private int v = VERSION;
     private MessageType type;
     private short disc;
     private String data;
+    private Integer seq;
+    private Short column;
+    private Short row;
+    private short[][] win;
+    private JsonNode game;
 
 
     // Empty constructor for framework
@@ -21,11 +71,105 @@ public class GameMessage {
         this.data = data;
     }
 
+    /**
+     * Delta for a move, with the (row, column) cells of the winning connection if the move won the game
+     */
+    public static GameMessage move(MessageType type, short disc, short column, short row, int seq, short[][] win) {
+        GameMessage gameMessage = new GameMessage(type, disc, null);
+        gameMessage.column = column;
+        gameMessage.row = row;
+        gameMessage.seq = seq;
+        gameMessage.win = win;
+        return gameMessage;
+    }
+
+    /**
+     * END of a game lost by a disc that ran out of time on its turn, after the given number of moves
+     */
+    public static GameMessage forfeit(short disc, int moveCount) {
+        GameMessage gameMessage = new GameMessage(MessageType.END, disc, Constants.MESSAGE_TURN_TIMEOUT);
+        gameMessage.seq = moveCount + 1;
+        return gameMessage;
+    }
+
+    /**
+     * Full state of a game with the size of its board, sent on CONNECT and whenever a client asks to resync
+     *
+     * @param forfeit disc that lost the game by running out of time, 0 if the game was not forfeited.
+     */
+    public static GameMessage snapshot(MessageType type, short disc, String data, String gameId, Rules rules,
+                                       String moves, short forfeit, short[][] grid) {
+        GameMessage gameMessage = new GameMessage(type, disc, data);
+        gameMessage.seq = getLastSeq(moves, forfeit);
+        gameMessage.game = Json.newObject().put("id", gameId)
+                .put("rows", rules.getRows()).put("columns", rules.getColumns()).put("connect", rules.getConnect())
+                .put("moves", moves).put("forfeit", forfeit).set("grid", Json.toJson(grid));
+        return gameMessage;
+    }
+
+    /**
+     * Messages for a player connecting to a game: the CONNECT snapshot, or for a player resuming from the sequence
+     * number of the last move it has seen, RESUME with the sequence number of the last move of the game and then the
+     * MOVE of every move it missed. A player resuming from a move the game does not have gets the snapshot.
+     *
+     * @param forfeit disc that lost the game by running out of time, 0 if the game was not forfeited.
+     * @param seq     negative for a player who has not seen the game.
+     */
+    public static List<GameMessage> connect(short disc, String gameId, Rules rules, String moves, short forfeit,
+                                            int seq) {
+        int lastSeq = getLastSeq(moves, forfeit);
+        if (seq < 0 || seq > lastSeq)
+            return Collections.singletonList(
+                    snapshot(MessageType.CONNECT, disc, gameId, gameId, rules, moves, forfeit, rules.replay(moves)));
+
+        List<GameMessage> messages = new ArrayList<>(1 + lastSeq - seq);
+        GameMessage resume = new GameMessage(MessageType.RESUME, disc, gameId);
+        resume.seq = lastSeq;
+        messages.add(resume);
+        for (int i = seq + 1; i <= lastSeq; i++)
+            messages.add(replay(rules, moves, forfeit, i));
+        return messages;
+    }
+
+    /**
+     * Rebuild the message with the given sequence number as it was sent when the move was made, the first player
+     * holding disc 1, or the forfeit that followed the last move
+     *
+     * @param forfeit disc that lost the game by running out of time, 0 if the game was not forfeited.
+     */
+    public static GameMessage replay(Rules rules, String moves, short forfeit, int seq) {
+        if (seq > moves.length())
+            return forfeit(forfeit, moves.length());
+
+        short column = (short) (moves.charAt(seq - 1) - '0');
+        int below = 0;
+        for (int i = 0; i < seq - 1; i++)
+            if (moves.charAt(i) - '0' == column)
+                below++;
+        short row = (short) (rules.getRows() - 1 - below);
+        short disc = (short) (seq % 2 == 1 ? 1 : 2);
+
+        if (seq < moves.length() || !rules.isEnded(moves))
+            return move(MessageType.MOVE, disc, column, row, seq, null);
+        return move(MessageType.END, disc, column, row, seq, rules.isWin(moves) ? rules.winCells(moves) : null);
+    }
+
+    /**
+     * Get the sequence number of the last message of a game, that of its forfeit if it was forfeited
+     */
+    public static int getLastSeq(String moves, short forfeit) {
+        return forfeit != 0 ? moves.length() + 1 : moves.length();
+    }
+
     public static GameMessage fromJsonString(String jsonString) {
         return Json.fromJson(Json.parse(jsonString), GameMessage.class);
     }
 
 
+    public int getV() {
+        return v;
+    }
+
     public MessageType getType() {
         return type;
     }
@@ -38,8 +182,78 @@ public class GameMessage {
         return data;
     }
 
+    public Integer getSeq() {
+        return seq;
+    }
+
+    public Short getColumn() {
+        return column;
+    }
+
+    public Short getRow() {
+        return row;
+    }
+
+    public short[][] getWin() {
+        return win;
+    }
+
+    public JsonNode getGame() {
+        return game;
+    }
+
     @Override
     public String toString() {
-        return Json.stringify(Json.toJson(this));
+        // Written straight to text without building a JSON tree first
+        try {
+            return Json.mapper().writeValueAsString(this);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encode the message once into a frame to be published and shared by all recipients
+     */
+    public Frame toFrame() {
+        return new Frame(type.ordinal(), toString());
+    }
+
+    /**
+     * Encode the message as a binary frame
+     */
+    public byte[] toBytes() {
+        byte[] dataBytes = data != null ? data.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] payload;
+        if (win != null) {
+            payload = new byte[win.length * 2];
+            for (int i = 0; i < win.length; i++) {
+                payload[2 * i] = (byte) win[i][0];
+                payload[2 * i + 1] = (byte) win[i][1];
+            }
+        } else if (game != null) {
+            String moves = game.path("moves").asText();
+            int movesOffset = 5 + dataBytes.length;
+            payload = new byte[movesOffset + moves.length()];
+            payload[0] = (byte) dataBytes.length;
+            System.arraycopy(dataBytes, 0, payload, 1, dataBytes.length);
+            payload[movesOffset - 4] = (byte) game.path("rows").asInt();
+            payload[movesOffset - 3] = (byte) game.path("columns").asInt();
+            payload[movesOffset - 2] = (byte) game.path("connect").asInt();
+            payload[movesOffset - 1] = (byte) game.path("forfeit").asInt();
+            for (int i = 0; i < moves.length(); i++)
+                payload[movesOffset + i] = (byte) (moves.charAt(i) - '0');
+        } else
+            payload = dataBytes;
+
+        return ByteBuffer.allocate(HEADER_LENGTH + payload.length)
+                .put((byte) v)
+                .put((byte) type.ordinal())
+                .put((byte) disc)
+                .put(column != null ? column.byteValue() : -1)
+                .put(row != null ? row.byteValue() : -1)
+                .putShort(seq != null ? seq.shortValue() : 0)
+                .put(payload)
+                .array();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,128 @@
+package benchmarks;
+
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.pattern.Patterns;
+import akka.util.Timeout;
+import com.typesafe.config.ConfigFactory;
+import common.BlockingIo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saturation of the Akka dispatcher by blocking store calls, before and after moving them to {@link BlockingIo}.
+ * <p>
+ * Game actors keep making calls that block for a Redis or Mongo round trip, either on their dispatcher thread
+ * ({@code inline}, as game actors used to) or on the blocking I/O lanes ({@code offloaded}). The benchmark measures
+ * the round trip of a message to an actor that does no I/O at all on the same dispatcher, which is what every other
+ * socket and request of the node waits for while the dispatcher's threads are blocked.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatcherBenchmark {
+
+    private static final String CALLS_INLINE = "inline";
+    private static final String CALL = "call";
+    // Threads of the dispatcher, as on a small node
+    private static final int DISPATCHER_THREADS = 4;
+    private static final Timeout TIMEOUT = new Timeout(Duration.create(10, TimeUnit.SECONDS));
+
+    @Param({"inline", "offloaded"})
+    public String calls;
+    // Game actors making calls at the same time
+    @Param({"64"})
+    public int games;
+    // Time a call blocks for
+    @Param({"1"})
+    public long callMs;
+
+    private ActorSystem actorSystem;
+    private ActorRef echo;
+
+
+    static class GameActor extends UntypedActor {
+
+        private final String gameId;
+        private final boolean inline;
+        private final long callMs;
+
+        public GameActor(String gameId, boolean inline, long callMs) {
+            this.gameId = gameId;
+            this.inline = inline;
+            this.callMs = callMs;
+        }
+
+        @Override
+        public void onReceive(Object message) throws Exception {
+            // Every call is followed by the next one as soon as its result is in, like a busy socket
+            if (inline) {
+                block(callMs);
+                self().tell(CALL, self());
+            } else
+                BlockingIo.pipe(gameId, () -> {
+                    block(callMs);
+                    return CALL;
+                }, self());
+        }
+    }
+
+    static class EchoActor extends UntypedActor {
+
+        @Override
+        public void onReceive(Object message) throws Exception {
+            sender().tell(message, self());
+        }
+    }
+
+
+    @Setup
+    public void setUp() {
+        actorSystem = ActorSystem.create("benchmark", ConfigFactory.parseString(
+                "akka.actor.default-dispatcher.fork-join-executor.parallelism-min = " + DISPATCHER_THREADS + "\n"
+                        + "akka.actor.default-dispatcher.fork-join-executor.parallelism-max = " + DISPATCHER_THREADS));
+        echo = actorSystem.actorOf(Props.create(EchoActor.class));
+        for (int i = 0; i < games; i++)
+            actorSystem.actorOf(Props.create(GameActor.class, "benchmark" + i, calls.equals(CALLS_INLINE), callMs))
+                    .tell(CALL, ActorRef.noSender());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        actorSystem.terminate();
+        Await.result(actorSystem.whenTerminated(), Duration.Inf());
+    }
+
+    @Benchmark
+    public Object roundTrip() throws Exception {
+        return Await.result(Patterns.ask(echo, CALL, TIMEOUT), TIMEOUT.duration());
+    }
+
+    private static void block(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package benchmarks;
+
+
+import common.Frame;
+import common.RedisUtils;
+import models.MessageType;
+import models.Rules;
+import models.entities.GameMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.embedded.RedisServer;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips of the {@link RedisUtils} operations on the hot path of a game.
+ * Runs against an embedded Redis server, or against a local one when {@code -Dbenchmark.redisPort} is set.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RedisBenchmark {
+
+    private static final String KEY_REDIS_PORT = "benchmark.redisPort";
+    private static final int EMBEDDED_PORT = 6380;
+    private static final short DISC_1 = 1;
+    private static final short DISC_2 = 2;
+    private static final String TOKEN = "benchmark";
+
+    private RedisServer server;
+    private JedisPool jedisPool;
+    private Frame frame;
+    private String gameId;
+    private int games;
+    private int moves;
+
+
+    @Setup
+    public void setUp() throws Exception {
+        String port = System.getProperty(KEY_REDIS_PORT);
+        if (port == null) {
+            server = new RedisServer(EMBEDDED_PORT);
+            server.start();
+        }
+        jedisPool = new JedisPool(new JedisPoolConfig(), "localhost",
+                port != null ? Integer.parseInt(port) : EMBEDDED_PORT);
+
+        // The pool is injected by Guice in the application
+        Field field = RedisUtils.class.getDeclaredField("jedisPool");
+        field.setAccessible(true);
+        field.set(null, jedisPool);
+
+        frame = GameMessage.move(MessageType.MOVE, DISC_1, (short) 3, (short) 5, 1, null).toFrame();
+        newGame();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Jedis jedis = jedisPool.getResource();
+        try {
+            jedis.flushDB();
+        } finally {
+            jedisPool.returnResource(jedis);
+        }
+        jedisPool.destroy();
+        if (server != null)
+            server.stop();
+    }
+
+    /**
+     * One move through the commit script, starting a new game whenever the last one ended
+     */
+    @Benchmark
+    public RedisUtils.MoveResult commitMove() {
+        short disc = moves % 2 == 0 ? DISC_1 : DISC_2;
+        Rules rules = Rules.STANDARD;
+        RedisUtils.MoveResult result = RedisUtils.commitMove(gameId, disc, (short) (moves % rules.getColumns()),
+                rules.getRows(), rules.getColumns(), rules.getConnect());
+        moves++;
+        if (result.getStatus() != RedisUtils.MoveResult.STATUS_MOVE)
+            newGame();
+        return result;
+    }
+
+    @Benchmark
+    public String getMoves() {
+        return RedisUtils.getMoves(gameId);
+    }
+
+    @Benchmark
+    public void publish() {
+        RedisUtils.publish(gameId, frame);
+    }
+
+    @Benchmark
+    public void attachAndDetachDisc() {
+        RedisUtils.attachDisc(gameId, DISC_1, TOKEN);
+        RedisUtils.detachDisc(gameId, DISC_1, TOKEN);
+    }
+
+    /**
+     * A game joining the lobby and being taken out of it again by the pairing script
+     */
+    @Benchmark
+    public String joinAndPairLobby() {
+        RedisUtils.joinLobby("benchmark", gameId);
+        return RedisUtils.pairFromLobby("benchmark");
+    }
+
+    private void newGame() {
+        gameId = "benchmark" + games++;
+        moves = 0;
+        RedisUtils.createBoard(gameId, DISC_2);
+    }
+}
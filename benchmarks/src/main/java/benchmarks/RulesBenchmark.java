@@ -0,0 +1,125 @@
+package benchmarks;
+
+
+import models.BitBoard;
+import models.Board;
+import models.Rules;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Win detection on games played to the end, by a connection or a full board, for every size class of {@link Rules}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RulesBenchmark {
+
+    private static final int GAMES = 256;
+
+    // Rows, columns and discs to connect, one board per size class
+    @Param({"6x7x4", "8x7x4", "9x7x4", "10x10x5"})
+    public String board;
+
+    private Rules rules;
+    private final String[] games = new String[GAMES];
+    private final long[] boards = new long[GAMES];
+
+
+    @Setup
+    public void setUp() {
+        String[] size = board.split("x");
+        rules = Rules.of(Integer.parseInt(size[0]), Integer.parseInt(size[1]), Integer.parseInt(size[2]));
+
+        // The same games for every run so results can be compared
+        Random random = new Random(42);
+        for (int i = 0; i < GAMES; i++)
+            games[i] = playToEnd(random);
+
+        if (rules.isStandard()) {
+            for (int i = 0; i < GAMES; i++)
+                boards[i] = lastMoverBoard(games[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GAMES)
+    public void isEnded(Blackhole blackhole) {
+        for (String moves : games)
+            blackhole.consume(rules.isEnded(moves));
+    }
+
+    // A whole game played one move at a time on a board, as the entity of a game does
+    @Benchmark
+    @OperationsPerInvocation(GAMES)
+    public void playOnBoard(Blackhole blackhole) {
+        for (String moves : games) {
+            Board game = rules.newBoard();
+            for (int i = 0; i < moves.length(); i++)
+                game.play(moves.charAt(i) - '0');
+            blackhole.consume(game.isEnded());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GAMES)
+    public void winCells(Blackhole blackhole) {
+        for (String moves : games)
+            blackhole.consume(rules.winCells(moves));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GAMES)
+    public void replay(Blackhole blackhole) {
+        for (String moves : games)
+            blackhole.consume(rules.replay(moves));
+    }
+
+    // The fixed-size bitboard of the engine, only meaningful for the standard board
+    @Benchmark
+    @OperationsPerInvocation(GAMES)
+    public void bitBoardIsWin(Blackhole blackhole) {
+        for (long board : boards)
+            blackhole.consume(BitBoard.isWin(board));
+    }
+
+    // Plays random legal moves until the game ends
+    private String playToEnd(Random random) {
+        StringBuilder moves = new StringBuilder();
+        int[] heights = new int[rules.getColumns()];
+        while (moves.length() == 0 || !rules.isEnded(moves.toString())) {
+            int column = random.nextInt(rules.getColumns());
+            if (heights[column] < rules.getRows()) {
+                heights[column]++;
+                moves.append((char) ('0' + column));
+            }
+        }
+        return moves.toString();
+    }
+
+    private static long lastMoverBoard(String moves) {
+        long board = 0, occupied = 0;
+        for (int i = 0; i < moves.length(); i++) {
+            board ^= occupied;
+            occupied |= BitBoard.moveBit(occupied, moves.charAt(i) - '0');
+        }
+        return board ^ occupied;
+    }
+}
@@ -0,0 +1,96 @@
+package benchmarks;
+
+
+import models.MessageType;
+import models.Rules;
+import models.entities.Game;
+import models.entities.GameMessage;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON and binary encoding of the messages sent to clients, and JSON encoding of stored games.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    // A game a few moves from a full board, so snapshots are as large as they get
+    private static final String MOVES = "3332224441115556660003332224441115556";
+
+    private GameMessage move;
+    private GameMessage snapshot;
+    private String moveJson;
+    private String snapshotJson;
+    private Game game;
+
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        Rules rules = Rules.STANDARD;
+        String gameId = new ObjectId().toHexString();
+        move = GameMessage.move(MessageType.END, (short) 1, (short) 3, (short) 2, MOVES.length(),
+                new short[][]{{2, 3}, {3, 3}, {4, 3}, {5, 3}});
+        snapshot = GameMessage.snapshot(MessageType.SNAPSHOT, (short) 1, gameId, gameId, rules, MOVES,
+                rules.replay(MOVES));
+        moveJson = move.toString();
+        snapshotJson = snapshot.toString();
+
+        // Games only get an id once saved, so it is set directly
+        game = new Game(MOVES, rules);
+        Field id = Game.class.getDeclaredField("id");
+        id.setAccessible(true);
+        id.set(game, new ObjectId(gameId));
+    }
+
+    @Benchmark
+    public String encodeMove() {
+        return move.toString();
+    }
+
+    @Benchmark
+    public String encodeSnapshot() {
+        return snapshot.toString();
+    }
+
+    @Benchmark
+    public byte[] encodeMoveBinary() {
+        return move.toBytes();
+    }
+
+    @Benchmark
+    public byte[] encodeSnapshotBinary() {
+        return snapshot.toBytes();
+    }
+
+    @Benchmark
+    public GameMessage decodeMove() {
+        return GameMessage.fromJsonString(moveJson);
+    }
+
+    @Benchmark
+    public GameMessage decodeSnapshot() {
+        return GameMessage.fromJsonString(snapshotJson);
+    }
+
+    @Benchmark
+    public String encodeGame() {
+        return game.toString();
+    }
+}
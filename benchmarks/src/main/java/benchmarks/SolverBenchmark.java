@@ -0,0 +1,56 @@
+package benchmarks;
+
+
+import models.Rules;
+import models.ai.Solver;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the nodes per second and the speedup of the parallel solver with 1 to N threads.
+ * Every run solves the same positions with a fresh transposition table and without an opening book.
+ * <p>
+ * Run with {@code sbt "benchmarks/runMain benchmarks.SolverBenchmark [maxThreads] [moves...]"}.
+ * The number of threads defaults to the number of available cores.
+ */
+public class SolverBenchmark {
+
+    private static final int TABLE_SIZE = 1 << 22;
+    private static final long TIME_MS = 120_000;
+    private static final List<String> DEFAULT_POSITIONS = Arrays.asList("333422221", "0123456012", "44343", "3232");
+
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        List<String> positions = args.length > 1 ? Arrays.asList(args).subList(1, args.length) : DEFAULT_POSITIONS;
+        for (String moves : positions) {
+            if (!Rules.STANDARD.isValidMoves(moves))
+                throw new IllegalArgumentException("Invalid moves " + moves);
+        }
+
+        System.out.printf("%-8s %12s %10s %14s %8s%n", "threads", "nodes", "ms", "nodes/s", "speedup");
+        double baseMillis = 0;
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            Solver solver = new Solver(threads, threads, threads, TABLE_SIZE, TIME_MS, null);
+            long nodes = 0, millis = 0;
+            try {
+                for (String moves : positions) {
+                    Solver.Solution solution = solver.solve(moves).get();
+                    if (!solution.isExact())
+                        System.out.println("Position " + moves + " was not solved in time");
+                    nodes += solution.getNodes();
+                    millis += solution.getTimeMs();
+                }
+            } finally {
+                solver.shutdown();
+            }
+
+            millis = Math.max(1, millis);
+            if (threads == 1)
+                baseMillis = millis;
+            System.out.printf("%-8d %12d %10d %14d %8.2f%n", threads, nodes, millis, nodes * 1000 / millis,
+                    baseMillis / millis);
+        }
+    }
+}
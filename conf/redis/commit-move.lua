@@ -0,0 +1,96 @@
+-- Atomically checks the turn, drops a disc and looks for a connection through it.
+--
+-- KEYS[1]  board hash of the game with the fields lastDisc, moves, cells and ended
+-- ARGV[1]  disc making the move
+-- ARGV[2]  column of the move
+-- ARGV[3]  rows, ARGV[4] columns, ARGV[5] discs required to connect
+-- ARGV[6]  milliseconds the board is kept after a move, ARGV[7] after the last move of the game.
+--          An expired board is unknown and restored from the stored game by the caller.
+--
+-- The board is kept as the string of moves played so far, one character per move ('0' + column),
+-- with the first move made by disc 1 and the discs alternating after that, and as the string of its cells,
+-- one character per cell at column * rows + height from the bottom + 1: '0' empty, '1' or '2' the disc.
+-- A move reads the height of its column and the cells of the lines through it from the cells, so it costs the same
+-- however long the game is. A board without cells, restored from the stored game, gets them from its moves once.
+--
+-- Returns {status, row, moves} where status is
+--   0 move, 1 win, 2 draw, -1 not the disc's turn, -2 game ended, -3 invalid column, -4 unknown game
+-- and row is the grid row the disc landed on, counted from the top.
+
+local disc = tonumber(ARGV[1])
+local column = tonumber(ARGV[2])
+local rows = tonumber(ARGV[3])
+local columns = tonumber(ARGV[4])
+local connect = tonumber(ARGV[5])
+
+local state = redis.call('HMGET', KEYS[1], 'lastDisc', 'moves', 'ended', 'cells')
+if not state[1] then
+    return {-4, -1, ''}
+end
+local moves = state[2] or ''
+if state[3] then
+    return {-2, -1, moves}
+end
+if tonumber(state[1]) == disc then
+    return {-1, -1, moves}
+end
+if column < 0 or column >= columns then
+    return {-3, -1, moves}
+end
+
+local cells = state[4]
+if not cells then
+    local grid, heights = {}, {}
+    for i = 1, rows * columns do
+        grid[i] = '0'
+    end
+    for c = 0, columns - 1 do
+        heights[c] = 0
+    end
+    for i = 1, #moves do
+        local c = string.byte(moves, i) - 48
+        grid[c * rows + heights[c] + 1] = (i % 2 == 1) and '1' or '2'
+        heights[c] = heights[c] + 1
+    end
+    cells = table.concat(grid)
+end
+
+local height = 0
+while height < rows and string.byte(cells, column * rows + height + 1) ~= 48 do
+    height = height + 1
+end
+if height >= rows then
+    return {-3, -1, moves}
+end
+local index = column * rows + height + 1
+cells = string.sub(cells, 1, index - 1) .. disc .. string.sub(cells, index + 1)
+moves = moves .. string.char(48 + column)
+
+-- Counts the discs in a row next to the new one in a single direction
+local mine = 48 + disc
+local function count(dc, dh)
+    local n, c, h = 0, column + dc, height + dh
+    while c >= 0 and c < columns and h >= 0 and h < rows and string.byte(cells, c * rows + h + 1) == mine do
+        n = n + 1
+        c = c + dc
+        h = h + dh
+    end
+    return n
+end
+
+local status = 0
+if 1 + count(1, 0) + count(-1, 0) >= connect or 1 + count(0, -1) >= connect
+        or 1 + count(1, 1) + count(-1, -1) >= connect or 1 + count(1, -1) + count(-1, 1) >= connect then
+    status = 1
+elseif #moves == rows * columns then
+    status = 2
+end
+
+redis.call('HMSET', KEYS[1], 'lastDisc', disc, 'moves', moves, 'cells', cells)
+if status > 0 then
+    redis.call('HSET', KEYS[1], 'ended', 1)
+    redis.call('PEXPIRE', KEYS[1], ARGV[7])
+else
+    redis.call('PEXPIRE', KEYS[1], ARGV[6])
+end
+return {status, rows - 1 - height, moves}
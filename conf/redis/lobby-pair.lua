@@ -0,0 +1,21 @@
+-- Pops the oldest game from a lobby whose waiting player still holds a seat.
+-- Games whose player has gone are dropped on the way, so a pop never pairs with an abandoned game.
+-- The seat of a player whose node crashed is freed once its lease expires.
+--
+-- KEYS[1]  lobby list of waiting game ids, oldest first
+-- ARGV[1]  key prefix of the seat leases of a game, followed by the game id, ':' and the disc
+--
+-- Returns the game id, or nil if no player is waiting.
+--
+-- The seat keys are built from the game ids popped off the list, so they cannot be declared in KEYS up front.
+-- Like the rest of the application this needs a single Redis instance, not Redis Cluster.
+
+while true do
+    local gameId = redis.call('LPOP', KEYS[1])
+    if not gameId then
+        return false
+    end
+    if redis.call('EXISTS', ARGV[1] .. gameId .. ':1') == 1 or redis.call('EXISTS', ARGV[1] .. gameId .. ':2') == 1 then
+        return gameId
+    end
+end
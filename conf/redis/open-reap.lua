@@ -0,0 +1,23 @@
+-- Deletes the boards of games that never started and whose waiting player has gone.
+--
+-- KEYS     for every game its board hash followed by the seat leases of disc 1 and disc 2
+--
+-- A game is kept if a seat of it is still held, for example by a player still waiting in the lobby, or if a move has
+-- been made on its board. Games are left in the lobby lists, which drop games without a held seat when they pop them.
+--
+-- Returns for every game 1 if its board was deleted, 2 if it has started, 0 if a seat is still held.
+
+local outcomes = {}
+for i = 1, #KEYS, 3 do
+    local outcome
+    if (redis.call('HGET', KEYS[i], 'moves') or '') ~= '' then
+        outcome = 2
+    elseif redis.call('EXISTS', KEYS[i + 1]) == 1 or redis.call('EXISTS', KEYS[i + 2]) == 1 then
+        outcome = 0
+    else
+        redis.call('DEL', KEYS[i])
+        outcome = 1
+    end
+    outcomes[#outcomes + 1] = outcome
+end
+return outcomes
@@ -0,0 +1,16 @@
+-- Claims the seat of a disc in a game as a lease, and counts the seats taken after the claim.
+-- A seat already held under the same token is renewed, so the same owner may claim it again.
+--
+-- KEYS[1]  seat lease of the disc claimed
+-- KEYS[2]  seat lease of the other disc
+-- ARGV[1]  token of the owner
+-- ARGV[2]  lease time in milliseconds
+--
+-- Returns -1 if the seat is held by another owner, else the number of seats taken including this one.
+
+local owner = redis.call('GET', KEYS[1])
+if owner and owner ~= ARGV[1] then
+    return -1
+end
+redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2])
+return 1 + redis.call('EXISTS', KEYS[2])
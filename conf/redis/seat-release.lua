@@ -0,0 +1,11 @@
+-- Releases a seat if it is still held by the owner, so a lease taken over by another owner is left alone.
+--
+-- KEYS[1]  seat lease
+-- ARGV[1]  token of the owner
+--
+-- Returns 1 if the seat was released, else 0.
+
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    return redis.call('DEL', KEYS[1])
+end
+return 0
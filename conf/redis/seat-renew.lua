@@ -0,0 +1,12 @@
+-- Renews the lease of a seat if it is still held by the owner.
+--
+-- KEYS[1]  seat lease
+-- ARGV[1]  token of the owner
+-- ARGV[2]  lease time in milliseconds
+--
+-- Returns 1 if the lease was renewed, 0 if it has expired or is held by another owner.
+
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+    return redis.call('PEXPIRE', KEYS[1], ARGV[2])
+end
+return 0
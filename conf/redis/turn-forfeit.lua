@@ -0,0 +1,25 @@
+-- Ends the games whose player to move has run out of time, unless a move was made since their clock was started.
+--
+-- KEYS     board hashes of the games
+-- ARGV[i]  number of moves on the board of KEYS[i] when its clock was started
+-- ARGV[#KEYS + 1]  milliseconds the board of an ended game is kept
+--
+-- The board of a forfeited game is marked as ended like that of a game won on the board, so later moves are refused,
+-- and gets the field forfeit with the disc that lost.
+--
+-- Returns for every game the disc that forfeited, or 0 if the game was left alone: it is unknown, it has ended,
+-- or a move was made in time.
+
+local endedMs = ARGV[#KEYS + 1]
+local forfeits = {}
+for i, key in ipairs(KEYS) do
+    forfeits[i] = 0
+    local state = redis.call('HMGET', key, 'lastDisc', 'moves', 'ended')
+    if state[1] and not state[3] and #(state[2] or '') == tonumber(ARGV[i]) then
+        local disc = tonumber(state[1]) == 1 and 2 or 1
+        redis.call('HMSET', key, 'ended', 1, 'forfeit', disc)
+        redis.call('PEXPIRE', key, endedMs)
+        forfeits[i] = disc
+    end
+end
+return forfeits
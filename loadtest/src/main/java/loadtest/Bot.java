@@ -0,0 +1,313 @@
+package loadtest;
+
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.asynchttpclient.ws.WebSocket;
+import org.asynchttpclient.ws.WebSocketTextListener;
+import org.asynchttpclient.ws.WebSocketUpgradeHandler;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One player of a game, speaking the text protocol of the game WebSocket.
+ * <p>
+ * The bot of a {@link GameSlot} that creates a game connects to /game/new, the other one joins with /game/join
+ * once the game is waiting in the lobby, so under load they may be paired with bots of other slots.
+ * A bot replies to every move of its opponent after a think time, sometimes dropping its connection instead and
+ * coming back with /game?gameId=&disc= to finish the game. It leaves once the game ends, or fails or times out.
+ * <p>
+ * Callbacks come from the client's I/O threads and the scheduler, so all state is guarded by the bot itself.
+ */
+class Bot implements WebSocketTextListener {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final String MESSAGE_SYNC = "sync";
+    private static final int RECONNECT_ATTEMPTS = 3;
+
+    private final LoadTest test;
+    private final GameSlot slot;
+    private final boolean joining;
+
+    private WebSocket socket;
+    private String gameId;
+    private short disc;
+    private int rows;
+    private int columns;
+    private String moves = "";
+    private boolean started;
+    private boolean finished;
+    private boolean reconnecting;
+    private int reconnectAttempts;
+    private boolean moveScheduled;
+    private long connectStart;
+    private long moveSent;
+    private volatile long lastActivity = System.nanoTime();
+
+
+    Bot(LoadTest test, GameSlot slot, boolean joining) {
+        this.test = test;
+        this.slot = slot;
+        this.joining = joining;
+    }
+
+    /**
+     * Open the socket of a new or an open game
+     */
+    synchronized void connect() {
+        connect(joining ? test.getJoinGameUrl() : test.getNewGameUrl());
+    }
+
+    private void connect(String url) {
+        connectStart = System.nanoTime();
+        lastActivity = connectStart;
+        test.getClient().prepareGet(url)
+                .execute(new WebSocketUpgradeHandler.Builder().addWebSocketListener(this).build())
+                .toCompletableFuture()
+                .whenComplete((webSocket, e) -> {
+                    // The node refuses the upgrade if the game or the disc cannot be had
+                    if (e != null)
+                        onError(e);
+                });
+    }
+
+    /**
+     * Give up the game if nothing has been heard of it for too long
+     */
+    void checkTimeout(long now) {
+        if (now - lastActivity > test.getTimeoutNanos()) {
+            synchronized (this) {
+                if (finished)
+                    return;
+                test.getStats().timeouts.increment();
+                finish();
+            }
+        }
+    }
+
+    /**
+     * Leave the game at the end of the test
+     */
+    synchronized void stop() {
+        if (!finished)
+            finish();
+    }
+
+    @Override
+    public synchronized void onOpen(WebSocket webSocket) {
+        if (finished) {
+            close(webSocket);
+            return;
+        }
+        socket = webSocket;
+    }
+
+    @Override
+    public synchronized void onClose(WebSocket webSocket) {
+        // Sockets closed by the bot itself are expected, anything else means the node dropped the game
+        if (webSocket != socket || finished || reconnecting)
+            return;
+        test.getStats().errors.increment();
+        finish();
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        if (finished)
+            return;
+        if (reconnecting && ++reconnectAttempts < RECONNECT_ATTEMPTS) {
+            // The disc may still be attached until the node notices the dropped socket
+            scheduleReconnect();
+            return;
+        }
+        test.getStats().errors.increment();
+        finish();
+    }
+
+    @Override
+    public synchronized void onMessage(String message) {
+        if (finished)
+            return;
+        lastActivity = System.nanoTime();
+
+        JsonNode node;
+        try {
+            node = mapper.readTree(message);
+        } catch (IOException e) {
+            test.getStats().errors.increment();
+            return;
+        }
+        switch (node.path("type").asText()) {
+            case "CONNECT":
+                onConnect(node);
+                break;
+            case "START":
+                if (joining && !started)
+                    test.getStats().start.recordValue(Stats.micros(lastActivity - connectStart));
+                started = true;
+                playLater();
+                break;
+            case "MOVE":
+                onMove(node, false);
+                break;
+            case "END":
+                onMove(node, true);
+                break;
+            case "SNAPSHOT":
+                moves = node.path("game").path("moves").asText();
+                playLater();
+                break;
+            default:
+                // LOCKED or INVALID, the bot got out of step with the game
+                test.getStats().errors.increment();
+                moveSent = 0;
+                socket.sendMessage(MESSAGE_SYNC);
+        }
+    }
+
+    private void onConnect(JsonNode node) {
+        JsonNode game = node.path("game");
+        gameId = game.path("id").asText();
+        disc = (short) node.path("disc").asInt();
+        rows = game.path("rows").asInt();
+        columns = game.path("columns").asInt();
+        moves = game.path("moves").asText();
+
+        if (!reconnecting) {
+            test.getStats().connect.recordValue(Stats.micros(lastActivity - connectStart));
+            // The game is in the lobby now, so the other bot of the slot can join it
+            if (!joining)
+                slot.created();
+            return;
+        }
+
+        test.getStats().reconnect.recordValue(Stats.micros(lastActivity - connectStart));
+        reconnecting = false;
+        // The opponent may have ended the game while the bot was away
+        if (isEnded(game.path("grid")))
+            finish();
+        else
+            playLater();
+    }
+
+    private void onMove(JsonNode node, boolean end) {
+        int seq = node.path("seq").asInt();
+        if (seq == moves.length() + 1) {
+            moves += (char) ('0' + node.path("column").asInt());
+        } else if (seq > moves.length()) {
+            // A move was missed, catch up with a snapshot
+            socket.sendMessage(MESSAGE_SYNC);
+            return;
+        }
+
+        if (node.path("disc").asInt() == disc && moveSent > 0) {
+            test.getStats().move.recordValue(Stats.micros(lastActivity - moveSent));
+            test.getStats().moves.increment();
+            moveSent = 0;
+            // Every finished game is counted once, by the bot that made the last move
+            if (end)
+                test.getStats().games.increment();
+        }
+
+        if (end)
+            finish();
+        else
+            playLater();
+    }
+
+    // Schedules the bot's move after its think time if it is its turn
+    private void playLater() {
+        if (!started || finished || moveScheduled || moveSent > 0 || !isTurn())
+            return;
+        moveScheduled = true;
+        test.getScheduler().schedule(this::play, test.getMoveDelayNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    private synchronized void play() {
+        moveScheduled = false;
+        if (finished || reconnecting || moveSent > 0 || !isTurn())
+            return;
+
+        if (ThreadLocalRandom.current().nextDouble() < test.getDisconnectRate()) {
+            disconnect();
+            return;
+        }
+        moveSent = System.nanoTime();
+        lastActivity = moveSent;
+        socket.sendMessage(Integer.toString(nextColumn()));
+    }
+
+    private void disconnect() {
+        test.getStats().disconnects.increment();
+        reconnecting = true;
+        reconnectAttempts = 0;
+        close(socket);
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        lastActivity = System.nanoTime();
+        test.getScheduler().schedule(() -> {
+            synchronized (this) {
+                if (!finished)
+                    connect(test.getGameUrl(gameId, disc));
+            }
+        }, test.getReconnectDelayNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    private void finish() {
+        finished = true;
+        close(socket);
+        slot.finished();
+    }
+
+    private boolean isTurn() {
+        return moves.length() % 2 == disc - 1;
+    }
+
+    // The column of the script at this move if it can be played, otherwise a random legal column
+    private int nextColumn() {
+        int[] heights = new int[columns];
+        for (int i = 0; i < moves.length(); i++)
+            heights[moves.charAt(i) - '0']++;
+
+        String script = test.getScript(slot.getIndex());
+        if (script != null && moves.length() < script.length()) {
+            int column = script.charAt(moves.length()) - '0';
+            if (column >= 0 && column < columns && heights[column] < rows)
+                return column;
+        }
+
+        int legal = 0;
+        for (int height : heights)
+            if (height < rows)
+                legal++;
+        int pick = ThreadLocalRandom.current().nextInt(legal);
+        for (int column = 0; ; column++)
+            if (heights[column] < rows && pick-- == 0)
+                return column;
+    }
+
+    // A full board or winning cells marked on the grid
+    private boolean isEnded(JsonNode grid) {
+        if (moves.length() == rows * columns)
+            return true;
+        for (JsonNode row : grid)
+            for (JsonNode cell : row)
+                if (cell.asInt() > 2)
+                    return true;
+        return false;
+    }
+
+    private static void close(WebSocket webSocket) {
+        if (webSocket == null || !webSocket.isOpen())
+            return;
+        try {
+            webSocket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+}
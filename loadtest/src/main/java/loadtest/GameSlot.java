@@ -0,0 +1,73 @@
+package loadtest;
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One of the concurrent games of the load test. A slot plays games one after another for the whole test:
+ * a bot creates a game, a second bot joins once it is waiting, and a new game starts when both have left.
+ */
+class GameSlot {
+
+    private final LoadTest test;
+    private final int index;
+    // Bots of the current game that have not left yet
+    private final AtomicInteger running = new AtomicInteger();
+    private volatile Bot creator;
+    private volatile Bot joiner;
+
+
+    GameSlot(LoadTest test, int index) {
+        this.test = test;
+        this.index = index;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    /**
+     * Start a new game with a bot creating it
+     */
+    void start() {
+        if (!test.isRunning())
+            return;
+        running.set(1);
+        joiner = null;
+        creator = new Bot(test, this, false);
+        creator.connect();
+    }
+
+    /**
+     * Called by the creating bot once its game is waiting in the lobby
+     */
+    void created() {
+        running.incrementAndGet();
+        joiner = new Bot(test, this, true);
+        joiner.connect();
+    }
+
+    /**
+     * Called by each bot when it leaves its game
+     */
+    void finished() {
+        if (running.decrementAndGet() == 0)
+            test.getScheduler().execute(this::start);
+    }
+
+    void checkTimeouts(long now) {
+        Bot creator = this.creator, joiner = this.joiner;
+        if (creator != null)
+            creator.checkTimeout(now);
+        if (joiner != null)
+            joiner.checkTimeout(now);
+    }
+
+    void stop() {
+        Bot creator = this.creator, joiner = this.joiner;
+        if (creator != null)
+            creator.stop();
+        if (joiner != null)
+            joiner.stop();
+    }
+}
@@ -0,0 +1,205 @@
+package loadtest;
+
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.asynchttpclient.AsyncHttpClient;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.asynchttpclient.Dsl.asyncHttpClient;
+import static org.asynchttpclient.Dsl.config;
+
+/**
+ * Load generator playing thousands of concurrent games against a running node over the game WebSockets.
+ * <p>
+ * The number of concurrent games ramps up in stages. Every stage records the latency of connecting, of getting
+ * paired (START) and of the round trip of a move, with the throughput of moves and finished games, and prints
+ * p50 / p99 / p99.9 in milliseconds. The stages are also written to a CSV report.
+ * <p>
+ * Settings are read from loadtest.conf. Run with {@code sbt "loadtest/run"} against a node started with
+ * {@code sbt run} and its local Redis and Mongo, overriding settings with system properties if needed, for example
+ * {@code sbt -Dloadtest.games.max=5000 "loadtest/run"}.
+ */
+public class LoadTest {
+
+    private static final String KEY_URL = "loadtest.url";
+    private static final String KEY_BUCKET = "loadtest.bucket";
+    private static final String KEY_GAMES_START = "loadtest.games.start";
+    private static final String KEY_GAMES_STEP = "loadtest.games.step";
+    private static final String KEY_GAMES_MAX = "loadtest.games.max";
+    private static final String KEY_STAGE_TIME = "loadtest.stageTime";
+    private static final String KEY_RAMP_TIME = "loadtest.rampTime";
+    private static final String KEY_MOVE_DELAY_MIN = "loadtest.moveDelay.min";
+    private static final String KEY_MOVE_DELAY_MAX = "loadtest.moveDelay.max";
+    private static final String KEY_STRATEGY = "loadtest.strategy";
+    private static final String KEY_SCRIPTS = "loadtest.scripts";
+    private static final String KEY_DISCONNECT_RATE = "loadtest.disconnectRate";
+    private static final String KEY_RECONNECT_DELAY = "loadtest.reconnectDelay";
+    private static final String KEY_TIMEOUT = "loadtest.timeout";
+    private static final String KEY_REPORT = "loadtest.report";
+    private static final String STRATEGY_SCRIPTED = "scripted";
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+
+    private final String url;
+    private final String bucket;
+    private final long moveDelayMin;
+    private final long moveDelayMax;
+    private final List<String> scripts;
+    private final double disconnectRate;
+    private final long reconnectDelay;
+    private final long timeout;
+
+    private final AsyncHttpClient client;
+    private final ScheduledExecutorService scheduler;
+    private final Stats stats = new Stats();
+    // Read by the timeout sweep while the stages add to it
+    private final List<GameSlot> slots = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+
+
+    private LoadTest(Config config) {
+        url = config.getString(KEY_URL);
+        bucket = config.getString(KEY_BUCKET);
+        moveDelayMin = config.getDuration(KEY_MOVE_DELAY_MIN, TimeUnit.NANOSECONDS);
+        moveDelayMax = config.getDuration(KEY_MOVE_DELAY_MAX, TimeUnit.NANOSECONDS);
+        scripts = config.getString(KEY_STRATEGY).equals(STRATEGY_SCRIPTED) ? config.getStringList(KEY_SCRIPTS) : null;
+        disconnectRate = config.getDouble(KEY_DISCONNECT_RATE);
+        reconnectDelay = config.getDuration(KEY_RECONNECT_DELAY, TimeUnit.NANOSECONDS);
+        timeout = config.getDuration(KEY_TIMEOUT, TimeUnit.NANOSECONDS);
+
+        // All sockets share the client's event loop, so thousands of bots need only a few threads
+        client = asyncHttpClient(config().setConnectTimeout(CONNECT_TIMEOUT_MS).setMaxConnections(-1));
+        AtomicInteger threadCount = new AtomicInteger();
+        scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "loadtest-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = ConfigFactory.load("loadtest");
+        LoadTest test = new LoadTest(config);
+        try {
+            test.run(config.getInt(KEY_GAMES_START), config.getInt(KEY_GAMES_STEP), config.getInt(KEY_GAMES_MAX),
+                    config.getDuration(KEY_STAGE_TIME, TimeUnit.NANOSECONDS),
+                    config.getDuration(KEY_RAMP_TIME, TimeUnit.NANOSECONDS), Paths.get(config.getString(KEY_REPORT)));
+        } finally {
+            test.stop();
+        }
+    }
+
+    private void run(int start, int step, int max, long stageTime, long rampTime, Path report) throws IOException,
+            InterruptedException {
+        if (report.toAbsolutePath().getParent() != null)
+            Files.createDirectories(report.toAbsolutePath().getParent());
+
+        scheduler.scheduleAtFixedRate(this::checkTimeouts, 1, 1, TimeUnit.SECONDS);
+        try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(report, StandardCharsets.UTF_8))) {
+            csv.println(Stats.CSV_HEADER);
+            for (int games = start; games <= max; games += step) {
+                // New games are spread over the ramp time so the node is not hit by all connections at once
+                int added = games - slots.size();
+                for (int i = 0; i < added; i++) {
+                    GameSlot slot = new GameSlot(this, slots.size());
+                    slots.add(slot);
+                    scheduler.schedule(slot::start, rampTime * i / added, TimeUnit.NANOSECONDS);
+                }
+
+                // The ramp is left out of the stage's numbers
+                TimeUnit.NANOSECONDS.sleep(rampTime);
+                stats.interval(games, rampTime);
+                long stageStart = System.nanoTime();
+                TimeUnit.NANOSECONDS.sleep(stageTime);
+                Stats.Interval interval = stats.interval(games, System.nanoTime() - stageStart);
+
+                System.out.println(interval.toText());
+                csv.println(interval.toCsv());
+                csv.flush();
+                if (step <= 0)
+                    break;
+            }
+        }
+        System.out.println("Report written to " + report);
+    }
+
+    private void stop() throws IOException {
+        running = false;
+        for (GameSlot slot : slots)
+            slot.stop();
+        scheduler.shutdownNow();
+        client.close();
+    }
+
+    private void checkTimeouts() {
+        long now = System.nanoTime();
+        for (GameSlot slot : slots)
+            slot.checkTimeouts(now);
+    }
+
+
+    boolean isRunning() {
+        return running;
+    }
+
+    AsyncHttpClient getClient() {
+        return client;
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    Stats getStats() {
+        return stats;
+    }
+
+    String getNewGameUrl() {
+        return url + "/game/new?bucket=" + bucket;
+    }
+
+    String getJoinGameUrl() {
+        return url + "/game/join?bucket=" + bucket;
+    }
+
+    String getGameUrl(String gameId, short disc) {
+        return url + "/game?gameId=" + gameId + "&disc=" + disc;
+    }
+
+    /**
+     * Get the script played by the bots of a slot, null if they play random moves
+     */
+    String getScript(int slot) {
+        return scripts != null && !scripts.isEmpty() ? scripts.get(slot % scripts.size()) : null;
+    }
+
+    long getMoveDelayNanos() {
+        return moveDelayMax > moveDelayMin
+                ? ThreadLocalRandom.current().nextLong(moveDelayMin, moveDelayMax) : moveDelayMin;
+    }
+
+    double getDisconnectRate() {
+        return disconnectRate;
+    }
+
+    long getReconnectDelayNanos() {
+        return reconnectDelay;
+    }
+
+    long getTimeoutNanos() {
+        return timeout;
+    }
+}
@@ -0,0 +1,94 @@
+package loadtest;
+
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and counters recorded by all bots, read and reset once per stage.
+ * Latencies are recorded in microseconds into HDR histograms, which can be written to from any thread.
+ */
+class Stats {
+
+    static final String CSV_HEADER = "games,seconds,movesPerSecond,gamesPerSecond,"
+            + "connectP50,connectP99,connectP999,startP50,startP99,startP999,moveP50,moveP99,moveP999,"
+            + "reconnectP50,reconnectP99,reconnectP999,disconnects,errors,timeouts";
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    // From opening the socket to the CONNECT snapshot
+    final Recorder connect = new Recorder(SIGNIFICANT_DIGITS);
+    // From the joining bot opening its socket to START, the time to get paired
+    final Recorder start = new Recorder(SIGNIFICANT_DIGITS);
+    // From sending a move to getting it back from the game
+    final Recorder move = new Recorder(SIGNIFICANT_DIGITS);
+    // From reopening a dropped socket to the CONNECT snapshot
+    final Recorder reconnect = new Recorder(SIGNIFICANT_DIGITS);
+
+    final LongAdder moves = new LongAdder();
+    final LongAdder games = new LongAdder();
+    final LongAdder disconnects = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+
+    /**
+     * Latencies and counts of one stage
+     */
+    static class Interval {
+        final int concurrency;
+        final double seconds;
+        final Histogram connect, start, move, reconnect;
+        final long moves, games, disconnects, errors, timeouts;
+
+        private Interval(Stats stats, int concurrency, double seconds) {
+            this.concurrency = concurrency;
+            this.seconds = seconds;
+            this.connect = stats.connect.getIntervalHistogram();
+            this.start = stats.start.getIntervalHistogram();
+            this.move = stats.move.getIntervalHistogram();
+            this.reconnect = stats.reconnect.getIntervalHistogram();
+            this.moves = stats.moves.sumThenReset();
+            this.games = stats.games.sumThenReset();
+            this.disconnects = stats.disconnects.sumThenReset();
+            this.errors = stats.errors.sumThenReset();
+            this.timeouts = stats.timeouts.sumThenReset();
+        }
+
+        String toText() {
+            return String.format(Locale.ROOT, "%6d games  %8.1f moves/s  %6.1f games/s  connect %s  start %s  "
+                            + "move %s  reconnect %s  disconnects %d  errors %d  timeouts %d",
+                    concurrency, moves / seconds, games / seconds, percentiles(connect, " / "),
+                    percentiles(start, " / "), percentiles(move, " / "), percentiles(reconnect, " / "),
+                    disconnects, errors, timeouts);
+        }
+
+        String toCsv() {
+            return String.format(Locale.ROOT, "%d,%.1f,%.1f,%.1f,%s,%s,%s,%s,%d,%d,%d",
+                    concurrency, seconds, moves / seconds, games / seconds, percentiles(connect, ","),
+                    percentiles(start, ","), percentiles(move, ","), percentiles(reconnect, ","),
+                    disconnects, errors, timeouts);
+        }
+    }
+
+
+    static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Take the latencies and counts recorded since the last call
+     */
+    Interval interval(int concurrency, long nanos) {
+        return new Interval(this, concurrency, nanos / 1e9);
+    }
+
+    // p50, p99 and p99.9 in milliseconds
+    private static String percentiles(Histogram histogram, String separator) {
+        return String.format(Locale.ROOT, "%.2f%s%.2f%s%.2f", histogram.getValueAtPercentile(50) / 1e3, separator,
+                histogram.getValueAtPercentile(99) / 1e3, separator, histogram.getValueAtPercentile(99.9) / 1e3);
+    }
+}
@@ -1,29 +1,51 @@
-var disc, gameId, ws;
+var disc, gameId, ws, grid, seq;
 
 var receiveEvent = function (event) {
     var obj = JSON.parse(event.data);
 
-    if (obj.type == "CONNECT") {
-        disc = obj.disc;
-        gameId = obj.data;
-        addMessage("disc: " + disc + ", gameId: " + gameId);
+    if (obj.type == "CONNECT" || obj.type == "SNAPSHOT") {
+        if (obj.type == "CONNECT") {
+            disc = obj.disc;
+            gameId = obj.data;
+            addMessage("disc: " + disc + ", gameId: " + gameId);
+        }
+        grid = obj.game.grid;
+        seq = obj.seq;
+        if (obj.game.forfeit)
+            addMessage("disc " + obj.game.forfeit + " ran out of time");
+        drawGrid();
     } else if (obj.type == "LOCKED")
         addMessage(obj.data);
     else if (obj.type == "START" || obj.type == "INVALID")
         addMessage(obj.type);
-    else {
-        var game = JSON.parse(obj.data);
-        var line = "<br>";
-        for (var i = 0; i < 6; i++) {
-            line = line + (i + 1) + "&nbsp&nbsp&nbsp";
-            for (var j = 0; j < 7; j++)
-                line = line + game.grid[i][j] + " ";
-            line = line + "<br>";
-        }
-        document.getElementById("grid").innerHTML = line;
+    else if (obj.seq != seq + 1)
+        // A move was missed, ask for the full game again
+        ws.send("sync");
+    else if (obj.column == null) {
+        // The player to move ran out of time, the game ended without a move
+        addMessage("disc " + obj.disc + " ran out of time");
+        seq = obj.seq;
+    } else {
+        grid[obj.row][obj.column] = obj.disc;
+        if (obj.win)
+            for (var k = 0; k < obj.win.length; k++)
+                grid[obj.win[k][0]][obj.win[k][1]] = obj.disc + 2;
+        seq = obj.seq;
+        drawGrid();
     }
 };
 
+function drawGrid() {
+    var line = "<br>";
+    for (var i = 0; i < grid.length; i++) {
+        line = line + (i + 1) + "&nbsp&nbsp&nbsp";
+        for (var j = 0; j < grid[i].length; j++)
+            line = line + grid[i][j] + " ";
+        line = line + "<br>";
+    }
+    document.getElementById("grid").innerHTML = line;
+}
+
 function setupWebSocket() {
     var WSX = window['MozWebSocket'] ? MozWebSocket : WebSocket;
     if (gameId != null)
@@ -0,0 +1,134 @@
+package common;
+
+import models.Rules;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.embedded.RedisServer;
+
+import java.lang.reflect.Field;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plays games through the commit script on an embedded Redis and checks it agrees with the Java rules
+ */
+public class CommitMoveScriptTest {
+
+    private static final int PORT = 6381;
+    private static final short DISC_1 = 1;
+    private static final short DISC_2 = 2;
+    private static final int GAMES_PER_SIZE = 5;
+    // Standard, smallest and largest boards, and boards whose lines are shifted by a whole word in LongRules
+    private static final int[][] SIZES = {{6, 7, 4}, {4, 4, 3}, {16, 16, 8}, {15, 4, 8}, {14, 4, 8}, {7, 8, 5},
+            {8, 8, 4}, {4, 16, 4}, {10, 12, 6}, {16, 4, 3}};
+
+    private static RedisServer server;
+    private static JedisPool jedisPool;
+    private static int games;
+
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        server = new RedisServer(PORT);
+        server.start();
+        jedisPool = new JedisPool(new JedisPoolConfig(), "localhost", PORT);
+
+        // The pool is injected by Guice in the application
+        Field field = RedisUtils.class.getDeclaredField("jedisPool");
+        field.setAccessible(true);
+        field.set(null, jedisPool);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        jedisPool.destroy();
+        server.stop();
+    }
+
+    @Test
+    public void agreesWithRules() {
+        Random random = new Random(3);
+        for (int[] size : SIZES) {
+            Rules rules = Rules.of(size[0], size[1], size[2]);
+            for (int i = 0; i < GAMES_PER_SIZE; i++)
+                playGame(rules, random);
+        }
+    }
+
+    @Test
+    public void refusesInvalidMoves() {
+        Rules rules = Rules.STANDARD;
+        String gameId = newGame();
+        assertEquals(RedisUtils.MoveResult.STATUS_WRONG_TURN, commit(gameId, DISC_2, 3, rules).getStatus());
+        assertEquals(RedisUtils.MoveResult.STATUS_INVALID,
+                commit(gameId, DISC_1, rules.getColumns(), rules).getStatus());
+        for (int i = 0; i < rules.getRows(); i++) {
+            short disc = i % 2 == 0 ? DISC_1 : DISC_2;
+            assertEquals(RedisUtils.MoveResult.STATUS_MOVE, commit(gameId, disc, 3, rules).getStatus());
+        }
+        assertEquals(RedisUtils.MoveResult.STATUS_INVALID, commit(gameId, DISC_1, 3, rules).getStatus());
+        assertEquals(RedisUtils.MoveResult.STATUS_UNKNOWN_GAME, commit("unknown", DISC_1, 3, rules).getStatus());
+    }
+
+    @Test
+    public void continuesBoardsRestoredFromMoves() {
+        // Restored boards only have their moves, the script builds their cells on the next move
+        Rules rules = Rules.STANDARD;
+        String gameId = "test" + games++;
+        String moves = "0123456";
+        RedisUtils.restoreBoard(gameId, DISC_1, moves, false);
+        for (char column : "060606".toCharArray()) {
+            short disc = moves.length() % 2 == 0 ? DISC_1 : DISC_2;
+            RedisUtils.MoveResult result = commit(gameId, disc, column - '0', rules);
+            moves += column;
+            assertEquals(moves, result.getMoves());
+            assertEquals(rules.isWin(moves) ? RedisUtils.MoveResult.STATUS_WIN : RedisUtils.MoveResult.STATUS_MOVE,
+                    result.getStatus());
+        }
+        // Four of disc 1 in column 6 on top of the restored one
+        assertTrue(rules.isWin(moves));
+        assertEquals(RedisUtils.MoveResult.STATUS_ENDED, commit(gameId, DISC_2, 0, rules).getStatus());
+    }
+
+    private static void playGame(Rules rules, Random random) {
+        String gameId = newGame();
+        String moves = "";
+        int[] heights = new int[rules.getColumns()];
+        while (true) {
+            int column;
+            do {
+                column = random.nextInt(rules.getColumns());
+            } while (heights[column] == rules.getRows());
+            short disc = moves.length() % 2 == 0 ? DISC_1 : DISC_2;
+            RedisUtils.MoveResult result = commit(gameId, disc, column, rules);
+            moves += (char) ('0' + column);
+
+            String message = rules + " " + moves;
+            assertEquals(message, moves, result.getMoves());
+            assertEquals(message, rules.getRows() - 1 - heights[column]++, result.getRow());
+            int expected = rules.isWin(moves) ? RedisUtils.MoveResult.STATUS_WIN
+                    : rules.isEnded(moves) ? RedisUtils.MoveResult.STATUS_DRAW : RedisUtils.MoveResult.STATUS_MOVE;
+            assertEquals(message, expected, result.getStatus());
+            if (expected != RedisUtils.MoveResult.STATUS_MOVE) {
+                assertEquals(message, RedisUtils.MoveResult.STATUS_ENDED,
+                        commit(gameId, disc == DISC_1 ? DISC_2 : DISC_1, 0, rules).getStatus());
+                return;
+            }
+        }
+    }
+
+    private static String newGame() {
+        String gameId = "test" + games++;
+        RedisUtils.createBoard(gameId, DISC_2);
+        return gameId;
+    }
+
+    private static RedisUtils.MoveResult commit(String gameId, short disc, int column, Rules rules) {
+        return RedisUtils.commitMove(gameId, disc, (short) column, rules.getRows(), rules.getColumns(),
+                rules.getConnect());
+    }
+}
@@ -0,0 +1,99 @@
+package common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+
+    private static final long TICK_MS = 10;
+    private static final int SIZE = 8;
+
+    private final BlockingQueue<Expiry> expired = new LinkedBlockingQueue<>();
+    private final TimingWheel<String> wheel = new TimingWheel<>("test-wheel", TICK_MS, SIZE, items -> {
+        long now = System.nanoTime();
+        for (String item : items)
+            expired.add(new Expiry(item, now));
+    });
+
+    private static class Expiry {
+        final String item;
+        final long nanos;
+
+        Expiry(String item, long nanos) {
+            this.item = item;
+            this.nanos = nanos;
+        }
+    }
+
+
+    @Test
+    public void expiresTimersInOrderAndNeverEarly() throws InterruptedException {
+        long start = System.nanoTime();
+        // Past a full turn of the wheel, so some timers wait for more than one round in their slot
+        long[] delays = {35, 5, 120, 60, 200};
+        for (long delay : delays)
+            wheel.arm(String.valueOf(delay), delay);
+        assertEquals(delays.length, wheel.getPending());
+
+        List<String> order = new ArrayList<>();
+        for (int i = 0; i < delays.length; i++) {
+            Expiry expiry = expired.poll(1, TimeUnit.SECONDS);
+            assertNotNull(expiry);
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis(expiry.nanos - start);
+            assertTrue(expiry.item + " expired after " + elapsedMs + " ms", elapsedMs >= Long.parseLong(expiry.item));
+            order.add(expiry.item);
+        }
+        assertEquals(Arrays.asList("5", "35", "60", "120", "200"), order);
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    public void cancelledTimersDoNotExpire() throws InterruptedException {
+        TimingWheel<String>.Timeout first = wheel.arm("first", 30);
+        TimingWheel<String>.Timeout second = wheel.arm("second", 30);
+        wheel.arm("third", 30);
+        assertEquals("second", second.getItem());
+        second.cancel();
+        // Cancelling twice changes nothing
+        second.cancel();
+        assertEquals(2, wheel.getPending());
+
+        Set<String> items = new HashSet<>();
+        for (int i = 0; i < 2; i++)
+            items.add(expired.poll(1, TimeUnit.SECONDS).item);
+        assertEquals(new HashSet<>(Arrays.asList("first", "third")), items);
+        assertNull(expired.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, wheel.getPending());
+        // Cancelling an expired timer changes nothing
+        first.cancel();
+        assertEquals(0, wheel.getPending());
+    }
+
+    @Test
+    public void handlesManyTimersInOneSlot() throws InterruptedException {
+        int count = 10000;
+        List<TimingWheel<String>.Timeout> timeouts = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            timeouts.add(wheel.arm(String.valueOf(i), 50));
+        for (int i = 0; i < count; i += 2)
+            timeouts.get(i).cancel();
+        assertEquals(count / 2, wheel.getPending());
+
+        for (int i = 0; i < count / 2; i++) {
+            Expiry expiry = expired.poll(1, TimeUnit.SECONDS);
+            assertNotNull(expiry);
+            assertEquals(1, Integer.parseInt(expiry.item) % 2);
+        }
+        assertNull(expired.poll(100, TimeUnit.MILLISECONDS));
+    }
+}
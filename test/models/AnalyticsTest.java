@@ -0,0 +1,35 @@
+package models;
+
+import com.mongodb.DBObject;
+import models.entities.Game;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AnalyticsTest {
+
+    private static final short DISC_2 = 2;
+    private static final double DELTA = 1e-9;
+
+
+    @Test
+    public void sharesAlignmentsOutOfWinsOnTheBoard() {
+        Analytics.Stats stats = new Analytics.Stats();
+        // Four in a row along the bottom and four up a column
+        stats.add(new Game("0011223", Rules.STANDARD), 0);
+        stats.add(new Game("0101010", Rules.STANDARD), 0);
+        // Disc 2 runs out of time, disc 1 wins without a connection
+        Game forfeited = new Game("33", Rules.STANDARD);
+        forfeited.forfeit(DISC_2);
+        stats.add(forfeited, 0);
+
+        assertEquals(3, stats.firstWins);
+        assertEquals(2, stats.boardWins);
+        DBObject alignments = (DBObject) stats.toSummary("test", 0).get("alignments");
+        assertEquals(0.5, (Double) alignments.get("E-W"), DELTA);
+        assertEquals(0.5, (Double) alignments.get("N-S"), DELTA);
+
+        // The count survives a checkpoint
+        assertEquals(2, Analytics.Stats.fromDocument(stats.toDocument()).boardWins);
+    }
+}
@@ -0,0 +1,75 @@
+package models;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BitBoardTest {
+
+    private static final int GAMES = 2000;
+
+
+    @Test
+    public void agreesWithGridScan() {
+        Random random = new Random(7);
+        for (int i = 0; i < GAMES; i++) {
+            GridScan game = GridScan.randomGame(GameModel.ROWS, GameModel.COLUMNS, GameModel.CONNECT_COUNT, random);
+            GridScan scan = new GridScan(GameModel.ROWS, GameModel.COLUMNS, GameModel.CONNECT_COUNT);
+            long[] boards = new long[2];
+            long occupied = 0;
+            for (int ply = 0; ply < game.moves.length(); ply++) {
+                int column = game.moves.charAt(ply) - '0';
+                assertNotEquals(0, BitBoard.playableCells(occupied) & BitBoard.columnMask(column));
+                long moveBit = BitBoard.moveBit(occupied, column);
+                assertEquals(1L << column * BitBoard.HEIGHT + scan.heights[column], moveBit);
+                assertEquals(column, BitBoard.column(moveBit));
+
+                occupied |= moveBit;
+                boards[ply % 2] |= moveBit;
+                scan.play(column);
+                assertEquals(scan.moves.toString(), !scan.winCells().isEmpty(), BitBoard.isWin(boards[ply % 2]));
+            }
+        }
+    }
+
+    @Test
+    public void findsWinningCells() {
+        Random random = new Random(11);
+        for (int i = 0; i < GAMES; i++) {
+            GridScan game = GridScan.randomGame(GameModel.ROWS, GameModel.COLUMNS, GameModel.CONNECT_COUNT, random);
+            // The position before the last move, where the board of the player to move has no connection yet
+            String moves = game.moves.substring(0, game.moves.length() - 1);
+            GridScan scan = new GridScan(GameModel.ROWS, GameModel.COLUMNS, GameModel.CONNECT_COUNT);
+            long board = 0, occupied = 0;
+            for (int ply = 0; ply < moves.length(); ply++) {
+                long moveBit = BitBoard.moveBit(occupied, moves.charAt(ply) - '0');
+                occupied |= moveBit;
+                if (ply % 2 == moves.length() % 2)
+                    board |= moveBit;
+                scan.play(moves.charAt(ply) - '0');
+            }
+
+            long expected = 0;
+            for (int column = 0; column < GameModel.COLUMNS; column++) {
+                for (int h = 0; h < GameModel.ROWS; h++) {
+                    long cell = 1L << column * BitBoard.HEIGHT + h;
+                    if ((occupied & cell) == 0 && BitBoard.isWin(board | cell))
+                        expected |= cell;
+                }
+            }
+            assertEquals(moves, expected, BitBoard.winningCells(board, occupied));
+        }
+    }
+
+    @Test
+    public void refusesFullColumns() {
+        long occupied = 0;
+        for (int h = 0; h < GameModel.ROWS; h++)
+            occupied |= BitBoard.moveBit(occupied, 3);
+        assertEquals(BitBoard.columnMask(3), occupied);
+        assertEquals(0, BitBoard.playableCells(occupied) & BitBoard.columnMask(3));
+        assertEquals(GameModel.COLUMNS - 1, Long.bitCount(BitBoard.playableCells(occupied)));
+    }
+}
@@ -0,0 +1,84 @@
+package models;
+
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Naive reference for the rules: plays moves onto a grid and walks it cell by cell from the last move.
+ */
+class GridScan {
+
+    private static final int[][] DIRECTIONS = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+
+    final int rows;
+    final int columns;
+    final int connect;
+    // Discs by column and height from the bottom, 0 for an empty cell
+    final int[][] cells;
+    final int[] heights;
+    final StringBuilder moves = new StringBuilder();
+
+
+    GridScan(int rows, int columns, int connect) {
+        this.rows = rows;
+        this.columns = columns;
+        this.connect = connect;
+        cells = new int[columns][rows];
+        heights = new int[columns];
+    }
+
+    boolean canPlay(int column) {
+        return heights[column] < rows;
+    }
+
+    void play(int column) {
+        cells[column][heights[column]++] = moves.length() % 2 + 1;
+        moves.append((char) ('0' + column));
+    }
+
+    /**
+     * Play random moves until the game is won or the board is full
+     */
+    static GridScan randomGame(int rows, int columns, int connect, Random random) {
+        GridScan scan = new GridScan(rows, columns, connect);
+        while (scan.moves.length() < rows * columns && scan.winCells().isEmpty()) {
+            int column;
+            do {
+                column = random.nextInt(columns);
+            } while (!scan.canPlay(column));
+            scan.play(column);
+        }
+        return scan;
+    }
+
+    /**
+     * Get the "row,column" cells of the lines of connect or more discs through the last move, row 0 at the top
+     */
+    Set<String> winCells() {
+        Set<String> win = new HashSet<>();
+        if (moves.length() == 0)
+            return win;
+
+        int column = moves.charAt(moves.length() - 1) - '0', h = heights[column] - 1, disc = cells[column][h];
+        for (int[] direction : DIRECTIONS) {
+            Set<String> line = new HashSet<>();
+            for (int sign = -1; sign <= 1; sign += 2) {
+                for (int c = column, r = h; c >= 0 && c < columns && r >= 0 && r < rows && cells[c][r] == disc;
+                     c += sign * direction[0], r += sign * direction[1])
+                    line.add((rows - 1 - r) + "," + c);
+            }
+            if (line.size() >= connect)
+                win.addAll(line);
+        }
+        return win;
+    }
+
+    static Set<String> toSet(short[][] cells) {
+        Set<String> set = new HashSet<>();
+        for (short[] cell : cells)
+            set.add(cell[0] + "," + cell[1]);
+        return set;
+    }
+}
@@ -0,0 +1,123 @@
+package models;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RulesTest {
+
+    private static final int GAMES_PER_SIZE = 4;
+
+
+    @Test
+    public void agreesWithGridScanOnEverySupportedSize() {
+        Random random = new Random(42);
+        for (int rows = Rules.MIN_SIZE; rows <= Rules.MAX_SIZE; rows++) {
+            for (int columns = Rules.MIN_SIZE; columns <= Rules.MAX_SIZE; columns++) {
+                for (int connect = Rules.MIN_CONNECT; connect <= Rules.MAX_CONNECT; connect++) {
+                    if (!Rules.isSupported(rows, columns, connect))
+                        continue;
+                    for (Rules rules : representations(rows, columns, connect)) {
+                        for (int i = 0; i < GAMES_PER_SIZE; i++)
+                            checkGame(rules, GridScan.randomGame(rows, columns, connect, random));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void ignoresShortRunsWhenShiftsReachAWord() {
+        // Horizontal shift of 16 on a 15x4 board, four in a row of a connect 8 game
+        for (Rules rules : representations(15, 4, 8))
+            assertFalse(rules.toString(), rules.isWin("0011223"));
+        // Diagonal shift of 16 on a 14x4 board
+        for (Rules rules : representations(14, 4, 8))
+            assertFalse(rules.toString(), rules.isWin("01122323303"));
+    }
+
+    @Test
+    public void findsLongLinesJoinedByTheLastMove() {
+        // Disc 1 fills the gap between 0-1-2 and 4-5-6 on the bottom row of a connect 4 game
+        String moves = "001122445566";
+        for (Rules rules : representations(6, 9, 4)) {
+            assertTrue(rules.toString(), rules.isWin(moves + "3"));
+            assertEquals(rules.toString(), 7, rules.winCells(moves + "3").length);
+        }
+    }
+
+    @Test
+    public void rejectsInvalidMoves() {
+        Rules rules = Rules.STANDARD;
+        assertTrue(rules.isValidMoves(""));
+        assertTrue(rules.isValidMoves("3333"));
+        assertFalse(rules.isValidMoves("3333333"));
+        assertFalse(rules.isValidMoves("7"));
+        // A move after the winning one
+        assertFalse(rules.isValidMoves("01010103"));
+    }
+
+    @Test
+    public void refusesFullColumnsOnTheBoard() {
+        for (Rules rules : representations(4, 5, 3)) {
+            Board board = rules.newBoard();
+            for (int i = 0; i < rules.getRows(); i++)
+                board.play(2);
+            assertFalse(board.canPlay(2));
+            assertFalse(board.canPlay(-1));
+            assertFalse(board.canPlay(rules.getColumns()));
+            assertTrue(board.canPlay(1));
+            try {
+                board.play(2);
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+            assertEquals(rules.getRows(), board.getMoveCount());
+        }
+    }
+
+    @Test
+    public void picksRepresentationBySize() {
+        assertTrue(Rules.of(6, 7, 4) instanceof LongRules);
+        assertTrue(Rules.of(7, 8, 4) instanceof LongRules);
+        assertTrue(Rules.of(8, 8, 4) instanceof WideRules);
+        assertTrue(Rules.of(16, 16, 8) instanceof WideRules);
+    }
+
+    // Both representations where the board fits a long, so they are checked against each other's sizes too
+    private static List<Rules> representations(int rows, int columns, int connect) {
+        List<Rules> rules = new ArrayList<>();
+        if (columns * (rows + 1) <= Long.SIZE)
+            rules.add(new LongRules(rows, columns, connect));
+        rules.add(new WideRules(rows, columns, connect));
+        return rules;
+    }
+
+    private static void checkGame(Rules rules, GridScan game) {
+        String moves = game.moves.toString();
+        GridScan scan = new GridScan(game.rows, game.columns, game.connect);
+        Board board = rules.newBoard();
+        for (int i = 0; i < moves.length(); i++) {
+            int column = moves.charAt(i) - '0';
+            assertTrue(board.canPlay(column));
+            assertEquals(rules.getRows() - 1 - scan.heights[column], board.play(column));
+            scan.play(column);
+            String prefix = scan.moves.toString();
+            boolean win = !scan.winCells().isEmpty();
+            assertEquals(rules + " " + prefix, win, board.isWin());
+            assertEquals(rules + " " + prefix, scan.winCells(), GridScan.toSet(board.winCells()));
+            assertEquals(rules + " " + prefix, win || prefix.length() == game.rows * game.columns, board.isEnded());
+            assertEquals(rules + " " + prefix, win, rules.isWin(prefix));
+            if (win || i == moves.length() - 1) {
+                assertEquals(rules + " " + prefix, scan.winCells(), GridScan.toSet(rules.winCells(prefix)));
+                assertEquals(rules + " " + prefix, win || prefix.length() == game.rows * game.columns,
+                        rules.isEnded(prefix));
+            }
+        }
+        assertTrue(rules + " " + moves, rules.isValidMoves(moves));
+    }
+}
@@ -0,0 +1,84 @@
+package models.entities;
+
+import models.MessageType;
+import models.Rules;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GameMessageTest {
+
+    private static final short DISC_1 = 1;
+    private static final short DISC_2 = 2;
+    private static final String GAME_ID = "57aa9282fea4643d9661ef2f";
+
+
+    @Test
+    public void forfeitFollowsTheLastMove() {
+        GameMessage forfeit = GameMessage.forfeit(DISC_2, 3);
+        assertEquals(MessageType.END, forfeit.getType());
+        assertEquals(DISC_2, forfeit.getDisc());
+        assertEquals(Integer.valueOf(4), forfeit.getSeq());
+        assertNull(forfeit.getColumn());
+    }
+
+    @Test
+    public void snapshotCarriesTheForfeit() {
+        Rules rules = Rules.STANDARD;
+        GameMessage snapshot = GameMessage.snapshot(MessageType.SNAPSHOT, DISC_1, GAME_ID, GAME_ID, rules, "334",
+                DISC_2, rules.replay("334"));
+        assertEquals(Integer.valueOf(4), snapshot.getSeq());
+        assertEquals(DISC_2, snapshot.getGame().path("forfeit").asInt());
+
+        snapshot = GameMessage.snapshot(MessageType.SNAPSHOT, DISC_1, GAME_ID, GAME_ID, rules, "334", (short) 0,
+                rules.replay("334"));
+        assertEquals(Integer.valueOf(3), snapshot.getSeq());
+        assertEquals(0, snapshot.getGame().path("forfeit").asInt());
+    }
+
+    @Test
+    public void resumesUpToTheForfeit() {
+        Rules rules = Rules.STANDARD;
+        List<GameMessage> messages = GameMessage.connect(DISC_1, GAME_ID, rules, "334", DISC_2, 1);
+        assertEquals(4, messages.size());
+        assertEquals(MessageType.RESUME, messages.get(0).getType());
+        assertEquals(Integer.valueOf(4), messages.get(0).getSeq());
+        assertEquals(MessageType.MOVE, messages.get(1).getType());
+        assertEquals(MessageType.MOVE, messages.get(2).getType());
+        assertEquals(Short.valueOf((short) 4), messages.get(2).getColumn());
+        assertEquals(MessageType.END, messages.get(3).getType());
+        assertEquals(DISC_2, messages.get(3).getDisc());
+        assertEquals(Integer.valueOf(4), messages.get(3).getSeq());
+
+        // A player who has seen the forfeit gets nothing more, one past it gets the snapshot
+        assertEquals(1, GameMessage.connect(DISC_1, GAME_ID, rules, "334", DISC_2, 4).size());
+        messages = GameMessage.connect(DISC_1, GAME_ID, rules, "334", DISC_2, 5);
+        assertEquals(MessageType.CONNECT, messages.get(0).getType());
+        assertEquals(Integer.valueOf(4), messages.get(0).getSeq());
+    }
+
+    @Test
+    public void replaysTheWinningMoveAsEnd() {
+        Rules rules = Rules.STANDARD;
+        String moves = "0101010";
+        GameMessage end = GameMessage.replay(rules, moves, (short) 0, moves.length());
+        assertEquals(MessageType.END, end.getType());
+        assertEquals(DISC_1, end.getDisc());
+        assertEquals(4, end.getWin().length);
+        assertEquals(MessageType.MOVE, GameMessage.replay(rules, moves, (short) 0, moves.length() - 1).getType());
+    }
+
+    @Test
+    public void encodesTheForfeitInBinarySnapshots() {
+        Rules rules = Rules.STANDARD;
+        byte[] bytes = GameMessage.snapshot(MessageType.SNAPSHOT, DISC_1, "", GAME_ID, rules, "33", DISC_1,
+                rules.replay("33")).toBytes();
+        assertEquals(GameMessage.VERSION, bytes[0]);
+        assertEquals(3, bytes[6]);
+        // Data length 0, then rows, columns, connect and forfeit, then the moves
+        assertEquals(0, bytes[7]);
+        assertArrayEquals(new byte[]{6, 7, 4, 1, 3, 3}, java.util.Arrays.copyOfRange(bytes, 8, bytes.length));
+    }
+}
@@ -0,0 +1,69 @@
+package models.entities;
+
+import com.mongodb.DBObject;
+import models.Rules;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GameTest {
+
+    private static final short DISC_1 = 1;
+    private static final short DISC_2 = 2;
+
+
+    @Test
+    public void archiveRoundTrip() {
+        Random random = new Random(5);
+        for (int i = 0; i < 1000; i++) {
+            int rows = Rules.MIN_SIZE + random.nextInt(Rules.MAX_SIZE - Rules.MIN_SIZE + 1);
+            int columns = Rules.MIN_SIZE + random.nextInt(Rules.MAX_SIZE - Rules.MIN_SIZE + 1);
+            int connect = Rules.MIN_CONNECT + random.nextInt(Rules.MAX_CONNECT - Rules.MIN_CONNECT + 1);
+            if (!Rules.isSupported(rows, columns, connect))
+                continue;
+            Rules rules = Rules.of(rows, columns, connect);
+
+            // Any number of moves up to a full board, odd counts leave the last byte half used
+            StringBuilder moves = new StringBuilder();
+            int[] heights = new int[columns];
+            int count = random.nextInt(rows * columns + 1);
+            while (moves.length() < count) {
+                int column = random.nextInt(columns);
+                if (heights[column] < rows) {
+                    heights[column]++;
+                    moves.append((char) ('0' + column));
+                }
+            }
+
+            Game game = new Game(moves.toString(), rules);
+            if (random.nextBoolean())
+                game.setAi(1 + random.nextInt(40), 1 + random.nextInt(5000));
+            if (random.nextInt(4) == 0)
+                game.forfeit(random.nextBoolean() ? DISC_1 : DISC_2);
+
+            DBObject document = game.toArchive();
+            Game archived = Game.fromArchive(document);
+            String message = rules + " " + moves;
+            assertEquals(message, game.getMoves(), archived.getMoves());
+            assertSame(message, rules, archived.getRules());
+            assertEquals(message, game.getForfeit(), archived.getForfeit());
+            assertEquals(message, game.getAiDepth(), archived.getAiDepth());
+            assertEquals(message, game.getAiTimeMs(), archived.getAiTimeMs());
+            assertEquals(message, moves.length() == 0 ? 0 : moves.length() % 2 == 1 ? DISC_1 : DISC_2,
+                    archived.getLastDisc());
+        }
+    }
+
+    @Test
+    public void rejectsUnknownArchiveVersion() {
+        DBObject document = new Game("33", Rules.STANDARD).toArchive();
+        ((byte[]) document.get("data"))[0]++;
+        try {
+            Game.fromArchive(document);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}